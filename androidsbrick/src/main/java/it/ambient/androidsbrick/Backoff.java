@@ -0,0 +1,30 @@
+package it.ambient.androidsbrick;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with equal jitter: half of delay is fixed, half is random,
+ * so SBricks failing together don't retry at the same moment. Used by connection
+ * retries of SBrickConnectionManager and automatic reconnect of SBrick.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+final class Backoff {
+    // caps shift of base delay, so long runs of retries can't overflow it
+    private static final int MAX_DOUBLINGS = 16;
+
+    private Backoff() {
+    }
+
+    /**
+     * @param retry number of retries before this one, 0 for first retry
+     * @param baseDelay delay of first retry, before jitter, ms
+     * @param maxDelay delay doubles with each retry up to this, before jitter, ms
+     * @return delay of retry, from half of its backoff delay up to whole, ms
+     */
+    static long delayMillis(int retry, long baseDelay, long maxDelay, Random random) {
+        long delay = Math.min(maxDelay, baseDelay << Math.min(Math.max(retry, 0), MAX_DOUBLINGS));
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+}
@@ -0,0 +1,56 @@
+package it.ambient.androidsbrick;
+
+/**
+ * Converts bluetooth device address between text form, e.g. "00:07:80:2E:0A:1B",
+ * and 48 bit value kept in long. Long takes less memory than String, compares
+ * faster and is written to files in 6 bytes.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public final class BluetoothAddress {
+    /** Value of invalid address. */
+    public static final long INVALID = -1L;
+
+    private static final int ADDRESS_LENGTH = 17;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private BluetoothAddress() {
+    }
+
+    /**
+     * @param address address in "XX:XX:XX:XX:XX:XX" form, any case
+     * @return 48 bit address, INVALID if address can't be parsed
+     */
+    public static long toLong(String address) {
+        if (address == null || address.length() != ADDRESS_LENGTH) return INVALID;
+        long value = 0;
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return INVALID;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) return INVALID;
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /**
+     * @param address 48 bit address
+     * @return address in "XX:XX:XX:XX:XX:XX" form, upper case like Android reports it
+     */
+    public static String toString(long address) {
+        char[] text = new char[ADDRESS_LENGTH];
+        for (int octet = 0; octet < 6; octet++) {
+            int value = (int) (address >>> (40 - 8 * octet)) & 0xFF;
+            text[octet * 3] = HEX_DIGITS[value >>> 4];
+            text[octet * 3 + 1] = HEX_DIGITS[value & 0x0F];
+            if (octet < 5) {
+                text[octet * 3 + 2] = ':';
+            }
+        }
+        return new String(text);
+    }
+}
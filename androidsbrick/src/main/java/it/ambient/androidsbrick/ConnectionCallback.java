@@ -10,6 +10,16 @@ import java.util.Map;
  */
 public interface ConnectionCallback {
 
+    /**
+     * Called when discovery finishes, with all SBricks found during it.
+     */
     void handleSBrickCollection(Map<String, SBrick> sBrickCollection);
     boolean handlePermissionRequests();
+
+    /**
+     * Called as soon as new SBrick is found, before discovery finishes.
+     * SBrick is already queued for connection.
+     */
+    default void handleSBrickFound(SBrick sbrick) {
+    }
 }
@@ -5,36 +5,71 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import it.ambient.androidsbrick.transport.GattTransport;
 
 /**
  * Optional wrapper for simplified bluetooth / SBrick discovery.
- * It's final product is HashMap of connected SBricks.
+ * Each SBrick is passed to callback as soon as it's found, and HashMap of all
+ * found SBricks when discovery finishes. They are connected by
+ * SBrickConnectionManager, few at a time, with retries.
+ *
+ * With SBrickRegistry, SBricks known from previous runs are connected directly,
+ * before scan starts. Scan runs in background only until unknown or unreachable
+ * SBricks are found, and connected SBricks are saved to registry.
+ *
+ * Each advertisement updates DiscoveryTable with smoothed signal strength and
+ * time it was seen, so found SBricks can be ranked and connected strongest first.
  *
  * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
  */
 public class ConnectionHelper {
     private static final String TAG = "ConnectionHelper";
+    private static final long REGISTRY_SAVE_DELAY = 1000; // ms, SBricks ready together are saved once
+    private static final long RANKING_DELAY = 500; // ms, SBricks found in this time are ranked before connecting
     private long scanPeriod         = 5000; // default scan time 5 seconds
+    private int scanMode            = ScanSettings.SCAN_MODE_LOW_POWER;
+    private int scanFilters         = SBrickAdvertisement.FILTER_MANUFACTURER_DATA
+                                        | SBrickAdvertisement.FILTER_SERVICE_UUID;
 
     private Context applicationContext;
-    private Map<String, BluetoothDevice> scanResults;
+    private DiscoveryTable discoveryTable = new DiscoveryTable();
+    private Map<String, SBrick> foundSBricks;
+    private Set<String> expectedAddresses = new HashSet<>();
+    private int expectedCount       = 0;
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothLeScanner bluetoothLeScanner;
     private ScanCallback scanCallback;
     private ConnectionCallback sBrickCallback;
     private Handler scanHandler;
     private boolean isScanning = false;
+    private SBrickConnectionManager connectionManager = new SBrickConnectionManager();
+    private SBrickRegistry registry;
+    // known SBricks connecting directly, not ready or found by scan yet
+    private Set<String> pendingKnown = new HashSet<>();
+    private int knownCount          = 0;
+    private Handler mainHandler = new Handler();
+    private RegistryUpdater registryUpdater = new RegistryUpdater();
+    private boolean connectStrongestFirst = false;
+    // SBricks found during ranking delay, connected when it passes
+    private List<SBrick> rankedSBricks = new ArrayList<>();
+    private boolean ranking = false;
 
     /**
      * Constructor
@@ -66,7 +101,133 @@ public class ConnectionHelper {
     }
 
     /**
-     * Starts bluetooth device discovery. Executes scanComplete() method when finished.
+     * Set bluetooth scan mode. SCAN_MODE_LOW_LATENCY finds SBricks faster,
+     * but should be used only while app is in foreground.
+     * Default is ScanSettings.SCAN_MODE_LOW_POWER.
+     *
+     * @param mode one of ScanSettings.SCAN_MODE_* constants
+     */
+    public void setScanMode(int mode) {
+        scanMode = mode;
+    }
+
+    /**
+     * Set which advertisement data Bluetooth controller filters devices by.
+     * Devices matching any of filters are reported.
+     * Default is manufacturer data and remote control service UUID.
+     *
+     * @param filters combination of SBrickAdvertisement.FILTER_* flags,
+     *                FILTER_NONE to receive all devices and recognize SBricks in application
+     */
+    public void setScanFilters(int filters) {
+        scanFilters = filters;
+    }
+
+    /**
+     * Stop discovery as soon as all SBricks with given addresses are found,
+     * without waiting for scan period to pass.
+     *
+     * @param addresses bluetooth addresses of expected SBricks, empty or null to scan full period
+     */
+    public void setExpectedSBricks(Collection<String> addresses) {
+        expectedAddresses = new HashSet<>();
+        if (addresses != null) {
+            expectedAddresses.addAll(addresses);
+        }
+    }
+
+    /**
+     * Stop discovery as soon as given number of SBricks is found,
+     * without waiting for scan period to pass.
+     *
+     * @param count number of expected SBricks, 0 to scan full period
+     */
+    public void setExpectedSBrickCount(int count) {
+        expectedCount = count;
+    }
+
+    /**
+     * Set registry of known SBricks. They are connected directly when scan starts,
+     * SBricks which get ready are added to registry and saved. When no SBricks
+     * are expected, scan stops as soon as all known SBricks are ready.
+     *
+     * @param registry loaded registry, e.g. SBrickRegistry.open(context), null to scan only
+     */
+    public void setRegistry(SBrickRegistry registry) {
+        this.registry = registry;
+    }
+
+    public SBrickRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Connect found SBricks strongest signal first. SBricks found in first 500ms
+     * of scan are ranked before connecting, later ones queue by their signal.
+     * Known SBricks of registry are connected right away, without ranking.
+     * Useful when more SBricks are in range than are needed, or when weak ones
+     * would block connection slots. Default is false, SBricks are connected in order they were found.
+     *
+     * @param strongestFirst true to connect strongest SBricks first
+     */
+    public void setConnectStrongestFirst(boolean strongestFirst) {
+        connectStrongestFirst = strongestFirst;
+        connectionManager.setConnectOrder(strongestFirst ? strongestFirstOrder : null);
+    }
+
+    /**
+     * Returns table of devices seen by last scan, with smoothed signal strength
+     * and time they were seen. Should be used on main thread.
+     *
+     * @return discovery table
+     */
+    public DiscoveryTable getDiscoveryTable() {
+        return discoveryTable;
+    }
+
+    /**
+     * @return SBricks found by last scan, strongest signal first. Known SBricks not seen by scan are last
+     */
+    public List<SBrick> getSBricksByRssi() {
+        List<SBrick> sbricks = new ArrayList<>(foundSBricks == null
+                ? Collections.<SBrick>emptyList() : foundSBricks.values());
+        Collections.sort(sbricks, strongestFirstOrder);
+        return sbricks;
+    }
+
+    /**
+     * @return smoothed signal strength of SBrick seen by last scan, DiscoveryTable.RSSI_UNKNOWN if it wasn't seen
+     */
+    public int getSmoothedRssi(SBrick sbrick) {
+        return discoveryTable.getSmoothedRssi(BluetoothAddress.toLong(sbrick.getId()));
+    }
+
+    private final Comparator<SBrick> strongestFirstOrder = (first, second) -> {
+        int firstRssi = getSmoothedRssi(first);
+        int secondRssi = getSmoothedRssi(second);
+        // unseen SBricks go last
+        if (firstRssi == DiscoveryTable.RSSI_UNKNOWN) firstRssi = Integer.MIN_VALUE;
+        if (secondRssi == DiscoveryTable.RSSI_UNKNOWN) secondRssi = Integer.MIN_VALUE;
+        return Integer.compare(secondRssi, firstRssi);
+    };
+
+    /**
+     * Returns manager connecting discovered SBricks, e.g. to set its listener
+     * or limit of concurrent connection attempts.
+     *
+     * @return connection manager
+     */
+    public SBrickConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * Starts bluetooth device discovery. Each new SBrick is passed to
+     * ConnectionCallback.handleSBrickFound() and queued for connection right away.
+     * Executes scanComplete() method when scan period passes or all expected SBricks are found.
+     * To notice SBricks switched on later, use PresenceMonitor instead of repeated scans.
+     * When earlier scans of the app used up Android scan quota, scan starts as soon as
+     * quota allows, known SBricks of registry are connected right away.
      *
      * @return true is discovery started without problems
      */
@@ -80,24 +241,76 @@ public class ConnectionHelper {
             Log.e(TAG, "scanForSBricks - already scanning");
             return false;
         }
-        scanResults = new HashMap<>();
-        scanCallback = new ConnectionHelper.BtLeScanCallback(scanResults);
+        if (bluetoothAdapter == null || bluetoothAdapter.getBluetoothLeScanner() == null) {
+            Log.e(TAG, "scanForSBricks - bluetooth turned off");
+            return false;
+        }
+        discoveryTable.clear();
+        foundSBricks = new HashMap<>();
+        pendingKnown = new HashSet<>();
+        scanCallback = new ConnectionHelper.BtLeScanCallback();
+        scanHandler = new Handler();
+        rankedSBricks.clear();
+        ranking = connectStrongestFirst;
+        connectKnownSBricks();
+        isScanning = true;
 
-        ScanFilter scanFilter = new ScanFilter.Builder()
-                .build();
-        List<ScanFilter> scanFilters = new ArrayList<>();
-        scanFilters.add(scanFilter);
+        long delay = ScanQuota.getDelayMillis(SystemClock.elapsedRealtime());
+        if (delay > 0) {
+            // scan started over quota would be silently ignored by Android
+            Log.w(TAG, "scanForSBricks - scan quota used, scan starts in " + delay + "ms");
+            scanHandler.postDelayed(this::startScan, delay);
+        } else {
+            startScan();
+        }
+        return true;
+    }
+
+    /**
+     * Starts scan of discovery set up by scanForSBricks(). Scan period and ranking
+     * delay count from here.
+     */
+    private void startScan() {
+        bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (bluetoothLeScanner == null) {
+            // turned off while scan waited for quota, known SBricks are delivered anyway
+            Log.e(TAG, "startScan - bluetooth turned off");
+            stopScan();
+            scanComplete();
+            return;
+        }
         // scan for Bluetooth LE devices only
         ScanSettings scanSettings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                .setScanMode(scanMode)
                 .build();
 
-        bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
-        bluetoothLeScanner.startScan(scanFilters, scanSettings, scanCallback);
-        scanHandler = new Handler();
+        bluetoothLeScanner.startScan(SBrickAdvertisement.buildScanFilters(scanFilters),
+                scanSettings, scanCallback);
+        ScanQuota.recordStart(SystemClock.elapsedRealtime());
+        if (ranking) {
+            scanHandler.postDelayed(this::connectRanked, RANKING_DELAY);
+        }
         scanHandler.postDelayed(this::stopScan, scanPeriod);
-        isScanning = true;
-        return true;
+    }
+
+    /**
+     * Creates SBricks of registry entries by address, without scan, and queues them for connection.
+     */
+    private void connectKnownSBricks() {
+        knownCount = 0;
+        if (registry == null) return;
+        registry.ageOut(System.currentTimeMillis());
+        for (SBrickRegistry.Entry entry : registry.getEntries()) {
+            String address = entry.getAddress();
+            if (!BluetoothAdapter.checkBluetoothAddress(address)) continue;
+            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+            addSBrick(device, false);
+            pendingKnown.add(address);
+        }
+        knownCount = pendingKnown.size();
+        if (!pendingKnown.isEmpty()) {
+            Log.d(TAG, "connecting " + pendingKnown.size() + " known SBricks");
+        }
     }
 
     /**
@@ -105,6 +318,11 @@ public class ConnectionHelper {
      */
     public void stopScan() {
         Log.d(TAG, "stopScan");
+        if (scanHandler != null) {
+            // stop posted by this scan could end next one early
+            scanHandler.removeCallbacksAndMessages(null);
+        }
+        connectRanked();
         if (isScanning
                 && bluetoothAdapter != null
                 && bluetoothAdapter.isEnabled()
@@ -118,39 +336,121 @@ public class ConnectionHelper {
     }
 
     /**
-     * Executed by scanForSBricks() after finished discovery.
-     * Iterates through scanResults in search of SBrick devices.
-     * Executes provided callback with SBrick HashMap
+     * Executed by scan callback for every scan result, after discovery table is updated.
+     * Creates SBrick when device is recognized for the first time, queues it for connection
+     * and executes provided callback. Stops scan if all expected SBricks are found.
+     * Later advertisements of recognized SBrick only update discovery table.
+     *
+     * @param result scan result of discovered bluetooth device
+     * @param address 48 bit address of device
      */
-    private void scanComplete() {
-        Log.d(TAG, "scanComplete");
-        Map<String, SBrick> sBricks = new HashMap<>();
-        if (!scanResults.isEmpty()) {
-            for (String deviceAddress : scanResults.keySet()) {
-                BluetoothDevice device = scanResults.get(deviceAddress);
-                Log.d(TAG, "device found - name: " + device.getName()
-                        + ", address: " + device.getAddress());
-                if (isSBrickDevice(device)) {
-                    Log.d(TAG, "device is SBrick");
-                    sBricks.put(device.getAddress(), new SBrick(applicationContext, device));
-                }
+    private void deviceFound(ScanResult result, long address) {
+        if (!isScanning || discoveryTable.isSBrick(address)) return;
+        BluetoothDevice device = result.getDevice();
+        if (foundSBricks.containsKey(device.getAddress())) {
+            // known SBrick is in range, it's already connecting
+            discoveryTable.markSBrick(address);
+            if (pendingKnown.remove(device.getAddress())) {
+                checkAllExpectedFound();
             }
+            return;
+        }
+        // scan response may arrive with later result, so unrecognized devices are checked again
+        if (!SBrickAdvertisement.isSBrick(result)) return;
+        Log.d(TAG, "SBrick found - address: " + device.getAddress() + ", rssi: " + result.getRssi());
+        discoveryTable.markSBrick(address);
+        addSBrick(device, ranking);
+        checkAllExpectedFound();
+    }
+
+    /**
+     * @param ranked true to connect SBrick when ranking delay passes, false to connect it right away
+     */
+    private void addSBrick(BluetoothDevice device, boolean ranked) {
+        SBrick sbrick = new SBrick(new GattTransport(applicationContext, device), false);
+        sbrick.addStateListener(registryUpdater);
+        foundSBricks.put(device.getAddress(), sbrick);
+        if (ranked) {
+            rankedSBricks.add(sbrick);
         } else {
+            connectionManager.connect(sbrick);
+        }
+        sBrickCallback.handleSBrickFound(sbrick);
+    }
+
+    /**
+     * Ranking delay passed, SBricks found so far are queued and connected strongest first.
+     */
+    private void connectRanked() {
+        if (!ranking) return;
+        ranking = false;
+        for (SBrick sbrick : rankedSBricks) {
+            connectionManager.connect(sbrick);
+        }
+        rankedSBricks.clear();
+    }
+
+    private void checkAllExpectedFound() {
+        if (isScanning && allExpectedFound()) {
+            Log.d(TAG, "all expected SBricks found after " + foundSBricks.size() + " SBricks");
+            stopScan();
+        }
+    }
+
+    /**
+     * Known SBricks count as found when they are ready or seen by scan. Without
+     * expected SBricks set, all known SBricks are expected.
+     */
+    private boolean allExpectedFound() {
+        if (expectedCount <= 0 && expectedAddresses.isEmpty()) {
+            return knownCount > 0 && pendingKnown.isEmpty();
+        }
+        if (expectedCount > 0 && foundSBricks.size() - pendingKnown.size() < expectedCount) return false;
+        for (String address : expectedAddresses) {
+            if (!foundSBricks.containsKey(address) || pendingKnown.contains(address)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Executed by stopScan() after finished discovery.
+     * Executes provided callback with HashMap of all SBricks found during discovery.
+     */
+    private void scanComplete() {
+        Log.d(TAG, "scanComplete - devices: " + discoveryTable.size() + ", SBricks: " + foundSBricks.size());
+        if (discoveryTable.size() == 0) {
             Log.w(TAG, "device scan results empty");
         }
-        sBrickCallback.handleSBrickCollection(sBricks);
+        sBrickCallback.handleSBrickCollection(foundSBricks);
     }
 
     /**
-     * Crude check if bluetooth device is SBrick.
-     * This method should be refactored if better solution is found.
-     *
-     * @param device
-     * @return true if device is SBrick
+     * Adds SBricks to registry when they get ready, file is saved on background thread.
      */
-    private boolean isSBrickDevice(BluetoothDevice device) {
-        if (device.getName() == null) return false;
-        return device.getName().equals("SBrick");
+    private class RegistryUpdater implements SBrickStateListener {
+        private final Runnable save = () -> {
+            if (registry != null) {
+                registry.saveInBackground();
+            }
+        };
+
+        @Override
+        public void onSBrickReady(SBrick sbrick) {
+            mainHandler.post(() -> {
+                if (pendingKnown.remove(sbrick.getId())) {
+                    checkAllExpectedFound();
+                }
+                if (registry == null) return;
+                BluetoothDevice device = ((GattTransport) sbrick.getTransport()).getDevice();
+                registry.markSeen(sbrick.getId(), device.getName(), System.currentTimeMillis());
+                mainHandler.removeCallbacks(save);
+                mainHandler.postDelayed(save, REGISTRY_SAVE_DELAY);
+            });
+        }
+
+        @Override
+        public void onSBrickDisconnected(SBrick sbrick, int status) {
+        }
     }
 
     /**
@@ -169,14 +469,9 @@ public class ConnectionHelper {
 
     /**
      * Default discover bluetooth device callback.
-     * Adds discovered devices to scanResults HashMap.
+     * Records discovered devices in discovery table and passes them to deviceFound().
      */
     private class BtLeScanCallback extends ScanCallback {
-        private Map<String, BluetoothDevice> scanResults;
-
-        BtLeScanCallback(Map<String, BluetoothDevice> scanResultsParam) {
-            scanResults = scanResultsParam;
-        }
 
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
@@ -196,8 +491,11 @@ public class ConnectionHelper {
 
         private void addScanResult(ScanResult result) {
             BluetoothDevice device = result.getDevice();
-            String deviceAddress = device.getAddress();
-            scanResults.put(deviceAddress, device);
+            // address is parsed in place, repeated advertisements don't allocate map entries
+            long address = BluetoothAddress.toLong(device.getAddress());
+            if (address == BluetoothAddress.INVALID) return;
+            discoveryTable.update(address, device, result.getRssi(), result.getTimestampNanos());
+            deviceFound(result, address);
         }
     }
 }
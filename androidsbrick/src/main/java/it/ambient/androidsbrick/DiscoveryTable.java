@@ -0,0 +1,317 @@
+package it.ambient.androidsbrick;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Arrays;
+
+/**
+ * Devices seen by scan, keyed by 48 bit address kept in long (see BluetoothAddress).
+ * Keeps smoothed signal strength, time of last advertisement and number of
+ * advertisements of each device.
+ *
+ * Entries live in parallel primitive arrays with open addressing, so update
+ * of already seen device, which is most of scan callbacks, doesn't allocate.
+ * Arrays grow only when table gets half full. Not thread safe, used on main
+ * thread like scan callbacks.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class DiscoveryTable {
+    /** Signal strength of device which wasn't seen. */
+    public static final int RSSI_UNKNOWN = SBrickMetrics.RSSI_UNKNOWN;
+    /** Weight of new RSSI reading in smoothed value. */
+    public static final float DEFAULT_SMOOTHING = 0.25f;
+
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final long EMPTY = BluetoothAddress.INVALID;
+
+    private final float smoothing;
+    private long[] addresses;
+    private float[] rssis;
+    private long[] lastSeenNanos;
+    private int[] seenCounts;
+    private boolean[] sbrickFlags;
+    private BluetoothDevice[] devices;
+    private int size;
+
+    public DiscoveryTable() {
+        this(DEFAULT_CAPACITY, DEFAULT_SMOOTHING);
+    }
+
+    /**
+     * Constructor
+     * @param expectedDevices number of devices table holds without growing
+     * @param smoothing weight of new RSSI reading, 0-1. Lower values smooth more
+     */
+    public DiscoveryTable(int expectedDevices, float smoothing) {
+        this.smoothing = smoothing;
+        allocate(Integer.highestOneBit(Math.max(8, expectedDevices * 2 - 1)) << 1);
+    }
+
+    /**
+     * Records advertisement of device.
+     * @param address 48 bit address
+     * @param device device of scan result, kept for connecting
+     * @param rssi signal strength in dBm
+     * @param timestampNanos time of advertisement, e.g. ScanResult.getTimestampNanos()
+     * @return true if device wasn't in table yet
+     */
+    public boolean update(long address, BluetoothDevice device, int rssi, long timestampNanos) {
+        int slot = find(address);
+        if (addresses[slot] == address) {
+            rssis[slot] += smoothing * (rssi - rssis[slot]);
+            lastSeenNanos[slot] = timestampNanos;
+            seenCounts[slot]++;
+            if (device != null) {
+                devices[slot] = device;
+            }
+            return false;
+        }
+        if (2 * (size + 1) > addresses.length) {
+            grow();
+            slot = find(address);
+        }
+        addresses[slot] = address;
+        rssis[slot] = rssi;
+        lastSeenNanos[slot] = timestampNanos;
+        seenCounts[slot] = 1;
+        sbrickFlags[slot] = false;
+        devices[slot] = device;
+        size++;
+        return true;
+    }
+
+    public boolean contains(long address) {
+        return addresses[find(address)] == address;
+    }
+
+    /**
+     * @return smoothed signal strength in dBm, RSSI_UNKNOWN if device wasn't seen
+     */
+    public int getSmoothedRssi(long address) {
+        int slot = find(address);
+        return addresses[slot] == address ? Math.round(rssis[slot]) : RSSI_UNKNOWN;
+    }
+
+    /**
+     * @return time of last advertisement, 0 if device wasn't seen
+     */
+    public long getLastSeenNanos(long address) {
+        int slot = find(address);
+        return addresses[slot] == address ? lastSeenNanos[slot] : 0;
+    }
+
+    /**
+     * @return number of advertisements received from device
+     */
+    public int getSeenCount(long address) {
+        int slot = find(address);
+        return addresses[slot] == address ? seenCounts[slot] : 0;
+    }
+
+    /**
+     * @return device of latest advertisement, null if device wasn't seen
+     */
+    public BluetoothDevice getDevice(long address) {
+        int slot = find(address);
+        return addresses[slot] == address ? devices[slot] : null;
+    }
+
+    /**
+     * Marks device as recognized SBrick, so its later advertisements aren't examined again.
+     */
+    public void markSBrick(long address) {
+        int slot = find(address);
+        if (addresses[slot] == address) {
+            sbrickFlags[slot] = true;
+        }
+    }
+
+    public boolean isSBrick(long address) {
+        int slot = find(address);
+        return addresses[slot] == address && sbrickFlags[slot];
+    }
+
+    /**
+     * Updates time device was seen without new advertisement, e.g. for connected
+     * SBrick, which doesn't advertise while connected.
+     */
+    public void touch(long address, long timestampNanos) {
+        int slot = find(address);
+        if (addresses[slot] == address) {
+            lastSeenNanos[slot] = timestampNanos;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes device from table.
+     * @return true if device was in table
+     */
+    public boolean remove(long address) {
+        int slot = find(address);
+        if (addresses[slot] != address) return false;
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Removes devices not seen since given time.
+     * @param nanos time in the same clock as advertisement timestamps
+     * @return number of removed devices
+     */
+    public int removeSeenBefore(long nanos) {
+        int mask = addresses.length - 1;
+        // sweep starts at empty slot, table is at most half full, so no run of
+        // entries wraps from end of sweep to its start and shifted entries are
+        // never moved into already swept slot
+        int start = 0;
+        while (addresses[start] != EMPTY) {
+            start++;
+        }
+        int removed = 0;
+        for (int i = 1; i <= mask; i++) {
+            int slot = (start + i) & mask;
+            // slot is checked again when later entry was shifted into it
+            while (addresses[slot] != EMPTY && lastSeenNanos[slot] - nanos < 0) {
+                removeSlot(slot);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns addresses of devices not seen since given time, without removing them.
+     * Allocates result, meant for periodic checks, not for each advertisement.
+     * @param nanos time in the same clock as advertisement timestamps
+     * @param sbricksOnly true to skip devices not marked as SBricks
+     * @return 48 bit addresses
+     */
+    public long[] getSeenBefore(long nanos, boolean sbricksOnly) {
+        long[] found = new long[size];
+        int count = 0;
+        for (int slot = 0; slot < addresses.length; slot++) {
+            if (addresses[slot] == EMPTY || lastSeenNanos[slot] - nanos >= 0) continue;
+            if (sbricksOnly && !sbrickFlags[slot]) continue;
+            found[count++] = addresses[slot];
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    public void clear() {
+        Arrays.fill(addresses, EMPTY);
+        Arrays.fill(devices, null);
+        size = 0;
+    }
+
+    /**
+     * Returns addresses of SBricks seen since given time, strongest signal first.
+     * Allocates result, meant for occasional ranking, not for each advertisement.
+     * @param seenSinceNanos time in the same clock as advertisement timestamps
+     * @param sbricksOnly true to skip devices not marked as SBricks
+     * @return 48 bit addresses
+     */
+    public long[] rankByRssi(long seenSinceNanos, boolean sbricksOnly) {
+        long[] ranked = new long[size];
+        float[] rankedRssis = new float[size];
+        int count = 0;
+        for (int slot = 0; slot < addresses.length; slot++) {
+            if (addresses[slot] == EMPTY || lastSeenNanos[slot] - seenSinceNanos < 0) continue;
+            if (sbricksOnly && !sbrickFlags[slot]) continue;
+            // insertion sort, tables hold tens of devices
+            int position = count++;
+            while (position > 0 && rankedRssis[position - 1] < rssis[slot]) {
+                ranked[position] = ranked[position - 1];
+                rankedRssis[position] = rankedRssis[position - 1];
+                position--;
+            }
+            ranked[position] = addresses[slot];
+            rankedRssis[position] = rssis[slot];
+        }
+        return count == size ? ranked : Arrays.copyOf(ranked, count);
+    }
+
+    /**
+     * @return slot holding address, or empty slot where it belongs
+     */
+    private int find(long address) {
+        int mask = addresses.length - 1;
+        int slot = hash(address) & mask;
+        while (addresses[slot] != EMPTY && addresses[slot] != address) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Removes entry with linear probing backward shift, so lookups don't need tombstones.
+     */
+    private void removeSlot(int slot) {
+        int mask = addresses.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (addresses[next] != EMPTY) {
+            int home = hash(addresses[next]) & mask;
+            // entry can move to hole if its home isn't between hole and its slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                moveSlot(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        addresses[hole] = EMPTY;
+        devices[hole] = null;
+        size--;
+    }
+
+    private void moveSlot(int from, int to) {
+        addresses[to] = addresses[from];
+        rssis[to] = rssis[from];
+        lastSeenNanos[to] = lastSeenNanos[from];
+        seenCounts[to] = seenCounts[from];
+        sbrickFlags[to] = sbrickFlags[from];
+        devices[to] = devices[from];
+    }
+
+    private void grow() {
+        long[] oldAddresses = addresses;
+        float[] oldRssis = rssis;
+        long[] oldLastSeen = lastSeenNanos;
+        int[] oldSeenCounts = seenCounts;
+        boolean[] oldFlags = sbrickFlags;
+        BluetoothDevice[] oldDevices = devices;
+        allocate(oldAddresses.length * 2);
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] == EMPTY) continue;
+            int slot = find(oldAddresses[i]);
+            addresses[slot] = oldAddresses[i];
+            rssis[slot] = oldRssis[i];
+            lastSeenNanos[slot] = oldLastSeen[i];
+            seenCounts[slot] = oldSeenCounts[i];
+            sbrickFlags[slot] = oldFlags[i];
+            devices[slot] = oldDevices[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        addresses = new long[capacity];
+        Arrays.fill(addresses, EMPTY);
+        rssis = new float[capacity];
+        lastSeenNanos = new long[capacity];
+        seenCounts = new int[capacity];
+        sbrickFlags = new boolean[capacity];
+        devices = new BluetoothDevice[capacity];
+    }
+
+    /**
+     * Addresses of one manufacturer share upper bytes, so bits are mixed before masking.
+     */
+    private static int hash(long address) {
+        long mixed = address * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 32) ^ (int) mixed;
+    }
+}
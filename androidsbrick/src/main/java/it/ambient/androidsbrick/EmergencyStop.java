@@ -0,0 +1,246 @@
+package it.ambient.androidsbrick;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import it.ambient.androidsbrick.transport.IoThread;
+
+/**
+ * Stops all channels of whole SBrick fleet as fast as links allow, e.g. for
+ * public installation.
+ *
+ * Each SBrick drops everything pending: queued commands, channel state not yet
+ * written, ramps and retries. Stop of all channels becomes its very next write,
+ * acknowledged even in fast mode, written on all links in one pass of I/O thread.
+ * Write already in flight can't be cancelled, so stop waits for its completion
+ * at most. Acknowledgement and latency of each SBrick are reported in Result.
+ * Commands executed after trigger() are written after the stop.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class EmergencyStop {
+    private final SBrick[] sbricks;
+    private volatile Listener listener;
+    private volatile Result lastResult;
+    private volatile long maxLatencyNanos;
+
+    /**
+     * Outcome of stop on one SBrick.
+     */
+    public enum Status {
+        /** Stop was acknowledged by SBrick. */
+        ACKNOWLEDGED,
+        /** Stop write failed repeatedly or link was lost before acknowledgement. */
+        FAILED,
+        /**
+         * SBrick wasn't ready for commands, e.g. while reconnecting. Everything pending
+         * is dropped all the same, stopped channels are written if link recovers.
+         */
+        NOT_CONNECTED
+    }
+
+    /**
+     * Receives result when every SBrick acknowledged stop or failed. Called on I/O thread.
+     */
+    public interface Listener {
+        void onEmergencyStopCompleted(EmergencyStop emergencyStop, Result result);
+    }
+
+    /**
+     * Constructor
+     * @param sbricks SBricks to stop
+     */
+    public EmergencyStop(SBrick... sbricks) {
+        this.sbricks = sbricks.clone();
+    }
+
+    /**
+     * Constructor
+     * @param sbricks SBricks to stop, e.g. from ConnectionCallback.handleSBrickCollection()
+     */
+    public EmergencyStop(Collection<SBrick> sbricks) {
+        this.sbricks = sbricks.toArray(new SBrick[0]);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Stops all channels of all SBricks. Can be called from any thread,
+     * result is passed to listener.
+     */
+    public void trigger() {
+        Dispatch dispatch = new Dispatch(sbricks);
+        if (sbricks.length == 0) {
+            onDispatchComplete(dispatch);
+            return;
+        }
+        // usually all SBricks share one I/O thread, so they're stopped in one pass
+        List<IoThread> ioThreads = new ArrayList<>(1);
+        for (SBrick sbrick : sbricks) {
+            IoThread ioThread = sbrick.getIoThread();
+            if (!ioThreads.contains(ioThread)) {
+                ioThreads.add(ioThread);
+                ioThread.post(() -> fanOut(ioThread, dispatch));
+            }
+        }
+    }
+
+    /**
+     * @return result of last completed stop, null if none completed yet
+     */
+    public Result getLastResult() {
+        return lastResult;
+    }
+
+    /**
+     * @return longest time from trigger() to acknowledgement measured by this instance, in nanoseconds
+     */
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    private void fanOut(IoThread ioThread, Dispatch dispatch) {
+        for (SBrick sbrick : sbricks) {
+            if (sbrick.getIoThread() == ioThread) {
+                sbrick.emergencyStop(dispatch);
+            }
+        }
+    }
+
+    private void onDispatchComplete(Dispatch dispatch) {
+        Result result = new Result(sbricks, dispatch.statuses.clone(), dispatch.latencies.clone());
+        synchronized (this) {
+            lastResult = result;
+            if (result.getWorstLatencyNanos() > maxLatencyNanos) {
+                maxLatencyNanos = result.getWorstLatencyNanos();
+            }
+        }
+        Listener currentListener = listener;
+        if (currentListener != null) {
+            currentListener.onEmergencyStopCompleted(this, result);
+        }
+    }
+
+    /**
+     * Outcome of one emergency stop on each SBrick. Immutable.
+     */
+    public static class Result {
+        private final SBrick[] sbricks;
+        private final Status[] statuses;
+        private final long[] latencies;
+
+        private Result(SBrick[] sbricks, Status[] statuses, long[] latencies) {
+            this.sbricks = sbricks;
+            this.statuses = statuses;
+            this.latencies = latencies;
+        }
+
+        /**
+         * @return status of SBrick, null if it wasn't stopped by this emergency stop
+         */
+        public Status getStatus(SBrick sbrick) {
+            int index = indexOf(sbrick);
+            return index < 0 ? null : statuses[index];
+        }
+
+        /**
+         * @return time from trigger() to acknowledgement of SBrick in nanoseconds, -1 if not acknowledged
+         */
+        public long getLatencyNanos(SBrick sbrick) {
+            int index = indexOf(sbrick);
+            return index < 0 || statuses[index] != Status.ACKNOWLEDGED ? -1 : latencies[index];
+        }
+
+        public int getCount(Status status) {
+            int count = 0;
+            for (Status current : statuses) {
+                if (current == status) count++;
+            }
+            return count;
+        }
+
+        /**
+         * @return true if every SBrick acknowledged stop
+         */
+        public boolean isAllAcknowledged() {
+            return getCount(Status.ACKNOWLEDGED) == statuses.length;
+        }
+
+        /**
+         * @return latency of slowest acknowledged SBrick, in nanoseconds
+         */
+        public long getWorstLatencyNanos() {
+            long worst = 0;
+            for (int i = 0; i < statuses.length; i++) {
+                if (statuses[i] == Status.ACKNOWLEDGED && latencies[i] > worst) {
+                    worst = latencies[i];
+                }
+            }
+            return worst;
+        }
+
+        private int indexOf(SBrick sbrick) {
+            for (int i = 0; i < sbricks.length; i++) {
+                if (sbricks[i] == sbrick) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{acknowledged=" + getCount(Status.ACKNOWLEDGED)
+                    + ", failed=" + getCount(Status.FAILED)
+                    + ", notConnected=" + getCount(Status.NOT_CONNECTED)
+                    + ", worstLatencyMs=" + getWorstLatencyNanos() / 1_000_000.0 + "}";
+        }
+    }
+
+    /**
+     * Single trigger of emergency stop. Completed when every SBrick reported its status.
+     */
+    class Dispatch {
+        final long startNanos = System.nanoTime();
+        private final SBrick[] targets;
+        private final Status[] statuses;
+        private final long[] latencies;
+        private int remaining;
+
+        Dispatch(SBrick[] targets) {
+            this.targets = targets;
+            this.statuses = new Status[targets.length];
+            this.latencies = new long[targets.length];
+            this.remaining = targets.length;
+        }
+
+        void onAcknowledged(SBrick sbrick, long acknowledgedNanos) {
+            complete(sbrick, Status.ACKNOWLEDGED, acknowledgedNanos - startNanos);
+        }
+
+        void onFailed(SBrick sbrick) {
+            complete(sbrick, Status.FAILED, -1);
+        }
+
+        void onNotConnected(SBrick sbrick) {
+            complete(sbrick, Status.NOT_CONNECTED, -1);
+        }
+
+        private void complete(SBrick sbrick, Status status, long latencyNanos) {
+            synchronized (this) {
+                for (int i = 0; i < targets.length; i++) {
+                    // the same SBrick may be listed twice, each entry is completed once
+                    if (targets[i] == sbrick && statuses[i] == null) {
+                        statuses[i] = status;
+                        latencies[i] = latencyNanos;
+                        remaining--;
+                        break;
+                    }
+                }
+                if (remaining > 0) return;
+            }
+            onDispatchComplete(this);
+        }
+    }
+}
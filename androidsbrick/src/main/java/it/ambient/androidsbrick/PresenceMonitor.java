@@ -0,0 +1,367 @@
+package it.ambient.androidsbrick;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import it.ambient.androidsbrick.transport.GattTransport;
+
+/**
+ * Watches which SBricks are in range for whole session, e.g. to notice SBricks
+ * switched on or carried away while app runs.
+ *
+ * SBrick appears when its first advertisement is seen, and is lost when it
+ * wasn't seen for lost timeout. Connected SBrick doesn't advertise, so it stays
+ * present until it disconnects. With connection manager set, appeared SBricks
+ * are connected right away. SBrick instances are kept, the same instance
+ * appears again after being lost.
+ *
+ * By default scan runs continuously, so SBrick switched on is found within
+ * about a second. Scan can be duty cycled to save battery, e.g. in background,
+ * then SBricks are found only during scan windows. Android allows 5 scan starts
+ * in 30 seconds, so scan interval is at least 6.1 seconds. When other scans of
+ * the app used up the quota, window starts late, as soon as quota allows.
+ * Continuous scan is restarted every 25 minutes, as Android demotes longer scans.
+ *
+ * Methods should be called on main thread, listener is notified on main thread too.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class PresenceMonitor {
+    private static final String TAG = "PresenceMonitor";
+    private static final long CONTINUOUS_RESTART_PERIOD = 25 * 60 * 1000; // ms
+    private static final long LOST_CHECK_PERIOD = 500; // ms
+
+    private long scanWindow         = 0;     // ms, 0 for continuous scan
+    private long scanInterval       = 0;     // ms
+    private long lostTimeout        = 5000;  // ms
+    private int scanMode            = ScanSettings.SCAN_MODE_LOW_LATENCY;
+    private int scanFilters         = SBrickAdvertisement.FILTER_MANUFACTURER_DATA
+                                        | SBrickAdvertisement.FILTER_SERVICE_UUID;
+
+    private Context applicationContext;
+    private BluetoothAdapter bluetoothAdapter;
+    private BluetoothLeScanner bluetoothLeScanner;
+    private ScanCallback scanCallback = new PresenceScanCallback();
+    private Handler handler = new Handler();
+    private DiscoveryTable discoveryTable = new DiscoveryTable();
+    private Map<String, SBrick> sbricks = new HashMap<>();
+    private SBrickConnectionManager connectionManager;
+    private Listener listener;
+    private boolean running = false;
+    private boolean isScanning = false;
+
+    /**
+     * Receives SBricks coming into and going out of range.
+     */
+    public interface Listener {
+        /**
+         * @param rssi signal strength of first advertisement in dBm
+         */
+        void onSBrickAppeared(SBrick sbrick, int rssi);
+
+        void onSBrickLost(SBrick sbrick);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context Application Context
+     * @param listener Listener
+     */
+    public PresenceMonitor(Context context, Listener listener) {
+        applicationContext = context;
+        this.listener = listener;
+        final BluetoothManager bluetoothManager
+                = (BluetoothManager) applicationContext.getSystemService(Context.BLUETOOTH_SERVICE);
+        bluetoothAdapter = bluetoothManager.getAdapter();
+    }
+
+    /**
+     * Set bluetooth scan mode used during scan windows. SCAN_MODE_LOW_POWER
+     * scans only part of time, SBricks are found within few seconds.
+     * Default is ScanSettings.SCAN_MODE_LOW_LATENCY.
+     *
+     * @param mode one of ScanSettings.SCAN_MODE_* constants
+     */
+    public void setScanMode(int mode) {
+        scanMode = mode;
+    }
+
+    /**
+     * Set which advertisement data Bluetooth controller filters devices by.
+     * Default is manufacturer data and remote control service UUID.
+     *
+     * @param filters combination of SBrickAdvertisement.FILTER_* flags
+     */
+    public void setScanFilters(int filters) {
+        scanFilters = filters;
+    }
+
+    /**
+     * Scan only for window at start of each interval. Interval shorter than
+     * 6.1 seconds is stretched to stay within Android scan quota. Applied at next window.
+     * Default is continuous scan.
+     *
+     * @param windowMillis scan time in each interval
+     * @param intervalMillis time between window starts, equal to window for continuous scan
+     */
+    public void setDutyCycle(long windowMillis, long intervalMillis) {
+        if (windowMillis <= 0 || intervalMillis < windowMillis) {
+            throw new IllegalArgumentException("Invalid duty cycle: " + windowMillis + "/" + intervalMillis + "ms");
+        }
+        if (windowMillis == intervalMillis) {
+            scanWindow = 0;
+            scanInterval = 0;
+        } else {
+            scanWindow = windowMillis;
+            scanInterval = Math.max(intervalMillis, ScanQuota.MIN_INTERVAL);
+        }
+    }
+
+    /**
+     * Set how long SBrick isn't seen before it's lost. Time between scan windows
+     * is added, so SBricks aren't lost only because scan paused.
+     * Default is 5 seconds (5000ms).
+     *
+     * @param timeout lost timeout in miliseconds
+     */
+    public void setLostTimeout(long timeout) {
+        lostTimeout = timeout;
+    }
+
+    /**
+     * Set manager connecting appeared SBricks, e.g. ConnectionHelper.getConnectionManager().
+     * Connection attempts of lost SBricks are cancelled.
+     *
+     * @param manager connection manager, null to only report presence
+     */
+    public void setConnectionManager(SBrickConnectionManager manager) {
+        connectionManager = manager;
+    }
+
+    /**
+     * Adds SBricks created elsewhere, e.g. by ConnectionHelper, so they are
+     * reported when they appear instead of new instances.
+     *
+     * @param sbricks SBricks, e.g. from ConnectionCallback.handleSBrickCollection()
+     */
+    public void addSBricks(Collection<SBrick> sbricks) {
+        for (SBrick sbrick : sbricks) {
+            this.sbricks.put(sbrick.getId(), sbrick);
+        }
+    }
+
+    /**
+     * @return all SBricks seen by monitor or added to it, by address
+     */
+    public Map<String, SBrick> getSBricks() {
+        return sbricks;
+    }
+
+    /**
+     * @return SBricks in range or connected
+     */
+    public List<SBrick> getPresentSBricks() {
+        List<SBrick> present = new ArrayList<>();
+        for (SBrick sbrick : sbricks.values()) {
+            if (discoveryTable.isSBrick(BluetoothAddress.toLong(sbrick.getId()))) {
+                present.add(sbrick);
+            }
+        }
+        return present;
+    }
+
+    /**
+     * @return table of devices in range, with smoothed signal strength and time they were seen
+     */
+    public DiscoveryTable getDiscoveryTable() {
+        return discoveryTable;
+    }
+
+    /**
+     * Starts monitoring, until stop() is called.
+     *
+     * @return false if bluetooth isn't enabled or monitor already runs
+     */
+    public boolean start() {
+        Log.d(TAG, "start()");
+        if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
+            Log.e(TAG, "start - bluetooth not enabled");
+            return false;
+        }
+        if (running) {
+            Log.e(TAG, "start - already running");
+            return false;
+        }
+        running = true;
+        startWindow.run();
+        handler.postDelayed(checkLost, LOST_CHECK_PERIOD);
+        return true;
+    }
+
+    /**
+     * Stops monitoring. Present SBricks aren't reported as lost, connected ones stay connected.
+     */
+    public void stop() {
+        Log.d(TAG, "stop()");
+        running = false;
+        handler.removeCallbacksAndMessages(null);
+        stopScan();
+        discoveryTable.clear();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private final Runnable startWindow = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+            long now = SystemClock.elapsedRealtime();
+            long delay = ScanQuota.getDelayMillis(now);
+            if (delay > 0) {
+                Log.w(TAG, "scan quota used, next window in " + delay + "ms");
+                handler.postDelayed(this, delay);
+                return;
+            }
+            if (!startScan()) {
+                // bluetooth turned off, monitor waits until it's back
+                handler.postDelayed(this, Math.max(scanInterval, LOST_CHECK_PERIOD));
+                return;
+            }
+            ScanQuota.recordStart(now);
+            handler.postDelayed(endWindow, scanWindow > 0 ? scanWindow : CONTINUOUS_RESTART_PERIOD);
+        }
+    };
+
+    private final Runnable endWindow = new Runnable() {
+        @Override
+        public void run() {
+            stopScan();
+            handler.postDelayed(startWindow, scanWindow > 0 ? scanInterval - scanWindow : 0);
+        }
+    };
+
+    private final Runnable checkLost = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+            long now = SystemClock.elapsedRealtimeNanos();
+            long timeout = lostTimeout + (scanWindow > 0 ? scanInterval - scanWindow : 0);
+            long cutoff = now - timeout * 1_000_000L;
+            for (long address : discoveryTable.getSeenBefore(cutoff, true)) {
+                SBrick sbrick = sbricks.get(BluetoothAddress.toString(address));
+                if (sbrick != null && sbrick.isConnected()) {
+                    discoveryTable.touch(address, now);
+                    continue;
+                }
+                discoveryTable.remove(address);
+                if (sbrick == null) continue;
+                Log.d(TAG, "SBrick lost - address: " + sbrick.getId());
+                if (connectionManager != null) {
+                    connectionManager.cancel(sbrick);
+                }
+                listener.onSBrickLost(sbrick);
+            }
+            // devices never recognized as SBricks
+            discoveryTable.removeSeenBefore(cutoff);
+            handler.postDelayed(this, LOST_CHECK_PERIOD);
+        }
+    };
+
+    private boolean startScan() {
+        if (!bluetoothAdapter.isEnabled()) return false;
+        bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (bluetoothLeScanner == null) return false;
+        ScanSettings scanSettings = new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .build();
+        bluetoothLeScanner.startScan(SBrickAdvertisement.buildScanFilters(scanFilters),
+                scanSettings, scanCallback);
+        isScanning = true;
+        return true;
+    }
+
+    private void stopScan() {
+        if (isScanning
+                && bluetoothAdapter != null
+                && bluetoothAdapter.isEnabled()
+                && bluetoothLeScanner != null) {
+            bluetoothLeScanner.stopScan(scanCallback);
+        }
+        isScanning = false;
+    }
+
+    /**
+     * Executed for every scan result, after discovery table is updated. Reports SBrick
+     * appearing for the first time or again after being lost, and queues it for connection.
+     *
+     * @param result scan result of discovered bluetooth device
+     * @param address 48 bit address of device
+     */
+    private void deviceFound(ScanResult result, long address) {
+        if (discoveryTable.isSBrick(address)) return;
+        BluetoothDevice device = result.getDevice();
+        SBrick sbrick = sbricks.get(device.getAddress());
+        if (sbrick == null) {
+            // scan response may arrive with later result, so unrecognized devices are checked again
+            if (!SBrickAdvertisement.isSBrick(result)) return;
+            sbrick = new SBrick(new GattTransport(applicationContext, device), false);
+            sbricks.put(device.getAddress(), sbrick);
+        }
+        Log.d(TAG, "SBrick appeared - address: " + device.getAddress() + ", rssi: " + result.getRssi());
+        discoveryTable.markSBrick(address);
+        if (connectionManager != null && !sbrick.isConnected()) {
+            connectionManager.connect(sbrick);
+        }
+        listener.onSBrickAppeared(sbrick, result.getRssi());
+    }
+
+    /**
+     * Records advertisements in discovery table and passes them to deviceFound().
+     */
+    private class PresenceScanCallback extends ScanCallback {
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            addScanResult(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                addScanResult(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "onScanFailed errorCode: " + errorCode);
+        }
+
+        private void addScanResult(ScanResult result) {
+            if (!running) return;
+            BluetoothDevice device = result.getDevice();
+            long address = BluetoothAddress.toLong(device.getAddress());
+            if (address == BluetoothAddress.INVALID) return;
+            discoveryTable.update(address, device, result.getRssi(), result.getTimestampNanos());
+            deviceFound(result, address);
+        }
+    }
+}
@@ -1,45 +1,168 @@
 package it.ambient.androidsbrick;
 
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
-import android.os.Handler;
 import android.util.Log;
 
-import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import it.ambient.androidsbrick.command.ChannelHandoff;
+import it.ambient.androidsbrick.command.ChannelState;
+import it.ambient.androidsbrick.command.CommandBatch;
+import it.ambient.androidsbrick.command.CommandBuffer;
+import it.ambient.androidsbrick.command.QueryAdcCommand;
+import it.ambient.androidsbrick.command.QueryWatchdogTimeoutCommand;
+import it.ambient.androidsbrick.command.RampCommand;
+import it.ambient.androidsbrick.command.RotateCommand;
 import it.ambient.androidsbrick.command.SBrickCommand;
+import it.ambient.androidsbrick.command.SBrickProtocol;
+import it.ambient.androidsbrick.command.SetWatchdogTimeoutCommand;
 import it.ambient.androidsbrick.command.StopCommand;
+import it.ambient.androidsbrick.command.TelemetryBuffer;
+import it.ambient.androidsbrick.command.TelemetrySample;
+import it.ambient.androidsbrick.transport.ConnectionProfile;
+import it.ambient.androidsbrick.transport.GattTransport;
+import it.ambient.androidsbrick.transport.IoThread;
+import it.ambient.androidsbrick.transport.KeepAliveScheduler;
+import it.ambient.androidsbrick.transport.LatencyHistogram;
+import it.ambient.androidsbrick.transport.LinkParameters;
+import it.ambient.androidsbrick.transport.SBrickTransport;
+import it.ambient.androidsbrick.transport.TransportListener;
+import it.ambient.androidsbrick.transport.WriteStats;
 
 /**
  * SBrick instance. Allows sending commands to SBrick GATT service and characteristic.
  *
+ * Commands can be executed from any thread. Writes, their completions and
+ * timers run on I/O thread, shared by all SBricks of Bluetooth adapter.
+ * SBrickStateListener is notified on I/O thread too.
+ *
  * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
  */
 public class SBrick {
     private static final String TAG = "SBrick";
-    private static final UUID SERVICE_REMOTE_CONTROL
-            = UUID.fromString("4dc591b0-857c-41de-b5f1-15abda665b0c");
-    private static final UUID CHARACTERISTIC_REMOTE_CONTROL_COMMANDS
-            = UUID.fromString("2b8cbcc-0e25-4bda-8790-a15f53e6010f");
     private static final int COMMAND_BUFFER_SIZE = 3;
+    private static final int DEFAULT_WATCHDOG_TIMEOUT = 500;
+    private static final int RETRY_BASE_DELAY = 10;
+    private static final int RETRY_BACKOFF_STEPS = 4;
+    private static final int MAX_COMMAND_RETRIES = 5;
+    private static final int WRITE_TIMEOUT = 1000;
+    private static final int FAST_MODE_ACKNOWLEDGED_PERIOD = 500;
+    private static final long DEFAULT_CONNECTION_INTERVAL_MICROS = 15000;
+    private static final int DEFAULT_CREDITS_PER_INTERVAL = 4;
+    private static final int PREFERRED_MTU = 247;
+    private static final int IDLE_PROFILE_DELAY = 2000;
+    private static final int TELEMETRY_BUFFER_SIZE = 64;
+    private static final int RECONNECT_BASE_DELAY = 250;
+    private static final int RECONNECT_MAX_DELAY = 8000;
+    /** Watchdog timeout isn't set at connect, SBrick keeps its current one. */
+    public static final int WATCHDOG_UNCHANGED = -1;
+
+    /**
+     * Channel state after automatic reconnect.
+     */
+    public enum ResumeMode {
+        /** Channels are driven again as last commanded, e.g. train keeps its speed. */
+        LAST_STATE,
+        /** All channels are stopped when link is lost, until application commands them again. */
+        STOP
+    }
+
+    private SBrickTransport transport;
+    private IoThread ioThread;
+    private volatile boolean isConnected;
+    private AtomicBoolean isConnecting = new AtomicBoolean();
+    private volatile long connectStartNanos;
+    private volatile long connectDurationNanos;
+    private List<SBrickStateListener> stateListeners = new CopyOnWriteArrayList<>();
+    private SBrickTransportListener transportListener = new SBrickTransportListener();
+    private volatile boolean isReady;
+    // fields below are accessed on I/O thread only, unless marked volatile
+    private boolean writeInFlight;
+    private boolean retryScheduled;
+    private int consecutiveFailures;
+    private long writeStartNanos;
+    private volatile long lastWriteNanos;
+    private KeepAliveScheduler keepAliveScheduler = KeepAliveScheduler.getShared();
+    private KeepAliveLink keepAliveLink = new KeepAliveLink();
+    private volatile int requestedWatchdogMillis = WATCHDOG_UNCHANGED;
+    private volatile int watchdogTimeoutMillis = DEFAULT_WATCHDOG_TIMEOUT;
+    private volatile long keepAlivePeriodNanos = keepAlivePeriodNanos(DEFAULT_WATCHDOG_TIMEOUT);
+    // watchdog setup, written at connect before other commands
+    private byte[] watchdogSetStream;
+    private byte[] watchdogQueryStream;
+    private WriteStats writeStats = new WriteStats();
+    private LatencyHistogram latencyHistogram = new LatencyHistogram();
+    private AtomicLong commandsIssued = new AtomicLong();
+    private AtomicLong commandsDropped = new AtomicLong();
+    private volatile int readyCount;
+    private volatile int rssi = SBrickMetrics.RSSI_UNKNOWN;
+    private volatile SBrickMetricsListener metricsListener;
+    private volatile long metricsPeriodMillis;
+
+    private volatile TimelineRecorder recorder;
 
-    private Context appContext;
-    private BluetoothDevice bluetoothDevice;
-    private BluetoothGatt gatt;
-    private BluetoothGattService serviceRemoteControl;
-    private BluetoothGattCharacteristic characteristicRemoteControl;
-    private boolean isConnected;
-    private Handler timerHandler = new Handler();
+    private volatile boolean autoReconnect;
+    private volatile ResumeMode resumeMode = ResumeMode.STOP;
+    private volatile boolean reconnecting;
+    private int reconnectAttempts;
+    private long linkLostNanos;
+    private volatile long lastRecoveryNanos;
+    private Random random = new Random();
 
-    private ArrayDeque<byte[]> preparedStreams = new ArrayDeque<>();
-    private byte[] lastStream;
+    private volatile boolean fastMode;
+    private boolean inFlightAcknowledged;
+    private long lastAcknowledgedWriteNanos;
+    private long connectionIntervalNanos = DEFAULT_CONNECTION_INTERVAL_MICROS * 1000;
+    private int creditsPerInterval = DEFAULT_CREDITS_PER_INTERVAL;
+    private int credits;
+    private long creditsRefillNanos;
+    private boolean paceScheduled;
+    private boolean rampStepScheduled;
+    private WriteStats fastModeWriteStats = new WriteStats();
+
+    private volatile ConnectionProfile connectionProfile = ConnectionProfile.BALANCED;
+    private volatile ConnectionProfile idleConnectionProfile;
+    private volatile ConnectionProfile appliedConnectionProfile;
+
+    // latest channel state, passed from executing threads to I/O thread without locks
+    private ChannelHandoff channelHandoff = new ChannelHandoff();
+    private AtomicBoolean writeRequested = new AtomicBoolean();
+    private ChannelState channelState = new ChannelState();
+    // guarded by itself, other commands are rare
+    private CommandBuffer preparedStreams = new CommandBuffer(COMMAND_BUFFER_SIZE);
+    private byte[] scratchStream = new byte[SBrickCommand.MAX_STREAM_LENGTH];
+    private byte[][] writeStreams = new byte[SBrickCommand.MAX_STREAM_LENGTH + 1][];
+    private byte[] inFlightStream;
+    private byte[] retryStream;
+    private SBrickGroup.Dispatch pendingDispatch;
+    // group dispatches posted with their state, adopted on I/O thread when state is drained
+    private ConcurrentLinkedQueue<SBrickGroup.Dispatch> postedDispatches = new ConcurrentLinkedQueue<>();
+    // emergency stop preempts everything else, see EmergencyStop
+    private List<EmergencyStop.Dispatch> emergencyDispatches = new ArrayList<>(1);
+    private List<EmergencyStop.Dispatch> inFlightEmergencyDispatches = new ArrayList<>(1);
+    private boolean emergencyStopPending;
+    private boolean emergencyStopInFlight;
+    private int emergencyStopFailures;
+
+    private List<SBrickTelemetryListener> telemetryListeners = new CopyOnWriteArrayList<>();
+    private List<SBrickResponseListener> responseListeners = new CopyOnWriteArrayList<>();
+    private TelemetryBuffer telemetryBuffer = new TelemetryBuffer(TELEMETRY_BUFFER_SIZE);
+    private byte[] telemetryStream;
+    private long telemetryPeriodNanos;
+    private long lastTelemetryNanos;
+    private boolean inFlightTelemetry;
+    // query written to SBrick, which response wasn't received yet
+    private byte[] awaitingQuery;
+    private boolean readInFlight;
+    // query responses are notified by SBrick, they aren't read
+    private boolean notificationsEnabled;
 
     /**
      * Constructor
@@ -47,12 +170,41 @@ public class SBrick {
      * @param device connected BluetoothDevice
      */
     public SBrick(Context context, BluetoothDevice device) {
-        appContext = context;
-        bluetoothDevice = device;
+        this(new GattTransport(context, device));
+    }
+
+    /**
+     * Constructor
+     * @param transport link to SBrick, e.g. GattTransport or SimulatedTransport
+     */
+    public SBrick(SBrickTransport transport) {
+        this(transport, true);
+    }
+
+    /**
+     * Constructor
+     * @param transport link to SBrick, e.g. GattTransport or SimulatedTransport
+     * @param connectNow false to connect later, with connect() or SBrickConnectionManager
+     */
+    public SBrick(SBrickTransport transport, boolean connectNow) {
+        this(transport, IoThread.getShared(), connectNow);
+    }
+
+    /**
+     * Constructor
+     * @param transport link to SBrick, e.g. GattTransport or SimulatedTransport
+     * @param ioThread thread running writes, e.g. separate one for each Bluetooth adapter
+     * @param connectNow false to connect later, with connect() or SBrickConnectionManager
+     */
+    public SBrick(SBrickTransport transport, IoThread ioThread, boolean connectNow) {
+        this.transport = transport;
+        this.ioThread = ioThread;
         StopCommand stopCommand = new StopCommand();
         stopCommand.allChannels();
         execute(stopCommand);
-        connectDevice();
+        if (connectNow) {
+            connect();
+        }
     }
 
     /**
@@ -60,124 +212,1266 @@ public class SBrick {
      * @return String SBrick id
      */
     public String getId() {
-        if (bluetoothDevice == null) return null;
-        return bluetoothDevice.getAddress();
+        if (transport == null) return null;
+        return transport.getAddress();
+    }
+
+    /**
+     * @return link used by this SBrick
+     */
+    public SBrickTransport getTransport() {
+        return transport;
     }
 
     /**
-     * Sets command for execution by SBrick
+     * Sets command for execution by SBrick. Rotate and stop commands overwrite
+     * pending state of their channels, latest values are sent as soon as previous
+     * write completes. Ramp command changes channel power on each write, until
+     * target is reached. Other commands are queued, up to 3 of them. Response
+     * to QueryAdcCommand is passed to SBrickTelemetryListener, responses to other
+     * queries to SBrickResponseListener.
+     * Can be called from any thread, command can be reused right after the call.
      * @param sbrickCommand command to execute
      * @return execution status
      */
     public boolean execute(SBrickCommand sbrickCommand) {
-//        Log.d(TAG, "execute");
-        try {
-            if (preparedStreams.size() < COMMAND_BUFFER_SIZE) {
-                preparedStreams.addFirst(sbrickCommand.getPreparedStream());
-            } else {
-                Log.w(TAG, "SBrick buffer of 3 consecutive commands exceeded, skipping command.");
-            }
-        } catch (IOException e) {
-            // Should never happen, see: https://stackoverflow.com/questions/6271934/java-ioexception-when-writing-to-a-bytearrayoutputstream
-            Log.e(TAG, e.toString());
-            return false;
+        commandsIssued.incrementAndGet();
+        TimelineRecorder currentRecorder = recorder;
+        if (currentRecorder != null) {
+            currentRecorder.record(this, sbrickCommand);
         }
+        if (sbrickCommand instanceof RampCommand) {
+            channelHandoff.post((RampCommand) sbrickCommand);
+        } else if (sbrickCommand instanceof RotateCommand) {
+            channelHandoff.post((RotateCommand) sbrickCommand);
+        } else if (sbrickCommand instanceof StopCommand) {
+            channelHandoff.post((StopCommand) sbrickCommand);
+        } else {
+            byte[] stream = sbrickCommand.getPreparedStream();
+            boolean queued;
+            synchronized (preparedStreams) {
+                queued = preparedStreams.offer(stream);
+            }
+            if (!queued) {
+                // buffer of 3 consecutive commands exceeded, reported by metrics
+                commandsDropped.incrementAndGet();
+                return false;
+            }
+        }
+        requestWrite();
         return true;
     }
 
     /**
-     * Sends prepared command to SBrick, used by timerCommandRepeater
+     * Sets commands of batch for execution by SBrick, e.g. settings together with
+     * channels. Other commands are encoded for negotiated MTU and queued together,
+     * or none of them if they don't fit into command buffer. SBrick executes one
+     * opcode per write, so each other command takes its own write. Rotate and stop
+     * commands of batch always go through channel state, like execute(SBrickCommand),
+     * they're never encoded as batch writes.
+     * Can be called from any thread, batch can be reused right after the call.
+     * @param batch commands to execute
+     * @return false if other commands didn't fit into command buffer, nothing is executed then
+     * @throws IllegalArgumentException if other command doesn't fit into one write
+     */
+    public boolean execute(CommandBatch batch) {
+        byte[][] streams = batch.encodeOtherCommands(transport.getMtu() - SBrickTransport.ATT_HEADER_LENGTH);
+        int otherCount = streams.length;
+        StopCommand stopCommand = batch.getStopCommand();
+        RotateCommand rotateCommand = batch.getRotateCommand();
+        commandsIssued.addAndGet(otherCount
+                + (stopCommand.getChannelMask() != 0 ? 1 : 0)
+                + (rotateCommand.getChannelMask() != 0 ? 1 : 0));
+        if (otherCount > 0) {
+            boolean queued;
+            synchronized (preparedStreams) {
+                queued = preparedStreams.offerAll(streams);
+            }
+            if (!queued) {
+                commandsDropped.addAndGet(otherCount);
+                return false;
+            }
+        }
+        TimelineRecorder currentRecorder = recorder;
+        if (currentRecorder != null) {
+            currentRecorder.record(this, stopCommand);
+            currentRecorder.record(this, rotateCommand);
+        }
+        // channel writes of batch are written from channel state, which coalesces and resumes them
+        if (stopCommand.getChannelMask() != 0) {
+            channelHandoff.post(stopCommand);
+        }
+        if (rotateCommand.getChannelMask() != 0) {
+            channelHandoff.post(rotateCommand);
+        }
+        requestWrite();
+        return true;
+    }
+
+    /**
+     * Wakes up I/O thread, unless it's already woken up and didn't start writing yet.
+     */
+    private void requestWrite() {
+        if (writeRequested.compareAndSet(false, true)) {
+            ioThread.post(requestedWrite);
+        }
+    }
+
+    private Runnable requestedWrite = () -> {
+        writeRequested.set(false);
+        writeNext();
+    };
+
+    /**
+     * Writes queued command or pending channel state, unless previous write is
+     * still in flight or failed write waits for retry. Runs on I/O thread.
+     * @return true if write was started
+     */
+    private boolean writeNext() {
+        if (emergencyStopPending) {
+            // commands executed after emergency stop wait in handoff until it's written
+            return isReady && !isLinkBusy() && writeEmergencyStop();
+        }
+        if (channelHandoff.drainTo(channelState)) {
+            updateConnectionProfile();
+        }
+        adoptGroupDispatches();
+        if (!isReady || isLinkBusy()) return false;
+        byte[] stream = retryStream;
+        // notified response doesn't tell its query, so next query waits for it
+        if (stream == null && awaitingQuery == null) {
+            stream = pollWatchdogStream();
+        }
+        if (stream == null && awaitingQuery == null) {
+            synchronized (preparedStreams) {
+                stream = preparedStreams.poll();
+            }
+        }
+        if (stream != null) {
+            return write(stream, true, true);
+        }
+        if (channelState.hasRamps()) {
+            if (!channelState.updateRamps(System.nanoTime())) {
+                // ramp finished, idle profile may apply
+                updateConnectionProfile();
+            } else if (!channelState.hasPending()) {
+                scheduleRampStep();
+            }
+        }
+        if (isTelemetryDue(channelState.hasPending())) {
+            lastTelemetryNanos = System.nanoTime();
+            return write(telemetryStream, false, true);
+        }
+        if (!channelState.hasPending()) return false;
+        boolean acknowledged = isAcknowledgedWriteDue();
+        if (!acknowledged && !takeCredit()) return false;
+        int length = channelState.writePending(scratchStream, 0);
+        boolean started = write(writeStream(length), false, acknowledged);
+        if (started && pendingDispatch != null) {
+            pendingDispatch.onWritten(this, writeStartNanos);
+            pendingDispatch = null;
+        }
+        return started;
+    }
+
+    /**
+     * Telemetry query is written in free write slot, so it doesn't delay channel state.
+     * When channel state is written all the time, query is written in next slot after
+     * it's late by whole period.
+     */
+    private boolean isTelemetryDue(boolean channelPending) {
+        if (telemetryStream == null || awaitingQuery != null) return false;
+        long sinceTelemetry = System.nanoTime() - lastTelemetryNanos;
+        return sinceTelemetry >= (channelPending ? 2 * telemetryPeriodNanos : telemetryPeriodNanos);
+    }
+
+    private Runnable telemetryTick = new Runnable() {
+        @Override
+        public void run() {
+            if (!isReady || telemetryStream == null) return;
+            writeNext();
+            ioThread.postDelayed(this, Math.max(1, telemetryPeriodNanos / 1_000_000L));
+        }
+    };
+
+    /**
+     * Ramp power didn't change since last write, next value is checked
+     * in next connection interval.
+     */
+    private void scheduleRampStep() {
+        if (rampStepScheduled) return;
+        rampStepScheduled = true;
+        ioThread.postDelayed(rampStep, Math.max(1, connectionIntervalNanos / 1_000_000L));
+    }
+
+    private Runnable rampStep = () -> {
+        rampStepScheduled = false;
+        writeNext();
+    };
+
+    /**
+     * Posts channel state of group command, without waking up I/O thread.
+     * SBrickGroup wakes it up once for all its SBricks. Dispatch is posted before
+     * state, so write taking the state always reports it, even when write completion
+     * drains the state before SBrickGroup wakes up I/O thread.
+     * @param dispatch group dispatch notified when state is written
+     */
+    void postGroupState(SBrickGroup.Dispatch dispatch, int mask, byte[] modes, byte[] directions, byte[] powers) {
+        TimelineRecorder currentRecorder = recorder;
+        if (currentRecorder != null) {
+            currentRecorder.record(this, mask, modes, directions, powers);
+        }
+        postedDispatches.add(dispatch);
+        channelHandoff.post(mask, modes, directions, powers);
+    }
+
+    /**
+     * Makes latest posted group dispatch pending, it's notified by next channel
+     * write. Older ones are skipped, their state was replaced. Runs on I/O thread
+     * after handoff is drained.
+     */
+    private void adoptGroupDispatches() {
+        SBrickGroup.Dispatch dispatch;
+        while ((dispatch = postedDispatches.poll()) != null) {
+            if (pendingDispatch != null) {
+                // newer group state replaces older one before it was written
+                pendingDispatch.onSkipped(this);
+            }
+            pendingDispatch = dispatch;
+        }
+    }
+
+    private void skipGroupDispatches() {
+        adoptGroupDispatches();
+        if (pendingDispatch != null) {
+            pendingDispatch.onSkipped(this);
+            pendingDispatch = null;
+        }
+    }
+
+    /**
+     * Set by TimelineRecorder, which records executed commands.
+     */
+    void setRecorder(TimelineRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Writes posted group state right away, or as soon as write in flight completes.
+     * State already written by earlier write has its dispatch notified then.
+     * Runs on I/O thread.
+     */
+    void dispatchGroupState() {
+        if (!isReady) {
+            channelHandoff.drainTo(channelState);
+            skipGroupDispatches();
+            return;
+        }
+        writeNext();
+    }
+
+    /**
+     * Drops everything pending and makes stop of all channels next write.
+     * Runs on I/O thread.
+     * @param dispatch emergency stop notified when stop is acknowledged or fails
+     */
+    void emergencyStop(EmergencyStop.Dispatch dispatch) {
+        synchronized (preparedStreams) {
+            preparedStreams.clear();
+        }
+        retryStream = null;
+        // drops commands executed before emergency stop and cancels ramps
+        stopAllChannels();
+        skipGroupDispatches();
+        if (retryScheduled) {
+            // failed write isn't retried, emergency stop goes first
+            ioThread.removeCallbacks(retryWrite);
+            retryScheduled = false;
+        }
+        if (!isReady) {
+            // e.g. reconnecting, stopped channels are written when link recovers
+            dispatch.onNotConnected(this);
+            return;
+        }
+        emergencyDispatches.add(dispatch);
+        emergencyStopFailures = 0;
+        emergencyStopPending = true;
+        writeNext();
+    }
+
+    /**
+     * Writes stop of all channels, acknowledged even in fast mode and without pacing.
+     */
+    private boolean writeEmergencyStop() {
+        emergencyStopPending = false;
+        inFlightEmergencyDispatches.addAll(emergencyDispatches);
+        emergencyDispatches.clear();
+        for (int channel = 0; channel < SBrickCommand.CHANNEL_COUNT; channel++) {
+            channelState.set(channel, ChannelState.MODE_STOP, (byte) 0, (byte) 0);
+        }
+        int length = channelState.writePending(scratchStream, 0);
+        emergencyStopInFlight = true;
+        return write(writeStream(length), false, true);
+    }
+
+    private void onEmergencyStopAcknowledged(long nowNanos) {
+        emergencyStopInFlight = false;
+        emergencyStopFailures = 0;
+        for (EmergencyStop.Dispatch dispatch : inFlightEmergencyDispatches) {
+            dispatch.onAcknowledged(this, nowNanos);
+        }
+        inFlightEmergencyDispatches.clear();
+    }
+
+    private void failEmergencyStops() {
+        emergencyStopPending = false;
+        emergencyStopInFlight = false;
+        emergencyStopFailures = 0;
+        for (EmergencyStop.Dispatch dispatch : inFlightEmergencyDispatches) {
+            dispatch.onFailed(this);
+        }
+        for (EmergencyStop.Dispatch dispatch : emergencyDispatches) {
+            dispatch.onFailed(this);
+        }
+        inFlightEmergencyDispatches.clear();
+        emergencyDispatches.clear();
+    }
+
+    /**
+     * @return true if write waits for acknowledgement or retry. Read on I/O thread.
+     */
+    boolean isLinkBusy() {
+        return writeInFlight || readInFlight || retryScheduled;
+    }
+
+    IoThread getIoThread() {
+        return ioThread;
+    }
+
+    /**
+     * In fast mode channel state is written without response, except one
+     * acknowledged write every 500ms, which detects dead link.
+     */
+    private boolean isAcknowledgedWriteDue() {
+        if (!fastMode) return true;
+        long sinceAcknowledged = System.nanoTime() - lastAcknowledgedWriteNanos;
+        return sinceAcknowledged >= FAST_MODE_ACKNOWLEDGED_PERIOD * 1_000_000L;
+    }
+
+    /**
+     * Writes without response are paced by link buffer: up to creditsPerInterval
+     * writes in each connection interval. Without credit, write is postponed to next interval.
+     * @return true if write can be sent now
+     */
+    private boolean takeCredit() {
+        long now = System.nanoTime();
+        long sinceRefill = now - creditsRefillNanos;
+        if (sinceRefill >= connectionIntervalNanos) {
+            credits = creditsPerInterval;
+            creditsRefillNanos = now;
+            sinceRefill = 0;
+        }
+        if (credits > 0) {
+            credits--;
+            return true;
+        }
+        if (!paceScheduled) {
+            paceScheduled = true;
+            long delayMillis = (connectionIntervalNanos - sinceRefill + 999_999L) / 1_000_000L;
+            ioThread.postDelayed(paceWrite, Math.max(1, delayMillis));
+        }
+        return false;
+    }
+
+    private Runnable paceWrite = () -> {
+        paceScheduled = false;
+        writeNext();
+    };
+
+    /**
+     * Sends pending or current state to SBrick, used by keep-alive
      * @return execution status
      */
     private boolean timedExecute() {
-//        Log.d(TAG, " - timedExecute: " + preparedStream.toString());
-        if (!preparedStreams.isEmpty()) {
-            lastStream = preparedStreams.pollLast();
+        if (!isReady || isLinkBusy()) return false;
+        if (writeNext()) return true;
+        return write(writeStream(channelState.writeCurrent(scratchStream, 0)), false, true);
+    }
+
+    private boolean write(byte[] stream, boolean queued, boolean acknowledged) {
+        inFlightStream = queued ? stream : null;
+        inFlightAcknowledged = acknowledged;
+        inFlightTelemetry = stream == telemetryStream;
+        if (SBrickProtocol.expectsResponse(stream)) {
+            awaitingQuery = stream;
+        }
+        writeStartNanos = System.nanoTime();
+        writeInFlight = acknowledged ? transport.write(stream) : transport.writeWithoutResponse(stream);
+        if (writeInFlight) {
+            ioThread.postDelayed(writeTimeout, WRITE_TIMEOUT);
+        } else {
+            onWriteFailed();
+        }
+        return writeInFlight;
+    }
+
+    /**
+     * Write not completed in time, e.g. link is dead. Handled like failed write.
+     */
+    private Runnable writeTimeout = () -> {
+        if (!writeInFlight) return;
+        Log.w(TAG, "Write not completed in " + WRITE_TIMEOUT + "ms");
+        writeInFlight = false;
+        onWriteFailed();
+    };
+
+    /**
+     * Copies scratchStream to reused array of exact length, as transport writes whole array.
+     * Only one write is in flight, so array isn't modified before its write completes.
+     */
+    private byte[] writeStream(int length) {
+        byte[] stream = writeStreams[length];
+        if (stream == null) {
+            stream = new byte[length];
+            writeStreams[length] = stream;
+        }
+        System.arraycopy(scratchStream, 0, stream, 0, length);
+        return stream;
+    }
+
+    private Runnable writeSucceeded = () -> onWriteComplete(true);
+    private Runnable writeFailed = () -> onWriteComplete(false);
+
+    /**
+     * Write acknowledged or failed. Next write is started right away,
+     * so link is never idle while there are pending commands.
+     */
+    private void onWriteComplete(boolean success) {
+        if (!writeInFlight) return;
+        writeInFlight = false;
+        ioThread.removeCallbacks(writeTimeout);
+        if (!success) {
+            onWriteFailed();
+            return;
+        }
+        long now = System.nanoTime();
+        if (inFlightAcknowledged) {
+            writeStats.recordWrite(now - writeStartNanos, now);
+            latencyHistogram.recordNanos(now - writeStartNanos);
+            lastAcknowledgedWriteNanos = now;
+        } else {
+            fastModeWriteStats.recordWrite(now - writeStartNanos, now);
+        }
+        lastWriteNanos = now;
+        if (emergencyStopInFlight) {
+            onEmergencyStopAcknowledged(now);
         }
-        characteristicRemoteControl.setValue(lastStream);
-        return gatt.writeCharacteristic(characteristicRemoteControl);
+        consecutiveFailures = 0;
+        retryStream = null;
+        inFlightStream = null;
+        inFlightTelemetry = false;
+        if (awaitingQuery != null) {
+            awaitResponse();
+        }
+        writeNext();
+    }
+
+    /**
+     * Waits for query response, unless it was already notified. Notified response
+     * doesn't hold the link, channel writes go on meanwhile. Without notifications
+     * response is read and next write waits for the read, as GATT allows one
+     * operation at a time.
+     */
+    private void awaitResponse() {
+        if (notificationsEnabled) {
+            ioThread.postDelayed(responseTimeout, WRITE_TIMEOUT);
+            return;
+        }
+        readInFlight = transport.read();
+        if (readInFlight) {
+            ioThread.postDelayed(readTimeout, WRITE_TIMEOUT);
+        } else {
+            Log.w(TAG, "Query response read not started");
+            awaitingQuery = null;
+        }
+    }
+
+    /**
+     * Response wasn't notified, e.g. SBrick doesn't notify despite enabled notifications.
+     * Later responses are read.
+     */
+    private Runnable responseTimeout = () -> {
+        if (awaitingQuery == null || readInFlight) return;
+        Log.w(TAG, "Query response not notified in " + WRITE_TIMEOUT + "ms, responses are read");
+        notificationsEnabled = false;
+        awaitingQuery = null;
+        writeNext();
+    };
+
+    private void onResponseNotified(byte[] value) {
+        ioThread.removeCallbacks(responseTimeout);
+        onQueryResponse(value);
+        writeNext();
+    }
+
+    private Runnable readTimeout = () -> {
+        if (!readInFlight) return;
+        Log.w(TAG, "Read not completed in " + WRITE_TIMEOUT + "ms");
+        onReadComplete(null, false);
+    };
+
+    private void onReadComplete(byte[] value, boolean success) {
+        if (!readInFlight) return;
+        readInFlight = false;
+        ioThread.removeCallbacks(readTimeout);
+        if (success) {
+            onQueryResponse(value);
+        }
+        awaitingQuery = null;
+        writeNext();
+    }
+
+    /**
+     * Decodes response to awaited ADC query, one sample for each queried input.
+     * Response to other query is passed to response listeners.
+     */
+    private void onQueryResponse(byte[] response) {
+        byte[] query = awaitingQuery;
+        if (query == null || response == null) return;
+        awaitingQuery = null;
+        if (!QueryAdcCommand.isQuery(query)) {
+            if (QueryWatchdogTimeoutCommand.isQuery(query)) {
+                onWatchdogTimeout(QueryWatchdogTimeoutCommand.decodeTimeoutMillis(response));
+            }
+            for (SBrickResponseListener listener : responseListeners) {
+                listener.onResponse(this, query, response);
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < query.length - 1; i++) {
+            int raw = QueryAdcCommand.decodeRaw(response, i);
+            if (raw < 0) break;
+            TelemetrySample sample = new TelemetrySample(now, query[i + 1], raw);
+            telemetryBuffer.add(sample);
+            for (SBrickTelemetryListener listener : telemetryListeners) {
+                listener.onTelemetrySample(this, sample);
+            }
+        }
+    }
+
+    /**
+     * Failed write is retried with exponential backoff. Queued command is retried
+     * up to MAX_COMMAND_RETRIES times, channel state is resent until it succeeds.
+     */
+    private void onWriteFailed() {
+        if (inFlightAcknowledged) {
+            writeStats.recordFailure();
+        } else {
+            fastModeWriteStats.recordFailure();
+        }
+        consecutiveFailures++;
+        awaitingQuery = null;
+        if (emergencyStopInFlight) {
+            emergencyStopInFlight = false;
+            if (++emergencyStopFailures <= MAX_COMMAND_RETRIES) {
+                // retried after shortest delay, without backoff
+                emergencyDispatches.addAll(0, inFlightEmergencyDispatches);
+                inFlightEmergencyDispatches.clear();
+                emergencyStopPending = true;
+                inFlightStream = null;
+                retryScheduled = true;
+                ioThread.postDelayed(retryWrite, RETRY_BASE_DELAY);
+                return;
+            }
+            Log.w(TAG, "Emergency stop failed " + emergencyStopFailures + " times");
+            failEmergencyStops();
+        }
+        if (inFlightTelemetry) {
+            // query isn't retried, next one is written in next period
+            inFlightTelemetry = false;
+            retryStream = null;
+        } else if (inFlightStream == null) {
+            channelState.invalidate();
+            retryStream = null;
+        } else if (consecutiveFailures <= MAX_COMMAND_RETRIES) {
+            retryStream = inFlightStream;
+        } else {
+            Log.w(TAG, "Command failed " + consecutiveFailures + " times, skipping command.");
+            retryStream = null;
+        }
+        inFlightStream = null;
+        int backoff = Math.min(consecutiveFailures - 1, RETRY_BACKOFF_STEPS);
+        retryScheduled = true;
+        ioThread.postDelayed(retryWrite, RETRY_BASE_DELAY << backoff);
+    }
+
+    private Runnable retryWrite = new Runnable() {
+        @Override
+        public void run() {
+            retryScheduled = false;
+            writeStats.recordRetry();
+            if (!writeNext()) {
+                timedExecute();
+            }
+        }
+    };
+
+    /**
+     * Starts periodic telemetry: query is written every period, in write slots free
+     * of channel state, and each queried input is passed to SBrickTelemetryListener
+     * and kept in telemetry buffer. Can be called before SBrick is ready.
+     * @param query inputs to sample, e.g. new QueryAdcCommand().voltage().temperature()
+     * @param periodMillis sampling period in milliseconds
+     */
+    public void startTelemetry(QueryAdcCommand query, long periodMillis) {
+        byte[] stream = query.getPreparedStream();
+        ioThread.post(() -> {
+            telemetryStream = stream;
+            telemetryPeriodNanos = periodMillis * 1_000_000L;
+            lastTelemetryNanos = System.nanoTime() - telemetryPeriodNanos;
+            ioThread.removeCallbacks(telemetryTick);
+            telemetryTick.run();
+        });
+    }
+
+    /**
+     * Stops periodic telemetry. Query already written is still reported.
+     */
+    public void stopTelemetry() {
+        ioThread.post(() -> {
+            telemetryStream = null;
+            ioThread.removeCallbacks(telemetryTick);
+        });
+    }
+
+    public void addTelemetryListener(SBrickTelemetryListener listener) {
+        telemetryListeners.add(listener);
     }
 
-    private void connectDevice() {
-//        Log.d(TAG, "connectDevice");
-        GattClientCallback gattClientCallback = new GattClientCallback();
-        gatt = bluetoothDevice.connectGatt(appContext, false, gattClientCallback);
+    public void removeTelemetryListener(SBrickTelemetryListener listener) {
+        telemetryListeners.remove(listener);
+    }
+
+    public void addResponseListener(SBrickResponseListener listener) {
+        responseListeners.add(listener);
+    }
+
+    public void removeResponseListener(SBrickResponseListener listener) {
+        responseListeners.remove(listener);
+    }
+
+    /**
+     * Returns latest telemetry samples, up to 64 of them.
+     * @return telemetry buffer
+     */
+    public TelemetryBuffer getTelemetryBuffer() {
+        return telemetryBuffer;
+    }
+
+    /**
+     * Returns statistics of acknowledged writes to this SBrick: writes per second and write latency.
+     * @return write statistics
+     */
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
+
+    /**
+     * Returns statistics of writes without response, sent in fast mode.
+     * Latency is time to pass command to the link, not to SBrick.
+     * @return fast mode write statistics
+     */
+    public WriteStats getFastModeWriteStats() {
+        return fastModeWriteStats;
+    }
+
+    /**
+     * Takes snapshot of runtime metrics: commands issued, coalesced and dropped,
+     * write latency histogram, failures, connect duration, reconnects and RSSI.
+     * Can be called from any thread.
+     * @return metrics snapshot
+     */
+    public SBrickMetrics getMetrics() {
+        return new SBrickMetrics(getId(), System.nanoTime(), isReady,
+                commandsIssued.get(),
+                channelHandoff.getCoalescedCount() + channelState.getCoalescedCount(),
+                commandsDropped.get(),
+                writeStats.getWriteCount(),
+                fastModeWriteStats.getWriteCount(),
+                writeStats.getFailureCount() + fastModeWriteStats.getFailureCount(),
+                writeStats.getRetryCount(),
+                latencyHistogram.copy(),
+                getConnectDurationMillis(),
+                Math.max(0, readyCount - 1),
+                getLastRecoveryMillis(),
+                rssi);
+    }
+
+    /**
+     * Passes metrics snapshot to listener every period, while SBrick is ready.
+     * RSSI is read once per period.
+     * @param listener metrics receiver, null to stop
+     * @param periodMillis period in milliseconds
+     */
+    public void setMetricsListener(SBrickMetricsListener listener, long periodMillis) {
+        metricsListener = listener;
+        metricsPeriodMillis = Math.max(1, periodMillis);
+        ioThread.post(() -> {
+            ioThread.removeCallbacks(metricsTick);
+            if (isReady && metricsListener != null) {
+                ioThread.postDelayed(metricsTick, metricsPeriodMillis);
+            }
+        });
+    }
+
+    private Runnable metricsTick = new Runnable() {
+        @Override
+        public void run() {
+            SBrickMetricsListener listener = metricsListener;
+            if (!isReady || listener == null) return;
+            listener.onMetrics(SBrick.this, getMetrics());
+            transport.readRemoteRssi();
+            ioThread.postDelayed(this, metricsPeriodMillis);
+        }
+    };
+
+    /**
+     * Enables fast mode for continuous control, e.g. joystick. Channel state is
+     * written without response, so each update doesn't wait for SBrick acknowledgement.
+     * Writes are paced by connection interval, and every 500ms one write is
+     * acknowledged to detect dead link. Other commands are always acknowledged.
+     * Disabled by default.
+     * @param enabled true to write channel state without response
+     */
+    public void setFastMode(boolean enabled) {
+        fastMode = enabled;
+    }
+
+    public boolean isFastMode() {
+        return fastMode;
+    }
+
+    /**
+     * Sets pacing of fast mode writes. Default is 4 writes per 15ms connection interval.
+     * Connection interval is replaced by negotiated one, when reported by Bluetooth stack.
+     * @param connectionIntervalMicros BLE connection interval in microseconds
+     * @param writesPerInterval writes passed to the link in one interval
+     */
+    public void setFastModePacing(long connectionIntervalMicros, int writesPerInterval) {
+        ioThread.post(() -> {
+            connectionIntervalNanos = connectionIntervalMicros * 1000;
+            creditsPerInterval = writesPerInterval;
+        });
+    }
+
+    /**
+     * Sets connection profile used while any channel is driven, and when idle
+     * profile isn't set. Can be changed at any time. Default is BALANCED.
+     * @param profile connection profile, e.g. LOW_LATENCY for joystick control
+     */
+    public void setConnectionProfile(ConnectionProfile profile) {
+        connectionProfile = profile;
+        ioThread.post(profileUpdate);
+    }
+
+    /**
+     * Sets connection profile applied when all channels are stopped for 2 seconds,
+     * e.g. LOW_POWER. Connection profile is restored with first driven channel.
+     * @param profile idle connection profile, null to keep connection profile all the time
+     */
+    public void setIdleConnectionProfile(ConnectionProfile profile) {
+        idleConnectionProfile = profile;
+        ioThread.post(profileUpdate);
+    }
+
+    /**
+     * @return profile last requested from Bluetooth stack, null if not connected
+     */
+    public ConnectionProfile getAppliedConnectionProfile() {
+        return appliedConnectionProfile;
+    }
+
+    /**
+     * Returns negotiated connection interval, PHY and MTU.
+     * @return link parameters
+     */
+    public LinkParameters getLinkParameters() {
+        return transport.getLinkParameters();
+    }
+
+    private Runnable profileUpdate = this::updateConnectionProfile;
+
+    private void updateConnectionProfile() {
+        if (!isReady) return;
+        if (idleConnectionProfile == null || !channelState.isStopped()) {
+            ioThread.removeCallbacks(applyIdleProfile);
+            applyConnectionProfile(connectionProfile);
+        } else if (appliedConnectionProfile != idleConnectionProfile) {
+            ioThread.removeCallbacks(applyIdleProfile);
+            ioThread.postDelayed(applyIdleProfile, IDLE_PROFILE_DELAY);
+        }
+    }
+
+    private Runnable applyIdleProfile = () -> {
+        if (isReady && idleConnectionProfile != null && channelState.isStopped()) {
+            applyConnectionProfile(idleConnectionProfile);
+        }
+    };
+
+    private void applyConnectionProfile(ConnectionProfile profile) {
+        if (profile == appliedConnectionProfile) return;
+        Log.d(TAG, "applyConnectionProfile " + profile);
+        if (transport.applyConnectionProfile(profile)) {
+            appliedConnectionProfile = profile;
+        }
+    }
+
+    /**
+     * Enables notifications of query responses. SBrick is ready when they're enabled,
+     * or right away if link doesn't support them.
+     */
+    private void enableNotifications() {
+        if (!transport.setNotificationsEnabled(true)) {
+            setReady();
+        }
+    }
+
+    /**
+     * Link ready for commands: MTU exchanged and notifications enabled, or not supported.
+     */
+    private void setReady() {
+        if (isReady || !isConnected) return;
+        isReady = true;
+        isConnecting.set(false);
+        long now = System.nanoTime();
+        connectDurationNanos = now - connectStartNanos;
+        readyCount++;
+        boolean recovered = reconnecting;
+        if (recovered) {
+            reconnecting = false;
+            lastRecoveryNanos = now - linkLostNanos;
+            Log.d(TAG, "Recovered in " + lastRecoveryNanos / 1_000_000L + "ms, attempts: " + reconnectAttempts);
+        }
+        channelState.invalidate();
+        updateConnectionProfile();
+        // SBrick may have been switched off since last connect, default applies until watchdog is read
+        watchdogTimeoutMillis = DEFAULT_WATCHDOG_TIMEOUT;
+        keepAlivePeriodNanos = keepAlivePeriodNanos(DEFAULT_WATCHDOG_TIMEOUT);
+        prepareWatchdogSetup();
+        keepAliveScheduler.register(keepAliveLink);
+        if (telemetryStream != null) {
+            ioThread.removeCallbacks(telemetryTick);
+            ioThread.post(telemetryTick);
+        }
+        transport.readRemoteRssi();
+        if (metricsListener != null) {
+            ioThread.removeCallbacks(metricsTick);
+            ioThread.postDelayed(metricsTick, metricsPeriodMillis);
+        }
+        for (SBrickStateListener listener : stateListeners) {
+            listener.onSBrickReady(this);
+            if (recovered) {
+                listener.onSBrickRecovered(this, lastRecoveryNanos / 1_000_000L, reconnectAttempts);
+            }
+        }
+    }
+
+    /**
+     * Starts connecting to SBrick. SBrickStateListener is notified when SBrick
+     * is ready for commands, or when connection fails.
+     * @return false if SBrick is already connected or connecting
+     */
+    public boolean connect() {
+        if (isConnected || !isConnecting.compareAndSet(false, true)) return false;
+        connectStartNanos = System.nanoTime();
+        transport.connect(transportListener);
+        return true;
+    }
+
+    /**
+     * Disconnects from SBrick and stops automatic reconnect. SBrickStateListener
+     * is notified with status 0, unless link was already lost.
+     */
+    public void disconnect() {
+        ioThread.post(() -> {
+            if (reconnecting) {
+                reconnecting = false;
+                ioThread.removeCallbacks(reconnect);
+                if (!isConnected && !isConnecting.get()) {
+                    transport.disconnect();
+                    return;
+                }
+            }
+            handleDisconnect(SBrickTransport.STATUS_SUCCESS, true);
+        });
+    }
+
+    /**
+     * Sets SBrick watchdog timeout on each connect, and right away if SBrick is ready.
+     * SBrick stops its channels when it doesn't receive any command within timeout,
+     * so keep-alive is written when link was idle for 40% of timeout. Longer timeout
+     * means less keep-alive writes, e.g. 2000ms timeout needs one write in 800ms
+     * instead of 5 writes per second, but motors run longer when application stops
+     * responding. 0 disables watchdog and keep-alive, channels are then stopped only
+     * by commands or disconnection. Default is WATCHDOG_UNCHANGED, SBrick default is 500ms.
+     * @param timeoutMillis timeout in milliseconds, rounded up to 100ms, 0 - 25500 or WATCHDOG_UNCHANGED
+     */
+    public void setWatchdogTimeout(int timeoutMillis) {
+        if (timeoutMillis != WATCHDOG_UNCHANGED) {
+            // validates timeout
+            new SetWatchdogTimeoutCommand().timeoutMillis(timeoutMillis);
+        }
+        requestedWatchdogMillis = timeoutMillis;
+        ioThread.post(() -> {
+            if (!isReady) return;
+            prepareWatchdogSetup();
+            writeNext();
+        });
+    }
+
+    /**
+     * @return watchdog timeout read from SBrick at connect, 0 if disabled. SBrick default until it's read
+     */
+    public int getWatchdogTimeoutMillis() {
+        return watchdogTimeoutMillis;
+    }
+
+    /**
+     * @return period of keep-alive writes on idle link, derived from watchdog timeout, 0 if watchdog is disabled
+     */
+    public long getKeepAlivePeriodMillis() {
+        return keepAlivePeriodNanos / 1_000_000L;
+    }
+
+    /**
+     * Prepares writes of requested watchdog timeout, if any, and of watchdog query.
+     * Written before other commands. Runs on I/O thread.
+     */
+    private void prepareWatchdogSetup() {
+        int timeoutMillis = requestedWatchdogMillis;
+        watchdogSetStream = timeoutMillis == WATCHDOG_UNCHANGED ? null
+                : new SetWatchdogTimeoutCommand().timeoutMillis(timeoutMillis).getPreparedStream();
+        watchdogQueryStream = new QueryWatchdogTimeoutCommand().getPreparedStream();
+    }
+
+    private byte[] pollWatchdogStream() {
+        byte[] stream = watchdogSetStream;
+        if (stream != null) {
+            watchdogSetStream = null;
+            return stream;
+        }
+        stream = watchdogQueryStream;
+        watchdogQueryStream = null;
+        return stream;
+    }
+
+    /**
+     * Watchdog timeout read from SBrick, keep-alive period follows it. Runs on I/O thread.
+     */
+    private void onWatchdogTimeout(int timeoutMillis) {
+        if (timeoutMillis < 0) return;
+        Log.d(TAG, "Watchdog timeout: " + timeoutMillis + "ms");
+        watchdogTimeoutMillis = timeoutMillis;
+        keepAlivePeriodNanos = keepAlivePeriodNanos(timeoutMillis);
+        if (timeoutMillis == 0) {
+            keepAliveScheduler.unregister(keepAliveLink);
+        } else if (isReady) {
+            // registering again wakes up scheduler, so shorter period applies right away
+            keepAliveScheduler.register(keepAliveLink);
+        }
+    }
+
+    /**
+     * Keep-alive at 40% of watchdog timeout leaves room for retried write,
+     * it's 200ms for default 500ms timeout.
+     */
+    private static long keepAlivePeriodNanos(int watchdogTimeoutMillis) {
+        return watchdogTimeoutMillis * 1_000_000L * 2 / 5;
+    }
+
+    /**
+     * Reconnects automatically when link is lost, e.g. SBrick went out of range.
+     * Attempts are repeated with jittered exponential backoff, 250ms to 8s, until
+     * SBrick is ready again or disconnect() is called. Link handles are kept, so
+     * services aren't discovered again. SBrickStateListener is notified about
+     * link loss once, and about recovery with time it took. Disabled by default.
+     * @param enabled true to reconnect after link loss
+     * @param mode channel state after reconnect
+     */
+    public void setAutoReconnect(boolean enabled, ResumeMode mode) {
+        resumeMode = mode;
+        autoReconnect = enabled;
+    }
+
+    public boolean isAutoReconnect() {
+        return autoReconnect;
+    }
+
+    /**
+     * @return true if link was lost and automatic reconnect is in progress
+     */
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    /**
+     * @return time from last link loss to SBrick being ready again, in milliseconds. 0 if never recovered
+     */
+    public long getLastRecoveryMillis() {
+        return lastRecoveryNanos / 1_000_000L;
+    }
+
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    /**
+     * @return true if SBrick is connected and accepts commands
+     */
+    public boolean isReady() {
+        return isReady;
+    }
+
+    /**
+     * @return time from connect() to SBrick being ready, in milliseconds. 0 if never connected
+     */
+    public long getConnectDurationMillis() {
+        return connectDurationNanos / 1_000_000L;
+    }
+
+    public void addStateListener(SBrickStateListener listener) {
+        stateListeners.add(listener);
+    }
+
+    public void removeStateListener(SBrickStateListener listener) {
+        stateListeners.remove(listener);
+    }
+
+    /**
+     * @param requested true if disconnected by application
+     */
+    private void handleDisconnect(int status, boolean requested) {
+        if (!isConnected && !isConnecting.get()) return;
+        boolean wasReady = isReady;
+        isConnecting.set(false);
+        if (!requested && autoReconnect && (wasReady || reconnecting)) {
+            disconnectGattServer(true);
+            onLinkLost(status);
+            return;
+        }
+        reconnecting = false;
+        disconnectGattServer(false);
+        for (SBrickStateListener listener : stateListeners) {
+            listener.onSBrickDisconnected(this, status);
+        }
+    }
+
+    /**
+     * Link lost or reconnect attempt failed, next attempt is scheduled. Listeners are
+     * notified about first loss only.
+     */
+    private void onLinkLost(int status) {
+        if (!reconnecting) {
+            reconnecting = true;
+            reconnectAttempts = 0;
+            linkLostNanos = System.nanoTime();
+            Log.w(TAG, "Link lost, status " + status + ", reconnecting");
+            if (resumeMode == ResumeMode.STOP) {
+                stopAllChannels();
+            }
+            for (SBrickStateListener listener : stateListeners) {
+                listener.onSBrickDisconnected(this, status);
+            }
+        }
+        ioThread.postDelayed(reconnect,
+                Backoff.delayMillis(reconnectAttempts, RECONNECT_BASE_DELAY, RECONNECT_MAX_DELAY, random));
+    }
+
+    private Runnable reconnect = () -> {
+        if (!reconnecting) return;
+        reconnectAttempts++;
+        connect();
+    };
+
+    /**
+     * Stop replaces state commanded before link loss, commands executed later replace stop.
+     */
+    private void stopAllChannels() {
+        channelHandoff.drainTo(channelState);
+        for (int channel = 0; channel < SBrickCommand.CHANNEL_COUNT; channel++) {
+            channelState.set(channel, ChannelState.MODE_STOP, (byte) 0, (byte) 0);
+        }
     }
 
     private void setConnected(boolean connected) {
         isConnected = connected;
     }
 
-    private void disconnectGattServer() {
-//        Log.d(TAG, "disconnectGattServer");
-        timerHandler.removeCallbacks(timerCommandRepeater);
+    /**
+     * @param keepHandles true to keep link handles for automatic reconnect
+     */
+    private void disconnectGattServer(boolean keepHandles) {
+        keepAliveScheduler.unregister(keepAliveLink);
+        ioThread.removeCallbacks(keepAliveLink);
+        keepAliveLink.posted = false;
+        ioThread.removeCallbacks(retryWrite);
+        ioThread.removeCallbacks(writeTimeout);
+        ioThread.removeCallbacks(paceWrite);
+        ioThread.removeCallbacks(rampStep);
+        ioThread.removeCallbacks(applyIdleProfile);
+        ioThread.removeCallbacks(telemetryTick);
+        ioThread.removeCallbacks(readTimeout);
+        ioThread.removeCallbacks(responseTimeout);
+        ioThread.removeCallbacks(metricsTick);
+        paceScheduled = false;
+        rampStepScheduled = false;
+        skipGroupDispatches();
+        appliedConnectionProfile = null;
         setConnected(false);
-        if (gatt != null) {
-            gatt.disconnect();
-            gatt.close();
+        isReady = false;
+        writeInFlight = false;
+        readInFlight = false;
+        notificationsEnabled = false;
+        inFlightTelemetry = false;
+        awaitingQuery = null;
+        retryScheduled = false;
+        retryStream = null;
+        inFlightStream = null;
+        watchdogSetStream = null;
+        watchdogQueryStream = null;
+        failEmergencyStops();
+        consecutiveFailures = 0;
+        if (keepHandles) {
+            transport.disconnectForReconnect();
+        } else {
+            transport.disconnect();
         }
     }
 
     /**
-     * SBrick by default disconnects after few seconds if not receiving commands.
-     * This Runnable repeats last command every 200ms to prevent disconnection.
+     * SBrick stops its channels when not receiving commands within watchdog timeout.
+     * Shared KeepAliveScheduler checks this link from its thread and, when link was
+     * idle for keep-alive period, posts repeat of current state to I/O thread to prevent it.
+     * Completed writes postpone it, so busy link gets no keep-alive. Registered only
+     * while SBrick is ready and watchdog is enabled.
      */
-    private Runnable timerCommandRepeater = new Runnable() {
+    private class KeepAliveLink implements KeepAliveScheduler.Link, Runnable {
+        // keep-alive is posted at most once, even if scheduler ticks before it runs
+        private volatile boolean posted;
+
+        @Override
+        public long getKeepAliveDueNanos() {
+            return lastWriteNanos + keepAlivePeriodNanos;
+        }
+
+        @Override
+        public long keepAlive(long nowNanos) {
+            if (!posted) {
+                posted = true;
+                ioThread.post(this);
+            }
+            return nowNanos + keepAlivePeriodNanos;
+        }
+
         @Override
         public void run() {
+            posted = false;
             if (isConnected) {
                 timedExecute();
-            } else {
-                Log.d(TAG, "TIMER skip - SBrick is disconnected");
             }
-            timerHandler.postDelayed(this, 200);
         }
-    };
+    }
 
     /**
-     * Handles Bluetooth connection changes.
+     * Handles SBrick link changes.
      */
-    private class GattClientCallback extends BluetoothGattCallback {
+    private class SBrickTransportListener implements TransportListener {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            super.onConnectionStateChange(gatt, status, newState);
-            Log.d(TAG, "onConnectionStateChange newState: " + newState);
+        public void onConnected() {
+            ioThread.post(() -> {
+                setConnected(true);
+                transport.discoverServices();
+            });
+        }
 
-            if (status == BluetoothGatt.GATT_FAILURE) {
-                Log.e(TAG, "Connection GATT_FAILURE status " + status);
-                disconnectGattServer();
-                return;
-            } else if (status != BluetoothGatt.GATT_SUCCESS) {
-                // handle anything not SUCCESS as failure
-                Log.e(TAG,"Connection not GATT_SUCCESS status " + status);
-                disconnectGattServer();
+        @Override
+        public void onDisconnected(int status) {
+            ioThread.post(() -> handleDisconnect(status, false));
+        }
+
+        /**
+         * Services discovered - exchange MTU and enable notifications, then start sending commands
+         * @param success true if remote control characteristic was found
+         */
+        @Override
+        public void onServicesDiscovered(boolean success) {
+            if (!success) {
+                ioThread.post(() -> handleDisconnect(SBrickTransport.STATUS_FAILURE, false));
                 return;
             }
+            ioThread.post(() -> {
+                if (!transport.requestMtu(PREFERRED_MTU)) {
+                    enableNotifications();
+                }
+            });
+        }
 
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.d(TAG,"Connected to device " + gatt.getDevice().getAddress());
-                setConnected(true);
-                gatt.discoverServices();
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.d(TAG,"Disconnected from device");
-                disconnectGattServer();
+        @Override
+        public void onMtuChanged(int mtu, boolean success) {
+            ioThread.post(SBrick.this::enableNotifications);
+        }
+
+        @Override
+        public void onNotificationsEnabled(boolean success) {
+            if (!success) {
+                Log.w(TAG, "Notifications not enabled, query responses are read");
+            }
+            ioThread.post(() -> {
+                notificationsEnabled = success;
+                setReady();
+            });
+        }
+
+        @Override
+        public void onRssiRead(int value, boolean success) {
+            if (success) {
+                rssi = value;
             }
         }
 
         /**
-         * Services discovered - connect to RC service and create characteristic
-         * @param gatt BluetoothGatt callback
-         * @param status BluetoothGatt.<status>
+         * Negotiated connection interval paces fast mode writes
+         * @param parameters new link parameters
          */
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            super.onServicesDiscovered(gatt, status);
-            if (status != BluetoothGatt.GATT_SUCCESS) {
-                return;
+        @Override
+        public void onLinkParametersChanged(LinkParameters parameters) {
+            Log.d(TAG, "onLinkParametersChanged " + parameters);
+            if (parameters.getIntervalMicros() > 0) {
+                ioThread.post(() -> connectionIntervalNanos = parameters.getIntervalMicros() * 1000L);
             }
-            Log.d(TAG, "onServicesDiscovered - services discovered");
-            serviceRemoteControl = gatt.getService(SERVICE_REMOTE_CONTROL);
-            characteristicRemoteControl = serviceRemoteControl.getCharacteristic(CHARACTERISTIC_REMOTE_CONTROL_COMMANDS);
-            timerHandler.postDelayed(timerCommandRepeater, 0);
+        }
+
+        /**
+         * Write completed - send latest state, on I/O thread
+         * @param success true if SBrick acknowledged write
+         */
+        @Override
+        public void onWriteComplete(boolean success) {
+            ioThread.post(success ? writeSucceeded : writeFailed);
+        }
+
+        @Override
+        public void onReadComplete(byte[] value, boolean success) {
+            ioThread.post(() -> SBrick.this.onReadComplete(value, success));
+        }
+
+        /**
+         * Query response notified by SBrick, read isn't needed
+         */
+        @Override
+        public void onNotification(byte[] value) {
+            ioThread.post(() -> onResponseNotified(value));
         }
     }
 }
@@ -0,0 +1,76 @@
+package it.ambient.androidsbrick;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import it.ambient.androidsbrick.transport.GattTransport;
+
+/**
+ * Recognizes SBrick by its bluetooth advertisement and builds scan filters,
+ * so that Bluetooth controller drops other devices before they reach application.
+ *
+ * SBrick advertises manufacturer specific data of Vengit (company identifier 0x0198).
+ * Remote control service UUID and device name are checked as fallback.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public final class SBrickAdvertisement {
+    public static final int VENGIT_MANUFACTURER_ID      = 0x0198;
+    public static final String DEFAULT_DEVICE_NAME      = "SBrick";
+
+    // scan filter flags, can be combined
+    public static final int FILTER_NONE                 = 0;
+    public static final int FILTER_MANUFACTURER_DATA    = 1;
+    public static final int FILTER_SERVICE_UUID         = 1 << 1;
+
+    private static final ParcelUuid SERVICE_REMOTE_CONTROL
+            = new ParcelUuid(GattTransport.SERVICE_REMOTE_CONTROL);
+
+    private SBrickAdvertisement() {
+    }
+
+    /**
+     * Builds scan filters matching SBrick advertisement. Device matching any of them is reported.
+     *
+     * @param filters combination of FILTER_* flags
+     * @return scan filters, empty list (all devices) for FILTER_NONE
+     */
+    public static List<ScanFilter> buildScanFilters(int filters) {
+        List<ScanFilter> scanFilters = new ArrayList<>();
+        if ((filters & FILTER_MANUFACTURER_DATA) != 0) {
+            // empty data with empty mask matches any data of given manufacturer
+            scanFilters.add(new ScanFilter.Builder()
+                    .setManufacturerData(VENGIT_MANUFACTURER_ID, new byte[0], new byte[0])
+                    .build());
+        }
+        if ((filters & FILTER_SERVICE_UUID) != 0) {
+            scanFilters.add(new ScanFilter.Builder()
+                    .setServiceUuid(SERVICE_REMOTE_CONTROL)
+                    .build());
+        }
+        return scanFilters;
+    }
+
+    /**
+     * Checks if scan result comes from SBrick. Doesn't depend on cached device name,
+     * which is null for devices never connected before.
+     *
+     * @param result scan result
+     * @return true if device is SBrick
+     */
+    public static boolean isSBrick(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        if (record != null) {
+            if (record.getManufacturerSpecificData(VENGIT_MANUFACTURER_ID) != null) return true;
+            List<ParcelUuid> serviceUuids = record.getServiceUuids();
+            if (serviceUuids != null && serviceUuids.contains(SERVICE_REMOTE_CONTROL)) return true;
+            if (DEFAULT_DEVICE_NAME.equals(record.getDeviceName())) return true;
+        }
+        return DEFAULT_DEVICE_NAME.equals(result.getDevice().getName());
+    }
+}
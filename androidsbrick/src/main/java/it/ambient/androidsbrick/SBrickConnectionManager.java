@@ -0,0 +1,262 @@
+package it.ambient.androidsbrick;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Connects many SBricks without flooding Bluetooth stack. Only few connection
+ * attempts run at the same time, the rest waits in queue. Failed attempts
+ * (e.g. status 133) are retried with jittered exponential backoff.
+ *
+ * Methods should be called on main thread, listener is notified on main thread too.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class SBrickConnectionManager implements SBrickStateListener {
+    private static final String TAG = "SBrickConnectionManager";
+
+    private int maxConcurrentConnects   = 2;
+    private int maxAttempts             = 5;
+    private long connectTimeout         = 10000; // ms
+    private long retryBaseDelay         = 500;   // ms
+    private long retryMaxDelay          = 8000;  // ms
+
+    private Handler handler = new Handler();
+    private Random random = new Random();
+    private ArrayDeque<SBrick> queue = new ArrayDeque<>();
+    private Map<SBrick, Attempt> attempts = new HashMap<>();
+    private int activeConnects = 0;
+    private Listener listener;
+    private Comparator<SBrick> connectOrder;
+
+    /**
+     * Receives result of connecting each SBrick.
+     */
+    public interface Listener {
+        /**
+         * @param totalMillis time from connect() call, including queueing and retries
+         * @param attempts number of connection attempts
+         */
+        void onSBrickConnected(SBrick sbrick, long totalMillis, int attempts);
+
+        /**
+         * @param status GATT status of last attempt
+         */
+        void onSBrickConnectFailed(SBrick sbrick, int attempts, int status);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set how many connection attempts can run at the same time. Default is 2.
+     */
+    public void setMaxConcurrentConnects(int maxConcurrentConnects) {
+        this.maxConcurrentConnects = maxConcurrentConnects;
+        startNext();
+    }
+
+    /**
+     * Set how many times each SBrick is tried before giving up. Default is 5.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Set how long single connection attempt can take. Default is 10 seconds (10000ms).
+     */
+    public void setConnectTimeout(long timeout) {
+        connectTimeout = timeout;
+    }
+
+    /**
+     * Set retry backoff. Delay doubles with each failed attempt, up to maxDelay,
+     * and is randomized to avoid retrying all SBricks at the same moment.
+     * Default is 500ms to 8000ms.
+     */
+    public void setRetryDelay(long baseDelay, long maxDelay) {
+        retryBaseDelay = baseDelay;
+        retryMaxDelay = maxDelay;
+    }
+
+    /**
+     * Set order in which queued SBricks are connected, e.g. strongest signal first.
+     * Order is checked each time connection attempt starts, so it can change
+     * while SBricks wait. Default is null, SBricks are connected in order they were queued.
+     *
+     * @param order comparator, SBrick ordered first is connected first
+     */
+    public void setConnectOrder(Comparator<SBrick> order) {
+        connectOrder = order;
+    }
+
+    /**
+     * Queues SBrick for connection.
+     *
+     * @param sbrick SBrick created without connecting
+     * @return false if SBrick is already queued or connecting
+     */
+    public boolean connect(SBrick sbrick) {
+        if (attempts.containsKey(sbrick)) return false;
+        attempts.put(sbrick, new Attempt(sbrick));
+        sbrick.addStateListener(this);
+        queue.add(sbrick);
+        startNext();
+        return true;
+    }
+
+    /**
+     * Stops connecting SBrick. Already connected SBrick isn't disconnected.
+     */
+    public void cancel(SBrick sbrick) {
+        Attempt attempt = attempts.get(sbrick);
+        if (attempt == null) return;
+        boolean wasConnecting = attempt.active;
+        queue.remove(sbrick);
+        handler.removeCallbacks(attempt.retry);
+        finish(attempt);
+        if (wasConnecting) {
+            sbrick.disconnect();
+        }
+        startNext();
+    }
+
+    public void cancelAll() {
+        for (SBrick sbrick : attempts.keySet().toArray(new SBrick[0])) {
+            cancel(sbrick);
+        }
+    }
+
+    /**
+     * @return number of SBricks queued, waiting for retry or connecting
+     */
+    public int getPendingCount() {
+        return attempts.size();
+    }
+
+    private void startNext() {
+        while (activeConnects < maxConcurrentConnects && !queue.isEmpty()) {
+            SBrick sbrick = pollNext();
+            Attempt attempt = attempts.get(sbrick);
+            attempt.count++;
+            if (sbrick.isReady()) {
+                handleReady(sbrick);
+                continue;
+            }
+            if (sbrick.connect()) {
+                Log.d(TAG, "connecting " + sbrick.getId() + ", attempt " + attempt.count);
+            } else {
+                Log.d(TAG, "SBrick " + sbrick.getId() + " is already connecting");
+            }
+            attempt.active = true;
+            activeConnects++;
+            handler.postDelayed(attempt.timeout, connectTimeout);
+        }
+    }
+
+    private SBrick pollNext() {
+        if (connectOrder == null) {
+            return queue.poll();
+        }
+        SBrick first = null;
+        for (SBrick sbrick : queue) {
+            if (first == null || connectOrder.compare(sbrick, first) < 0) {
+                first = sbrick;
+            }
+        }
+        queue.remove(first);
+        return first;
+    }
+
+    // SBrick state changes come on I/O thread, attempts are handled on main thread
+
+    @Override
+    public void onSBrickReady(SBrick sbrick) {
+        handler.post(() -> handleReady(sbrick));
+    }
+
+    @Override
+    public void onSBrickDisconnected(SBrick sbrick, int status) {
+        handler.post(() -> handleDisconnected(sbrick, status));
+    }
+
+    private void handleReady(SBrick sbrick) {
+        Attempt attempt = attempts.get(sbrick);
+        if (attempt == null) return;
+        long totalMillis = (System.nanoTime() - attempt.startNanos) / 1_000_000L;
+        Log.d(TAG, "connected " + sbrick.getId() + " in " + totalMillis + "ms, attempts: " + attempt.count);
+        finish(attempt);
+        if (listener != null) {
+            listener.onSBrickConnected(sbrick, totalMillis, attempt.count);
+        }
+        startNext();
+    }
+
+    private void handleDisconnected(SBrick sbrick, int status) {
+        Attempt attempt = attempts.get(sbrick);
+        if (attempt == null || !attempt.active) return;
+        attempt.active = false;
+        activeConnects--;
+        handler.removeCallbacks(attempt.timeout);
+        if (attempt.count < maxAttempts) {
+            long delay = Backoff.delayMillis(attempt.count - 1, retryBaseDelay, retryMaxDelay, random);
+            Log.w(TAG, "connecting " + sbrick.getId() + " failed, status " + status + ", retry in " + delay + "ms");
+            handler.postDelayed(attempt.retry, delay);
+        } else {
+            Log.e(TAG, "connecting " + sbrick.getId() + " failed " + attempt.count + " times, status " + status);
+            finish(attempt);
+            if (listener != null) {
+                listener.onSBrickConnectFailed(sbrick, attempt.count, status);
+            }
+        }
+        startNext();
+    }
+
+    private void finish(Attempt attempt) {
+        if (attempt.active) {
+            attempt.active = false;
+            activeConnects--;
+        }
+        handler.removeCallbacks(attempt.timeout);
+        attempts.remove(attempt.sbrick);
+        attempt.sbrick.removeStateListener(this);
+    }
+
+    /**
+     * Connection state of single SBrick.
+     */
+    private class Attempt {
+        final SBrick sbrick;
+        final long startNanos = System.nanoTime();
+        int count = 0;
+        boolean active = false;
+
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "connecting " + Attempt.this.sbrick.getId() + " timed out");
+                Attempt.this.sbrick.disconnect();
+            }
+        };
+
+        final Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                queue.add(Attempt.this.sbrick);
+                startNext();
+            }
+        };
+
+        Attempt(SBrick sbrick) {
+            this.sbrick = sbrick;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package it.ambient.androidsbrick;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import it.ambient.androidsbrick.command.ChannelState;
+import it.ambient.androidsbrick.command.SBrickCommand;
+import it.ambient.androidsbrick.transport.IoThread;
+
+/**
+ * Group of SBricks changing state at the same moment, e.g. locomotives of one
+ * train or motors of one vehicle connected to different SBricks.
+ *
+ * Group command sets channels of many SBricks. It's passed to all of them first,
+ * then written in one pass of I/O thread: SBricks with free link go first, slower
+ * links before faster ones, so that commands arrive as close to each other as possible.
+ * Skew between first and last write of each dispatch is measured and reported.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class SBrickGroup {
+    private static final int CHANNEL_COUNT = SBrickCommand.CHANNEL_COUNT;
+
+    private final SBrick[] members;
+    private volatile Listener listener;
+    private volatile long lastSkewNanos;
+    private volatile long maxSkewNanos;
+    private volatile long dispatchCount;
+
+    /**
+     * Receives result of each group dispatch. Called on I/O thread.
+     */
+    public interface Listener {
+        /**
+         * @param writtenCount number of SBricks which received group command
+         * @param skewNanos time between first and last write
+         * @param latencyNanos time from execute() to last write
+         */
+        void onGroupDispatched(SBrickGroup group, int writtenCount, long skewNanos, long latencyNanos);
+    }
+
+    /**
+     * Constructor
+     * @param sbricks group members
+     */
+    public SBrickGroup(SBrick... sbricks) {
+        members = sbricks.clone();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public List<SBrick> getMembers() {
+        return Arrays.asList(members.clone());
+    }
+
+    /**
+     * Creates empty command for members of this group. Command can be reused.
+     * @return group command
+     */
+    public Command newCommand() {
+        return new Command();
+    }
+
+    /**
+     * Sends group command to its SBricks. SBricks without channels set in
+     * command aren't written. Can be called from any thread, command can be
+     * changed right after the call.
+     * @param command group command
+     */
+    public void execute(Command command) {
+        List<SBrick> targets = new ArrayList<>(members.length);
+        for (int i = 0; i < members.length; i++) {
+            if (command.masks[i] != 0) {
+                targets.add(members[i]);
+            }
+        }
+        if (targets.isEmpty()) return;
+        Dispatch dispatch = new Dispatch(targets.toArray(new SBrick[0]));
+        for (int i = 0; i < members.length; i++) {
+            if (command.masks[i] == 0) continue;
+            members[i].postGroupState(dispatch, command.masks[i], command.modes[i],
+                    command.directions[i], command.powers[i]);
+        }
+        // usually all SBricks share one I/O thread, so it's woken up once
+        List<IoThread> ioThreads = new ArrayList<>(1);
+        for (SBrick target : dispatch.targets) {
+            IoThread ioThread = target.getIoThread();
+            if (!ioThreads.contains(ioThread)) {
+                ioThreads.add(ioThread);
+                ioThread.post(() -> fanOut(ioThread, dispatch));
+            }
+        }
+    }
+
+    /**
+     * @return skew between first and last write of last dispatch, in nanoseconds
+     */
+    public long getLastSkewNanos() {
+        return lastSkewNanos;
+    }
+
+    /**
+     * @return largest skew measured by this group, in nanoseconds
+     */
+    public long getMaxSkewNanos() {
+        return maxSkewNanos;
+    }
+
+    /**
+     * @return number of completed dispatches
+     */
+    public long getDispatchCount() {
+        return dispatchCount;
+    }
+
+    /**
+     * Writes dispatch to SBricks of given I/O thread, in one pass.
+     */
+    private void fanOut(IoThread ioThread, Dispatch dispatch) {
+        List<SBrick> ordered = new ArrayList<>(dispatch.targets.length);
+        for (SBrick target : dispatch.targets) {
+            if (target.getIoThread() == ioThread) {
+                ordered.add(target);
+            }
+        }
+        Collections.sort(ordered, WRITE_ORDER);
+        for (SBrick target : ordered) {
+            target.dispatchGroupState();
+        }
+    }
+
+    /**
+     * SBricks with free link first, they are written right away. Then slower links first,
+     * so that their commands arrive close to the faster ones.
+     */
+    private static final Comparator<SBrick> WRITE_ORDER = (first, second) -> {
+        if (first.isLinkBusy() != second.isLinkBusy()) {
+            return first.isLinkBusy() ? 1 : -1;
+        }
+        return Long.compare(second.getWriteStats().getAverageLatencyNanos(),
+                first.getWriteStats().getAverageLatencyNanos());
+    };
+
+    private void onDispatchComplete(Dispatch dispatch) {
+        long skew = dispatch.writtenCount == 0 ? 0 : dispatch.lastWriteNanos - dispatch.firstWriteNanos;
+        long latency = dispatch.writtenCount == 0 ? 0 : dispatch.lastWriteNanos - dispatch.startNanos;
+        synchronized (this) {
+            lastSkewNanos = skew;
+            if (skew > maxSkewNanos) {
+                maxSkewNanos = skew;
+            }
+            dispatchCount++;
+        }
+        Listener currentListener = listener;
+        if (currentListener != null) {
+            currentListener.onGroupDispatched(this, dispatch.writtenCount, skew, latency);
+        }
+    }
+
+    /**
+     * Channel state of all group members. Each channel is rotated or stopped,
+     * last call for the channel wins. Not thread safe.
+     */
+    public class Command {
+        private final int[] masks = new int[members.length];
+        private final byte[][] modes = new byte[members.length][CHANNEL_COUNT];
+        private final byte[][] directions = new byte[members.length][CHANNEL_COUNT];
+        private final byte[][] powers = new byte[members.length][CHANNEL_COUNT];
+
+        private Command() {
+        }
+
+        /**
+         * Rotates channel of group member.
+         * @param sbrick group member
+         * @param channel SBrickCommand.CHANNEL_A - CHANNEL_D
+         * @param direction RotateCommand.DIR_CLOCKWISE or DIR_COUNTER_CLOCKWISE
+         * @param power rotation power
+         */
+        public Command rotate(SBrick sbrick, int channel, byte direction, byte power) {
+            return set(sbrick, channel, ChannelState.MODE_DRIVE, direction, power);
+        }
+
+        /**
+         * Stops channel of group member.
+         * @param sbrick group member
+         * @param channel SBrickCommand.CHANNEL_A - CHANNEL_D
+         */
+        public Command stop(SBrick sbrick, int channel) {
+            return set(sbrick, channel, ChannelState.MODE_STOP, (byte) 0, (byte) 0);
+        }
+
+        /**
+         * Removes all channels from command.
+         */
+        public Command clear() {
+            Arrays.fill(masks, 0);
+            return this;
+        }
+
+        private Command set(SBrick sbrick, int channel, byte mode, byte direction, byte power) {
+            int member = indexOf(sbrick);
+            masks[member] |= 1 << channel;
+            modes[member][channel] = mode;
+            directions[member][channel] = direction;
+            powers[member][channel] = power;
+            return this;
+        }
+    }
+
+    private int indexOf(SBrick sbrick) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] == sbrick) return i;
+        }
+        throw new IllegalArgumentException("SBrick " + sbrick.getId() + " isn't member of group");
+    }
+
+    /**
+     * Single execution of group command. Completed when every target SBrick
+     * wrote it, or skipped it because it's disconnected or newer state replaced it.
+     */
+    class Dispatch {
+        final SBrick[] targets;
+        final long startNanos = System.nanoTime();
+        private int remaining;
+        private int writtenCount;
+        private long firstWriteNanos;
+        private long lastWriteNanos;
+
+        Dispatch(SBrick[] targets) {
+            this.targets = targets;
+            this.remaining = targets.length;
+        }
+
+        void onWritten(SBrick sbrick, long writeNanos) {
+            synchronized (this) {
+                if (writtenCount == 0 || writeNanos < firstWriteNanos) {
+                    firstWriteNanos = writeNanos;
+                }
+                if (writtenCount == 0 || writeNanos > lastWriteNanos) {
+                    lastWriteNanos = writeNanos;
+                }
+                writtenCount++;
+                if (--remaining > 0) return;
+            }
+            onDispatchComplete(this);
+        }
+
+        void onSkipped(SBrick sbrick) {
+            synchronized (this) {
+                if (--remaining > 0) return;
+            }
+            onDispatchComplete(this);
+        }
+    }
+}
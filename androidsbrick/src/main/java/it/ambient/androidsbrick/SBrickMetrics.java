@@ -0,0 +1,167 @@
+package it.ambient.androidsbrick;
+
+import it.ambient.androidsbrick.transport.LatencyHistogram;
+
+/**
+ * Snapshot of SBrick runtime metrics: command counters, write latency histogram
+ * and link health. Taken with SBrick.getMetrics() or passed periodically
+ * to SBrickMetricsListener. Values don't change after snapshot is taken.
+ *
+ * Commands are issued by execute(). Issued rotate and stop commands are coalesced
+ * when newer command replaces their channels before they are written, other
+ * commands are dropped when command buffer is full.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class SBrickMetrics {
+    /** RSSI not read yet, same value as Android uses for unknown RSSI. */
+    public static final int RSSI_UNKNOWN = 127;
+
+    private final String id;
+    private final long timestampNanos;
+    private final boolean ready;
+    private final long commandsIssued;
+    private final long commandsCoalesced;
+    private final long commandsDropped;
+    private final long writeCount;
+    private final long fastModeWriteCount;
+    private final long failureCount;
+    private final long retryCount;
+    private final LatencyHistogram latencyHistogram;
+    private final long connectDurationMillis;
+    private final int reconnectCount;
+    private final long lastRecoveryMillis;
+    private final int rssi;
+
+    SBrickMetrics(String id, long timestampNanos, boolean ready,
+                  long commandsIssued, long commandsCoalesced, long commandsDropped,
+                  long writeCount, long fastModeWriteCount, long failureCount, long retryCount,
+                  LatencyHistogram latencyHistogram,
+                  long connectDurationMillis, int reconnectCount, long lastRecoveryMillis, int rssi) {
+        this.id = id;
+        this.timestampNanos = timestampNanos;
+        this.ready = ready;
+        this.commandsIssued = commandsIssued;
+        this.commandsCoalesced = commandsCoalesced;
+        this.commandsDropped = commandsDropped;
+        this.writeCount = writeCount;
+        this.fastModeWriteCount = fastModeWriteCount;
+        this.failureCount = failureCount;
+        this.retryCount = retryCount;
+        this.latencyHistogram = latencyHistogram;
+        this.connectDurationMillis = connectDurationMillis;
+        this.reconnectCount = reconnectCount;
+        this.lastRecoveryMillis = lastRecoveryMillis;
+        this.rssi = rssi;
+    }
+
+    /**
+     * @return SBrick device id
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return System.nanoTime() of snapshot
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public long getCommandsIssued() {
+        return commandsIssued;
+    }
+
+    public long getCommandsCoalesced() {
+        return commandsCoalesced;
+    }
+
+    public long getCommandsDropped() {
+        return commandsDropped;
+    }
+
+    /**
+     * @return acknowledged writes
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * @return writes without response, sent in fast mode
+     */
+    public long getFastModeWriteCount() {
+        return fastModeWriteCount;
+    }
+
+    /**
+     * @return failed or timed out writes, acknowledged and fast mode ones
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * @return latency histogram of acknowledged writes, since SBrick was created
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    /**
+     * @return time from last connect() to SBrick being ready, in milliseconds
+     */
+    public long getConnectDurationMillis() {
+        return connectDurationMillis;
+    }
+
+    /**
+     * @return number of times SBrick got ready again after first connection
+     */
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * @return time from last link loss to automatic reconnect, in milliseconds. 0 if never recovered
+     */
+    public long getLastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    /**
+     * @return last read signal strength in dBm, RSSI_UNKNOWN if not read yet
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    @Override
+    public String toString() {
+        return "SBrickMetrics{id=" + id
+                + ", ready=" + ready
+                + ", issued=" + commandsIssued
+                + ", coalesced=" + commandsCoalesced
+                + ", dropped=" + commandsDropped
+                + ", writes=" + writeCount
+                + ", fastModeWrites=" + fastModeWriteCount
+                + ", failures=" + failureCount
+                + ", retries=" + retryCount
+                + ", p50Us=" + latencyHistogram.getValueAtPercentile(50)
+                + ", p99Us=" + latencyHistogram.getValueAtPercentile(99)
+                + ", maxUs=" + latencyHistogram.getMaxMicros()
+                + ", connectMs=" + connectDurationMillis
+                + ", reconnects=" + reconnectCount
+                + ", lastRecoveryMs=" + lastRecoveryMillis
+                + ", rssi=" + rssi + "}";
+    }
+}
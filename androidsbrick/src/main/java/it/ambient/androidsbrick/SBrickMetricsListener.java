@@ -0,0 +1,15 @@
+package it.ambient.androidsbrick;
+
+/**
+ * Receives periodic SBrick metrics, set with SBrick.setMetricsListener().
+ * Called on SBrick I/O thread, so UI changes should be posted to main thread.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public interface SBrickMetricsListener {
+
+    /**
+     * @param metrics snapshot taken at the end of period
+     */
+    void onMetrics(SBrick sbrick, SBrickMetrics metrics);
+}
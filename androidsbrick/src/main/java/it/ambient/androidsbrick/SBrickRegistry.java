@@ -0,0 +1,299 @@
+package it.ambient.androidsbrick;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Known SBricks kept on disk: address, name and last time SBrick was seen.
+ * ConnectionHelper connects known SBricks directly on app start, without waiting
+ * for scan, and scans in background only for unknown or unreachable ones.
+ * SBricks not seen for 30 days (by default) are aged out.
+ *
+ * File is small binary: header, then for each SBrick 6 byte address, name and
+ * last seen time. It's written to temporary file first and renamed over previous
+ * one, so crash during save never leaves broken registry. Thread safe.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class SBrickRegistry {
+    private static final String TAG = "SBrickRegistry";
+    public static final String DEFAULT_FILE_NAME = "sbrick_registry.bin";
+    public static final long DEFAULT_MAX_AGE = 30L * 24 * 60 * 60 * 1000; // 30 days in ms
+
+    private static final int FILE_MAGIC = 0x53427267; // "SBrg"
+    private static final int FILE_VERSION = 1;
+    // entry count is written as unsigned short, registry is capped well below it
+    private static final int MAX_ENTRIES = 256;
+
+    private static ExecutorService saveExecutor;
+
+    private final File file;
+    private final Map<Long, Entry> entries = new LinkedHashMap<>();
+    private long maxAge = DEFAULT_MAX_AGE;
+    private boolean modified;
+
+    /**
+     * Registered SBrick.
+     */
+    public static class Entry {
+        private final long address;
+        private final String name;
+        private final long lastSeenMillis;
+
+        Entry(long address, String name, long lastSeenMillis) {
+            this.address = address;
+            this.name = name;
+            this.lastSeenMillis = lastSeenMillis;
+        }
+
+        /**
+         * @return address in "XX:XX:XX:XX:XX:XX" form
+         */
+        public String getAddress() {
+            return BluetoothAddress.toString(address);
+        }
+
+        /**
+         * @return 48 bit address
+         */
+        public long getAddressValue() {
+            return address;
+        }
+
+        /**
+         * @return device name, empty if unknown
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return System.currentTimeMillis() when SBrick was last found or connected
+         */
+        public long getLastSeenMillis() {
+            return lastSeenMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{address=" + getAddress() + ", name=" + name + ", lastSeen=" + lastSeenMillis + "}";
+        }
+    }
+
+    /**
+     * Constructor, doesn't read the file. Call load() to read it.
+     * @param file registry file
+     */
+    public SBrickRegistry(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens registry kept in application files directory and loads it.
+     * @param context application context
+     * @return loaded registry, empty if file doesn't exist
+     */
+    public static SBrickRegistry open(Context context) {
+        SBrickRegistry registry = new SBrickRegistry(new File(context.getFilesDir(), DEFAULT_FILE_NAME));
+        registry.load();
+        return registry;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Set after how long unseen SBrick is removed by ageOut(). Default is 30 days.
+     * @param maxAge age in milliseconds
+     */
+    public synchronized void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Replaces entries with content of the file.
+     * @return false if file is missing or broken, registry is empty then
+     */
+    public synchronized boolean load() {
+        entries.clear();
+        modified = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readUnsignedByte() != FILE_VERSION) {
+                Log.w(TAG, "load - unknown file format");
+                return false;
+            }
+            int count = in.readUnsignedShort();
+            if (count > MAX_ENTRIES) {
+                Log.w(TAG, "load - too many entries: " + count);
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                long address = (long) in.readUnsignedShort() << 32 | (in.readInt() & 0xFFFFFFFFL);
+                String name = in.readUTF();
+                long lastSeen = in.readLong();
+                entries.put(address, new Entry(address, name, lastSeen));
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.w(TAG, "load - broken file: " + e.getMessage());
+            entries.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Writes entries to the file, if they changed since last load or save.
+     * Temporary file is synced to disk before it replaces previous one.
+     * @return false if file couldn't be written
+     */
+    public synchronized boolean save() {
+        if (!modified) return true;
+        File temporary = new File(file.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temporary)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+            out.writeInt(FILE_MAGIC);
+            out.writeByte(FILE_VERSION);
+            out.writeShort(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeShort((int) (entry.address >>> 32));
+                out.writeInt((int) entry.address);
+                out.writeUTF(entry.name);
+                out.writeLong(entry.lastSeenMillis);
+            }
+            out.flush();
+            output.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "save - " + e.getMessage());
+            temporary.delete();
+            return false;
+        }
+        if (!temporary.renameTo(file)) {
+            Log.e(TAG, "save - can't replace " + file);
+            temporary.delete();
+            return false;
+        }
+        modified = false;
+        return true;
+    }
+
+    /**
+     * Saves entries on background thread shared by all registries, so that file
+     * writes and sync don't block calling thread, e.g. main thread.
+     */
+    public void saveInBackground() {
+        getSaveExecutor().execute(this::save);
+    }
+
+    private static synchronized ExecutorService getSaveExecutor() {
+        if (saveExecutor == null) {
+            saveExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "SBrickRegistry");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return saveExecutor;
+    }
+
+    /**
+     * Adds SBrick or updates its entry.
+     * @param address SBrick address
+     * @param name device name, null to keep known name
+     * @param lastSeenMillis System.currentTimeMillis() when SBrick was seen
+     * @return false if address is invalid
+     */
+    public synchronized boolean markSeen(String address, String name, long lastSeenMillis) {
+        long value = BluetoothAddress.toLong(address);
+        if (value == BluetoothAddress.INVALID) return false;
+        Entry previous = entries.remove(value);
+        if (name == null) {
+            name = previous != null ? previous.name : "";
+        }
+        // most recently seen last, so the oldest is dropped when registry is full
+        entries.put(value, new Entry(value, name, lastSeenMillis));
+        if (entries.size() > MAX_ENTRIES) {
+            Iterator<Entry> oldest = entries.values().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        modified = true;
+        return true;
+    }
+
+    /**
+     * @return entry of SBrick, null if it isn't registered
+     */
+    public synchronized Entry get(String address) {
+        return entries.get(BluetoothAddress.toLong(address));
+    }
+
+    public synchronized boolean contains(String address) {
+        return entries.containsKey(BluetoothAddress.toLong(address));
+    }
+
+    /**
+     * @return registered SBricks, most recently seen first
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        Collections.reverse(list);
+        return list;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return true if SBrick was registered
+     */
+    public synchronized boolean remove(String address) {
+        boolean removed = entries.remove(BluetoothAddress.toLong(address)) != null;
+        modified |= removed;
+        return removed;
+    }
+
+    public synchronized void clear() {
+        modified |= !entries.isEmpty();
+        entries.clear();
+    }
+
+    /**
+     * Removes SBricks not seen for longer than max age.
+     * @param nowMillis System.currentTimeMillis()
+     * @return number of removed SBricks
+     */
+    public synchronized int ageOut(long nowMillis) {
+        int removed = 0;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (nowMillis - iterator.next().lastSeenMillis > maxAge) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        modified |= removed > 0;
+        return removed;
+    }
+}
@@ -0,0 +1,18 @@
+package it.ambient.androidsbrick;
+
+/**
+ * Receives responses of queries other than ADC query, e.g. QueryWatchdogTimeoutCommand.
+ * Called on SBrick I/O thread.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public interface SBrickResponseListener {
+
+    /**
+     * Response of query, decoded by static method of query command,
+     * e.g. QueryWatchdogTimeoutCommand.decodeTimeoutMillis().
+     * @param query written query stream
+     * @param response SBrick response
+     */
+    void onResponse(SBrick sbrick, byte[] query, byte[] response);
+}
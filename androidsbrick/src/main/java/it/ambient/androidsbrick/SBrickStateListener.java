@@ -0,0 +1,31 @@
+package it.ambient.androidsbrick;
+
+/**
+ * Receives SBrick connection state changes. Called on SBrick I/O thread,
+ * so UI changes should be posted to main thread.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public interface SBrickStateListener {
+
+    /**
+     * SBrick is connected and ready for commands.
+     */
+    void onSBrickReady(SBrick sbrick);
+
+    /**
+     * SBrick disconnected, or connection attempt failed.
+     *
+     * @param status GATT status, e.g. 133 for failed connection, 0 if disconnected by application
+     */
+    void onSBrickDisconnected(SBrick sbrick, int status);
+
+    /**
+     * SBrick reconnected automatically after link loss, called right after onSBrickReady().
+     *
+     * @param recoveryMillis time from link loss to SBrick being ready
+     * @param attempts number of reconnect attempts
+     */
+    default void onSBrickRecovered(SBrick sbrick, long recoveryMillis, int attempts) {
+    }
+}
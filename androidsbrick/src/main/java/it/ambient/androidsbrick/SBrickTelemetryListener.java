@@ -0,0 +1,16 @@
+package it.ambient.androidsbrick;
+
+import it.ambient.androidsbrick.command.TelemetrySample;
+
+/**
+ * Receives decoded SBrick telemetry. Called on SBrick I/O thread.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public interface SBrickTelemetryListener {
+
+    /**
+     * New reading of battery voltage, temperature or channel input.
+     */
+    void onTelemetrySample(SBrick sbrick, TelemetrySample sample);
+}
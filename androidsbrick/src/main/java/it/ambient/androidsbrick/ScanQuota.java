@@ -0,0 +1,46 @@
+package it.ambient.androidsbrick;
+
+/**
+ * Tracks scan starts of whole application. Android 7+ silently ignores scans
+ * started more than 5 times in 30 seconds, so scans started by ConnectionHelper
+ * and PresenceMonitor are counted together.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+final class ScanQuota {
+    static final int MAX_STARTS = 5;
+    static final long PERIOD = 30000; // ms
+    // clocks of devices and stack differ a bit, starts are spaced with margin
+    private static final long MARGIN = 500; // ms
+    /** Scans started periodically at least this far apart never wait for quota. */
+    static final long MIN_INTERVAL = (PERIOD + MARGIN) / MAX_STARTS; // ms
+
+    private static final long[] starts = new long[MAX_STARTS];
+    private static int count = 0;
+    private static int oldest = 0;
+
+    private ScanQuota() {
+    }
+
+    /**
+     * @param nowMillis current time, SystemClock.elapsedRealtime()
+     * @return how long to wait before scan can be started, 0 if it can be started now
+     */
+    static synchronized long getDelayMillis(long nowMillis) {
+        if (count < MAX_STARTS) return 0;
+        return Math.max(0, starts[oldest] + PERIOD + MARGIN - nowMillis);
+    }
+
+    /**
+     * Records scan start, oldest start falls out of quota.
+     * @param nowMillis current time, SystemClock.elapsedRealtime()
+     */
+    static synchronized void recordStart(long nowMillis) {
+        if (count < MAX_STARTS) {
+            starts[(oldest + count++) % MAX_STARTS] = nowMillis;
+        } else {
+            starts[oldest] = nowMillis;
+            oldest = (oldest + 1) % MAX_STARTS;
+        }
+    }
+}
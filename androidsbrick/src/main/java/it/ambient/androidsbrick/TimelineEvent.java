@@ -0,0 +1,82 @@
+package it.ambient.androidsbrick;
+
+/**
+ * Single timeline event: channel of one SBrick driven or stopped at given time.
+ * Mutable, so reader can fill the same event for each record without allocating.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class TimelineEvent {
+    private long timeMicros;
+    private int brick;
+    private long brickAddress;
+    private int channel;
+    private byte mode;
+    private byte direction;
+    private byte power;
+
+    /**
+     * Sets all values of event.
+     *
+     * @param timeMicros time from timeline start, in microseconds
+     * @param brick index of SBrick in timeline
+     * @param brickAddress 48 bit address of SBrick
+     * @param channel SBrickCommand.CHANNEL_A - CHANNEL_D
+     * @param mode ChannelState.MODE_DRIVE or MODE_STOP
+     * @param direction RotateCommand.DIR_* constant, ignored when stopped
+     * @param power channel power, ignored when stopped
+     * @return TimelineEvent to allow chaining
+     */
+    public TimelineEvent set(long timeMicros, int brick, long brickAddress,
+                             int channel, byte mode, byte direction, byte power) {
+        this.timeMicros = timeMicros;
+        this.brick = brick;
+        this.brickAddress = brickAddress;
+        this.channel = channel;
+        this.mode = mode;
+        this.direction = direction;
+        this.power = power;
+        return this;
+    }
+
+    public long getTimeMicros() {
+        return timeMicros;
+    }
+
+    /**
+     * @return index of SBrick, in order SBricks appear in timeline
+     */
+    public int getBrick() {
+        return brick;
+    }
+
+    public long getBrickAddress() {
+        return brickAddress;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    public byte getMode() {
+        return mode;
+    }
+
+    public byte getDirection() {
+        return direction;
+    }
+
+    public byte getPower() {
+        return power;
+    }
+
+    @Override
+    public String toString() {
+        return "TimelineEvent{timeUs=" + timeMicros
+                + ", brick=" + brick
+                + ", channel=" + channel
+                + ", mode=" + mode
+                + ", direction=" + direction
+                + ", power=" + (power & 0xFF) + "}";
+    }
+}
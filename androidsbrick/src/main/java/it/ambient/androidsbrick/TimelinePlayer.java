@@ -0,0 +1,234 @@
+package it.ambient.androidsbrick;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import it.ambient.androidsbrick.command.ChannelState;
+import it.ambient.androidsbrick.command.RotateCommand;
+import it.ambient.androidsbrick.command.SBrickCommand;
+import it.ambient.androidsbrick.command.StopCommand;
+
+/**
+ * Plays timeline recorded by TimelineRecorder, or written with TimelineWriter,
+ * e.g. choreographed show of many SBricks.
+ *
+ * Events are read from disk one at a time, on playback thread, so timeline of
+ * any length is played in constant memory. Each event is due at fixed time
+ * from playback start, not from previous event, so late events (e.g. after
+ * GC pause) don't shift the rest of timeline. Events due at the same time are
+ * passed to each SBrick as one command. Commands are reused, playback doesn't
+ * allocate per event.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class TimelinePlayer {
+    private static final String TAG = "TimelinePlayer";
+    private static final int MAX_BRICKS = 256;
+    // park is coarse, the rest is waited by yielding
+    private static final long SPIN_NANOS = 500_000L;
+
+    private final File file;
+    private final Map<String, SBrick> sbricks;
+    private volatile Listener listener;
+    private volatile long leadNanos;
+    private volatile boolean playing;
+    private volatile long eventCount;
+    private volatile long maxLatenessNanos;
+    private Thread thread;
+
+    // used on playback thread only
+    private final SBrick[] targets = new SBrick[MAX_BRICKS];
+    private final boolean[] resolved = new boolean[MAX_BRICKS];
+    private final int[] stagedMasks = new int[MAX_BRICKS];
+    private final byte[][] stagedModes = new byte[MAX_BRICKS][];
+    private final byte[][] stagedDirections = new byte[MAX_BRICKS][];
+    private final byte[][] stagedPowers = new byte[MAX_BRICKS][];
+    private final int[] touched = new int[MAX_BRICKS];
+    private int touchedCount;
+    private final RotateCommand rotateCommand = new RotateCommand();
+    private final StopCommand stopCommand = new StopCommand();
+
+    /**
+     * Receives end of playback. Called on playback thread.
+     */
+    public interface Listener {
+        /**
+         * @param completed true if whole timeline was played, false if stopped or timeline is broken
+         */
+        void onPlaybackFinished(TimelinePlayer player, boolean completed);
+    }
+
+    /**
+     * Constructor
+     * @param file timeline file
+     * @param sbricks SBricks by address, e.g. from ConnectionCallback.handleSBrickCollection().
+     *                Events of other SBricks are skipped
+     */
+    public TimelinePlayer(File file, Map<String, SBrick> sbricks) {
+        this.file = file;
+        this.sbricks = sbricks;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sends events earlier than recorded, e.g. by typical write latency, so that
+     * they reach SBricks on time. Default is 0.
+     * @param leadMillis lead in milliseconds
+     */
+    public void setLeadMillis(long leadMillis) {
+        leadNanos = leadMillis * 1_000_000L;
+    }
+
+    /**
+     * Starts playback on its own thread.
+     * @return false if already playing
+     */
+    public synchronized boolean start() {
+        if (playing) return false;
+        playing = true;
+        eventCount = 0;
+        maxLatenessNanos = 0;
+        thread = new Thread(this::play, "SBrickTimeline");
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stops playback. Channels keep their last played state.
+     */
+    public synchronized void stop() {
+        playing = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    /**
+     * @return number of events played
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return largest delay between event due time and its execution, in microseconds
+     */
+    public long getMaxLatenessMicros() {
+        return maxLatenessNanos / 1000;
+    }
+
+    private void play() {
+        boolean completed = false;
+        try (InputStream stream = new FileInputStream(file)) {
+            TimelineReader reader = new TimelineReader(stream);
+            TimelineEvent event = new TimelineEvent();
+            long startNanos = System.nanoTime();
+            boolean hasEvent = reader.next(event);
+            while (playing && hasEvent) {
+                long time = event.getTimeMicros();
+                long dueNanos = startNanos + time * 1000 - leadNanos;
+                if (!waitUntil(dueNanos)) break;
+                long lateness = System.nanoTime() - dueNanos;
+                if (lateness > maxLatenessNanos) {
+                    maxLatenessNanos = lateness;
+                }
+                do {
+                    stage(reader, event);
+                    hasEvent = reader.next(event);
+                } while (hasEvent && event.getTimeMicros() == time);
+                executeStaged();
+            }
+            completed = playing && !hasEvent;
+        } catch (IOException e) {
+            Log.e(TAG, "playback failed: " + e.getMessage());
+        }
+        playing = false;
+        Listener currentListener = listener;
+        if (currentListener != null) {
+            currentListener.onPlaybackFinished(this, completed);
+        }
+    }
+
+    /**
+     * Waits for due time without drifting: parks for most of the wait, then yields
+     * until due time passes.
+     * @return false if playback was stopped
+     */
+    private boolean waitUntil(long dueNanos) {
+        long remaining;
+        while ((remaining = dueNanos - System.nanoTime()) > 0) {
+            if (!playing) return false;
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+        return playing;
+    }
+
+    /**
+     * Stages event for its SBrick, later event of the same channel wins.
+     */
+    private void stage(TimelineReader reader, TimelineEvent event) {
+        int brick = event.getBrick();
+        if (!resolved[brick]) {
+            resolved[brick] = true;
+            targets[brick] = sbricks.get(BluetoothAddress.toString(reader.getBrickAddress(brick)));
+            stagedModes[brick] = new byte[SBrickCommand.CHANNEL_COUNT];
+            stagedDirections[brick] = new byte[SBrickCommand.CHANNEL_COUNT];
+            stagedPowers[brick] = new byte[SBrickCommand.CHANNEL_COUNT];
+        }
+        if (targets[brick] == null) return;
+        if (stagedMasks[brick] == 0) {
+            touched[touchedCount++] = brick;
+        }
+        int channel = event.getChannel();
+        stagedMasks[brick] |= 1 << channel;
+        stagedModes[brick][channel] = event.getMode();
+        stagedDirections[brick][channel] = event.getDirection();
+        stagedPowers[brick][channel] = event.getPower();
+        eventCount++;
+    }
+
+    /**
+     * Executes staged channels of each SBrick, as one rotate and one stop command at most.
+     */
+    private void executeStaged() {
+        for (int i = 0; i < touchedCount; i++) {
+            int brick = touched[i];
+            int mask = stagedMasks[brick];
+            rotateCommand.clear();
+            stopCommand.clear();
+            for (int channel = 0; channel < SBrickCommand.CHANNEL_COUNT; channel++) {
+                if ((mask & (1 << channel)) == 0) continue;
+                if (stagedModes[brick][channel] == ChannelState.MODE_DRIVE) {
+                    rotateCommand.channel(channel, stagedDirections[brick][channel], stagedPowers[brick][channel]);
+                } else {
+                    stopCommand.channel(channel);
+                }
+            }
+            if (rotateCommand.getChannelMask() != 0) {
+                targets[brick].execute(rotateCommand);
+            }
+            if (stopCommand.getChannelMask() != 0) {
+                targets[brick].execute(stopCommand);
+            }
+            stagedMasks[brick] = 0;
+        }
+        touchedCount = 0;
+    }
+}
@@ -0,0 +1,119 @@
+package it.ambient.androidsbrick;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import it.ambient.androidsbrick.command.ChannelState;
+import it.ambient.androidsbrick.command.SBrickCommand;
+
+/**
+ * Reads timeline written by TimelineWriter, one event at a time. Only the
+ * current record is kept in memory, so timeline of any length can be streamed
+ * from disk. Not thread safe.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class TimelineReader implements Closeable {
+    private final DataInputStream in;
+    private final long[] brickAddresses = new long[TimelineWriter.MAX_BRICKS];
+    private int brickCount;
+    private long timeMicros;
+
+    /**
+     * Constructor, reads header.
+     *
+     * @param stream source, e.g. FileInputStream. Buffered by reader
+     * @throws IOException if stream isn't timeline of known version
+     */
+    public TimelineReader(InputStream stream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != TimelineWriter.MAGIC) {
+            throw new IOException("Not a timeline");
+        }
+        int version = in.readUnsignedByte();
+        if (version != TimelineWriter.VERSION) {
+            throw new IOException("Unknown timeline version " + version);
+        }
+    }
+
+    /**
+     * Reads next event into given one.
+     *
+     * @param event event to fill
+     * @return false at end of timeline
+     * @throws IOException if timeline is broken
+     */
+    public boolean next(TimelineEvent event) throws IOException {
+        while (true) {
+            int first = in.read();
+            if (first < 0) return false;
+            timeMicros += readVarLong(first);
+            int kind = in.readUnsignedByte();
+            int channel = kind & 0x0F;
+            int brick = in.readUnsignedByte();
+            switch (kind >>> 4) {
+                case TimelineWriter.KIND_BRICK:
+                    if (brick != brickCount) {
+                        throw new IOException("SBrick " + brick + " declared out of order");
+                    }
+                    brickAddresses[brickCount++] = (long) in.readUnsignedShort() << 32 | (in.readInt() & 0xFFFFFFFFL);
+                    break;
+                case TimelineWriter.KIND_DRIVE:
+                    checkEvent(brick, channel);
+                    event.set(timeMicros, brick, brickAddresses[brick], channel,
+                            ChannelState.MODE_DRIVE, in.readByte(), in.readByte());
+                    return true;
+                case TimelineWriter.KIND_STOP:
+                    checkEvent(brick, channel);
+                    event.set(timeMicros, brick, brickAddresses[brick], channel,
+                            ChannelState.MODE_STOP, (byte) 0, (byte) 0);
+                    return true;
+                default:
+                    throw new IOException("Unknown timeline record " + kind);
+            }
+        }
+    }
+
+    /**
+     * @return number of SBricks declared so far
+     */
+    public int getBrickCount() {
+        return brickCount;
+    }
+
+    /**
+     * @param brick index of declared SBrick
+     * @return 48 bit address of SBrick
+     */
+    public long getBrickAddress(int brick) {
+        return brickAddresses[brick];
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void checkEvent(int brick, int channel) throws IOException {
+        if (brick >= brickCount || channel >= SBrickCommand.CHANNEL_COUNT) {
+            throw new IOException("Broken timeline record, SBrick " + brick + ", channel " + channel);
+        }
+    }
+
+    private long readVarLong(int first) throws IOException {
+        long value = first & 0x7F;
+        int shift = 7;
+        int current = first;
+        while ((current & 0x80) != 0) {
+            current = in.read();
+            if (current < 0) throw new EOFException();
+            value |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
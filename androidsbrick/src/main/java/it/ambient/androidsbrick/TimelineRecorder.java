@@ -0,0 +1,153 @@
+package it.ambient.androidsbrick;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import it.ambient.androidsbrick.command.ChannelState;
+import it.ambient.androidsbrick.command.RotateCommand;
+import it.ambient.androidsbrick.command.SBrickCommand;
+import it.ambient.androidsbrick.command.StopCommand;
+
+/**
+ * Records rotate and stop commands executed on SBricks, including group commands,
+ * to timeline which TimelinePlayer plays back. Timeline starts with the first
+ * recorded command. Ramp command is recorded as rotate to its target, other
+ * commands aren't recorded.
+ *
+ * Recording runs on executing thread and is written through buffer, so it
+ * should be used for recording sessions, not left attached all the time.
+ * Thread safe.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class TimelineRecorder implements Closeable {
+    private static final String TAG = "TimelineRecorder";
+
+    private final TimelineWriter writer;
+    private final List<SBrick> attached = new ArrayList<>();
+    private long startNanos;
+    private boolean started;
+    private boolean failed;
+
+    /**
+     * Constructor
+     * @param file timeline file, overwritten
+     * @throws IOException if file can't be created
+     */
+    public TimelineRecorder(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    /**
+     * Constructor
+     * @param stream timeline destination, closed by close()
+     * @throws IOException if timeline header can't be written
+     */
+    public TimelineRecorder(OutputStream stream) throws IOException {
+        writer = new TimelineWriter(stream);
+    }
+
+    /**
+     * Starts recording commands executed on given SBricks.
+     */
+    public synchronized void attach(SBrick... sbricks) {
+        for (SBrick sbrick : sbricks) {
+            if (attached.contains(sbrick)) continue;
+            attached.add(sbrick);
+            sbrick.setRecorder(this);
+        }
+    }
+
+    /**
+     * Stops recording commands of SBrick.
+     */
+    public synchronized void detach(SBrick sbrick) {
+        if (attached.remove(sbrick)) {
+            sbrick.setRecorder(null);
+        }
+    }
+
+    /**
+     * @return number of recorded channel events
+     */
+    public synchronized long getEventCount() {
+        return writer.getEventCount();
+    }
+
+    /**
+     * Detaches all SBricks and closes timeline.
+     * @throws IOException if buffered events can't be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (SBrick sbrick : attached) {
+            sbrick.setRecorder(null);
+        }
+        attached.clear();
+        writer.close();
+    }
+
+    /**
+     * Records command executed on SBrick.
+     */
+    synchronized void record(SBrick sbrick, SBrickCommand command) {
+        if (command instanceof RotateCommand) {
+            RotateCommand rotateCommand = (RotateCommand) command;
+            int mask = rotateCommand.getChannelMask();
+            long timeMicros = timeMicros();
+            for (int channel = 0; channel < SBrickCommand.CHANNEL_COUNT; channel++) {
+                if ((mask & (1 << channel)) != 0) {
+                    write(timeMicros, sbrick, channel, ChannelState.MODE_DRIVE,
+                            rotateCommand.getDirection(channel), rotateCommand.getPower(channel));
+                }
+            }
+        } else if (command instanceof StopCommand) {
+            int mask = ((StopCommand) command).getChannelMask();
+            long timeMicros = timeMicros();
+            for (int channel = 0; channel < SBrickCommand.CHANNEL_COUNT; channel++) {
+                if ((mask & (1 << channel)) != 0) {
+                    write(timeMicros, sbrick, channel, ChannelState.MODE_STOP, (byte) 0, (byte) 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records channel state posted by group command.
+     */
+    synchronized void record(SBrick sbrick, int mask, byte[] modes, byte[] directions, byte[] powers) {
+        long timeMicros = timeMicros();
+        for (int channel = 0; channel < SBrickCommand.CHANNEL_COUNT; channel++) {
+            if ((mask & (1 << channel)) != 0) {
+                write(timeMicros, sbrick, channel, modes[channel], directions[channel], powers[channel]);
+            }
+        }
+    }
+
+    private long timeMicros() {
+        long now = System.nanoTime();
+        if (!started) {
+            started = true;
+            startNanos = now;
+        }
+        return (now - startNanos) / 1000;
+    }
+
+    private void write(long timeMicros, SBrick sbrick, int channel, byte mode, byte direction, byte power) {
+        if (failed) return;
+        try {
+            writer.write(timeMicros, BluetoothAddress.toLong(sbrick.getId()), channel, mode, direction, power);
+        } catch (IOException e) {
+            // recording mustn't break control, later commands aren't recorded
+            Log.e(TAG, "recording failed: " + e.getMessage());
+            failed = true;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package it.ambient.androidsbrick;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import it.ambient.androidsbrick.command.ChannelState;
+
+/**
+ * Writes timeline of channel events to stream, in compact binary form.
+ *
+ * File starts with 4 byte magic "SBtl" and version. Each record starts with time
+ * since previous record in microseconds, as variable length integer (1 byte
+ * for up to 127us, 3 bytes for up to 2s), and kind byte: record kind in high
+ * nibble, channel in low one. SBrick is declared once with its 6 byte address,
+ * then referenced by 1 byte index. Drive record takes 5-7 bytes, stop record 3-5,
+ * so hour of 50 events per second takes about 1.3MB.
+ *
+ * Events must be written in time order. Not thread safe.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class TimelineWriter implements Closeable {
+    static final int MAGIC                  = 0x5342746C; // "SBtl"
+    static final int VERSION                = 1;
+    static final int KIND_STOP              = ChannelState.MODE_STOP;
+    static final int KIND_DRIVE             = ChannelState.MODE_DRIVE;
+    static final int KIND_BRICK             = 0x0F;
+    static final int MAX_BRICKS             = 256;
+
+    private final DataOutputStream out;
+    private final long[] brickAddresses = new long[MAX_BRICKS];
+    private int brickCount;
+    private long lastTimeMicros;
+    private long eventCount;
+
+    /**
+     * Constructor, writes header.
+     *
+     * @param stream destination, e.g. FileOutputStream. Buffered by writer
+     * @throws IOException if header can't be written
+     */
+    public TimelineWriter(OutputStream stream) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /**
+     * Writes channel event.
+     *
+     * @param timeMicros time from timeline start, in microseconds, not lower than previous one
+     * @param brickAddress 48 bit SBrick address, see BluetoothAddress
+     * @param channel SBrickCommand.CHANNEL_A - CHANNEL_D
+     * @param mode ChannelState.MODE_DRIVE or MODE_STOP
+     * @param direction RotateCommand.DIR_* constant
+     * @param power channel power
+     * @throws IOException if event can't be written, or timeline has more than 256 SBricks
+     */
+    public void write(long timeMicros, long brickAddress, int channel, byte mode, byte direction, byte power)
+            throws IOException {
+        int brick = brickIndex(brickAddress);
+        long delta = Math.max(0, timeMicros - lastTimeMicros);
+        lastTimeMicros += delta;
+        writeVarLong(delta);
+        if (mode == ChannelState.MODE_DRIVE) {
+            out.writeByte(KIND_DRIVE << 4 | channel);
+            out.writeByte(brick);
+            out.writeByte(direction);
+            out.writeByte(power);
+        } else {
+            out.writeByte(KIND_STOP << 4 | channel);
+            out.writeByte(brick);
+        }
+        eventCount++;
+    }
+
+    /**
+     * @return number of written events
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Returns index of SBrick, declaring it on first use.
+     */
+    private int brickIndex(long brickAddress) throws IOException {
+        for (int i = 0; i < brickCount; i++) {
+            if (brickAddresses[i] == brickAddress) return i;
+        }
+        if (brickCount == MAX_BRICKS) {
+            throw new IOException("Timeline can't have more than " + MAX_BRICKS + " SBricks");
+        }
+        int brick = brickCount++;
+        brickAddresses[brick] = brickAddress;
+        writeVarLong(0);
+        out.writeByte(KIND_BRICK << 4);
+        out.writeByte(brick);
+        out.writeShort((int) (brickAddress >>> 32));
+        out.writeInt((int) brickAddress);
+        return brick;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
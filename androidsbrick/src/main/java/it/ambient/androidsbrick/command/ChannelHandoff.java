@@ -0,0 +1,154 @@
+package it.ambient.androidsbrick.command;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Passes rotate and stop commands from any thread to thread writing them to
+ * SBrick, without locks. Each channel has one slot with its latest mode,
+ * direction, power and ramp, written at once, so newer command overwrites
+ * older one which wasn't taken yet, and racing commands never mix. Values are
+ * copied, command can be reused right after posting.
+ *
+ * Any number of threads can post, one thread drains to its ChannelState.
+ */
+public class ChannelHandoff {
+    private static final int CHANNEL_COUNT  = SBrickCommand.CHANNEL_COUNT;
+
+    // longest ramp fitting into slot, about 49 days
+    private static final long MAX_RAMP_MILLIS = 0xFFFFFFFFL;
+
+    // power, direction, mode and ramp curve of each channel in low bytes,
+    // ramp duration in milliseconds in high int, 0 if channel isn't ramped
+    private final AtomicLongArray slots     = new AtomicLongArray(CHANNEL_COUNT);
+    private final AtomicInteger postedMask  = new AtomicInteger();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Sets direction and power of command channels. Thread safe.
+     *
+     * @param command rotate command
+     */
+    public void post(RotateCommand command) {
+        int mask = command.getChannelMask();
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((mask & (1 << channel)) != 0) {
+                slots.set(channel, pack(ChannelState.MODE_DRIVE,
+                        command.getDirection(channel), command.getPower(channel)));
+            }
+        }
+        publish(mask);
+    }
+
+    /**
+     * Sets command channels to stopped. Thread safe.
+     *
+     * @param command stop command
+     */
+    public void post(StopCommand command) {
+        int mask = command.getChannelMask();
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((mask & (1 << channel)) != 0) {
+                slots.set(channel, pack(ChannelState.MODE_STOP, (byte) 0, (byte) 0));
+            }
+        }
+        publish(mask);
+    }
+
+    /**
+     * Starts ramp of command channels to their direction and power. Thread safe.
+     *
+     * @param command ramp command
+     */
+    public void post(RampCommand command) {
+        if (command.getDurationMillis() <= 0) {
+            post((RotateCommand) command);
+            return;
+        }
+        long ramp = Math.min(command.getDurationMillis(), MAX_RAMP_MILLIS) << 32
+                | (long) (command.getCurve() & 0xFF) << 24;
+        int mask = command.getChannelMask();
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((mask & (1 << channel)) != 0) {
+                slots.set(channel, ramp | pack(ChannelState.MODE_DRIVE,
+                        command.getDirection(channel), command.getPower(channel)));
+            }
+        }
+        publish(mask);
+    }
+
+    /**
+     * Sets state of several channels at once. Thread safe.
+     *
+     * @param mask channels to set, bit 0 is channel A
+     * @param modes ChannelState.MODE_STOP or MODE_DRIVE, indexed by channel
+     * @param directions rotation directions, indexed by channel
+     * @param powers rotation powers, indexed by channel
+     */
+    public void post(int mask, byte[] modes, byte[] directions, byte[] powers) {
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((mask & (1 << channel)) != 0) {
+                slots.set(channel, modes[channel] == ChannelState.MODE_DRIVE
+                        ? pack(ChannelState.MODE_DRIVE, directions[channel], powers[channel])
+                        : pack(ChannelState.MODE_STOP, (byte) 0, (byte) 0));
+            }
+        }
+        publish(mask);
+    }
+
+    /**
+     * Moves posted channels to state. Must be called by single thread.
+     *
+     * @param state channel state owned by draining thread
+     * @return true if any channel was posted since last drain
+     */
+    public boolean drainTo(ChannelState state) {
+        int mask = postedMask.getAndSet(0);
+        if (mask == 0) return false;
+        long now = System.nanoTime();
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((mask & (1 << channel)) != 0) {
+                long slot = slots.get(channel);
+                long rampMillis = slot >>> 32;
+                if (rampMillis != 0) {
+                    state.startRamp(channel, (byte) (slot >>> 8), (byte) slot,
+                            rampMillis * 1_000_000L, (byte) (slot >>> 24), now);
+                } else {
+                    state.set(channel, (byte) (slot >>> 16), (byte) (slot >>> 8), (byte) slot);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if some channels were posted and not drained yet
+     */
+    public boolean hasPosted() {
+        return postedMask.get() != 0;
+    }
+
+    /**
+     * @return number of channel updates overwritten before they were drained
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    // slot is written before its bit, so drain sees the value or newer one
+    private void publish(int mask) {
+        int previous;
+        do {
+            previous = postedMask.get();
+        } while (!postedMask.compareAndSet(previous, previous | mask));
+        int overwritten = Integer.bitCount(previous & mask);
+        if (overwritten != 0) {
+            coalescedCount.addAndGet(overwritten);
+        }
+    }
+
+    private static long pack(byte mode, byte direction, byte power) {
+        return (mode & 0xFF) << 16 | (direction & 0xFF) << 8 | (power & 0xFF);
+    }
+}
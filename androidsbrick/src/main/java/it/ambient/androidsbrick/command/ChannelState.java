@@ -0,0 +1,269 @@
+package it.ambient.androidsbrick.command;
+
+/**
+ * Latest commanded state of SBrick channels. Rotate and stop commands overwrite
+ * state of their channels, so only newest values are sent to SBrick, no matter
+ * how many commands were executed between writes.
+ *
+ * Channels changed since last write are pending. SBrick accepts one command type
+ * per write, so when both stopped and driven channels are pending, stop stream
+ * is written first and drive stream on next write.
+ *
+ * Ramping channels change power on each updateRamps() call, until they reach
+ * target. Rotate or stop of ramping channel cancels its ramp.
+ * Not thread safe.
+ */
+public class ChannelState {
+    // channel modes are equal to opcodes of stop and drive commands
+    public static final byte MODE_STOP      = 0x00;
+    public static final byte MODE_DRIVE     = 0x01;
+
+    private static final int CHANNEL_COUNT  = SBrickCommand.CHANNEL_COUNT;
+    private static final int ALL_CHANNELS   = SBrickCommand.ALL_CHANNELS_MASK;
+
+    private final byte[] modes              = new byte[CHANNEL_COUNT];
+    private final byte[] directions         = new byte[CHANNEL_COUNT];
+    private final byte[] powers             = new byte[CHANNEL_COUNT];
+    private int pendingMask                 = 0;
+    // written on one thread, can be read by metrics of other threads
+    private volatile long coalescedCount    = 0;
+
+    // ramp powers are signed, negative is counter clockwise
+    private final int[] rampFrom            = new int[CHANNEL_COUNT];
+    private final int[] rampTo              = new int[CHANNEL_COUNT];
+    private final long[] rampStartNanos     = new long[CHANNEL_COUNT];
+    private final long[] rampDurationNanos  = new long[CHANNEL_COUNT];
+    private final byte[] rampCurves         = new byte[CHANNEL_COUNT];
+    private int rampMask                    = 0;
+
+    /**
+     * Overwrites direction and power of command channels.
+     *
+     * @param command rotate command
+     */
+    public void apply(RotateCommand command) {
+        int mask = command.getChannelMask();
+        coalescedCount += Integer.bitCount(mask & pendingMask);
+        rampMask &= ~mask;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((mask & (1 << channel)) != 0) {
+                modes[channel] = MODE_DRIVE;
+                directions[channel] = command.getDirection(channel);
+                powers[channel] = command.getPower(channel);
+            }
+        }
+        pendingMask |= mask;
+    }
+
+    /**
+     * Sets command channels to stopped.
+     *
+     * @param command stop command
+     */
+    public void apply(StopCommand command) {
+        int mask = command.getChannelMask();
+        coalescedCount += Integer.bitCount(mask & pendingMask);
+        rampMask &= ~mask;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((mask & (1 << channel)) != 0) {
+                modes[channel] = MODE_STOP;
+                powers[channel] = 0;
+            }
+        }
+        pendingMask |= mask;
+    }
+
+    /**
+     * Sets state of single channel, e.g. taken from ChannelHandoff.
+     *
+     * @param channel channel index, 0 is channel A
+     * @param mode MODE_STOP or MODE_DRIVE
+     * @param direction rotation direction, ignored when stopped
+     * @param power rotation power
+     */
+    public void set(int channel, byte mode, byte direction, byte power) {
+        int bit = 1 << channel;
+        if ((pendingMask & bit) != 0) {
+            coalescedCount++;
+        }
+        rampMask &= ~bit;
+        modes[channel] = mode;
+        if (mode == MODE_DRIVE) {
+            directions[channel] = direction;
+        }
+        powers[channel] = power;
+        pendingMask |= bit;
+    }
+
+    /**
+     * Starts ramp of channel from its current state to target.
+     *
+     * @param channel channel index, 0 is channel A
+     * @param direction target direction
+     * @param power target power
+     * @param durationNanos ramp duration
+     * @param curve RampCommand.CURVE_* constant
+     * @param nowNanos System.nanoTime() of ramp start
+     */
+    public void startRamp(int channel, byte direction, byte power, long durationNanos, byte curve, long nowNanos) {
+        rampFrom[channel] = modes[channel] == MODE_DRIVE
+                ? signedPower(directions[channel], powers[channel]) : 0;
+        rampTo[channel] = signedPower(direction, power);
+        rampStartNanos[channel] = nowNanos;
+        rampDurationNanos[channel] = durationNanos;
+        rampCurves[channel] = curve;
+        rampMask |= 1 << channel;
+    }
+
+    /**
+     * Moves ramping channels to their power at given time. Channels which
+     * power changed become pending.
+     *
+     * @param nowNanos System.nanoTime() of next write
+     * @return true if some channels are still ramping
+     */
+    public boolean updateRamps(long nowNanos) {
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            int bit = 1 << channel;
+            if ((rampMask & bit) == 0) continue;
+            long elapsed = nowNanos - rampStartNanos[channel];
+            int value;
+            if (elapsed >= rampDurationNanos[channel]) {
+                value = rampTo[channel];
+                rampMask &= ~bit;
+            } else {
+                double progress = elapsed <= 0 ? 0 : (double) elapsed / rampDurationNanos[channel];
+                double eased = RampCommand.ease(rampCurves[channel], progress);
+                value = rampFrom[channel] + (int) Math.round((rampTo[channel] - rampFrom[channel]) * eased);
+            }
+            // at zero power direction of target is kept
+            byte direction = value < 0 || (value == 0 && rampTo[channel] < 0)
+                    ? RotateCommand.DIR_COUNTER_CLOCKWISE : RotateCommand.DIR_CLOCKWISE;
+            byte power = (byte) Math.abs(value);
+            if (modes[channel] != MODE_DRIVE || directions[channel] != direction || powers[channel] != power) {
+                modes[channel] = MODE_DRIVE;
+                directions[channel] = direction;
+                powers[channel] = power;
+                pendingMask |= bit;
+            }
+        }
+        return rampMask != 0;
+    }
+
+    /**
+     * @return true if some channels are ramping
+     */
+    public boolean hasRamps() {
+        return rampMask != 0;
+    }
+
+    /**
+     * @return true if some channels changed since they were last written
+     */
+    public boolean hasPending() {
+        return pendingMask != 0;
+    }
+
+    /**
+     * Marks all channels as pending, e.g. when write failed and SBrick state is unknown.
+     */
+    public void invalidate() {
+        pendingMask = ALL_CHANNELS;
+    }
+
+    /**
+     * Writes stream of pending channels and marks them as written. Stopped channels go first.
+     *
+     * @param buffer destination, needs SBrickCommand.MAX_STREAM_LENGTH bytes after offset
+     * @param offset index of first written byte
+     * @return number of written bytes, 0 if nothing is pending
+     */
+    public int writePending(byte[] buffer, int offset) {
+        if (pendingMask == 0) return 0;
+        int stopMask = pendingMask & channelsInMode(MODE_STOP);
+        int mask = stopMask != 0 ? stopMask : pendingMask;
+        pendingMask &= ~mask;
+        return writeStream(stopMask != 0 ? MODE_STOP : MODE_DRIVE, mask, buffer, offset);
+    }
+
+    /**
+     * Writes stream repeating current state, used to keep connection alive.
+     * Driven channels are repeated, or stop of all channels if none is driven.
+     * Pending channels aren't changed.
+     *
+     * @param buffer destination, needs SBrickCommand.MAX_STREAM_LENGTH bytes after offset
+     * @param offset index of first written byte
+     * @return number of written bytes
+     */
+    public int writeCurrent(byte[] buffer, int offset) {
+        int driveMask = channelsInMode(MODE_DRIVE);
+        if (driveMask != 0) {
+            return writeStream(MODE_DRIVE, driveMask, buffer, offset);
+        }
+        return writeStream(MODE_STOP, ALL_CHANNELS, buffer, offset);
+    }
+
+    /**
+     * @return true if no channel is driven with power above 0 or ramping
+     */
+    public boolean isStopped() {
+        if (rampMask != 0) return false;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if (modes[channel] == MODE_DRIVE && powers[channel] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte getMode(int channel) {
+        return modes[channel];
+    }
+
+    public byte getDirection(int channel) {
+        return directions[channel];
+    }
+
+    public byte getPower(int channel) {
+        return powers[channel];
+    }
+
+    /**
+     * @return bitmask of channels in given mode, bit 0 is channel A
+     */
+    public int channelsInMode(byte mode) {
+        int mask = 0;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if (modes[channel] == mode) {
+                mask |= 1 << channel;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @return number of channel updates overwritten before they were written
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    private static int signedPower(byte direction, byte power) {
+        return direction == RotateCommand.DIR_COUNTER_CLOCKWISE ? -(power & 0xFF) : power & 0xFF;
+    }
+
+    private int writeStream(byte mode, int mask, byte[] buffer, int offset) {
+        int position = offset;
+        buffer[position++] = mode;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((mask & (1 << channel)) != 0) {
+                buffer[position++] = (byte) channel;
+                if (mode == MODE_DRIVE) {
+                    buffer[position++] = directions[channel];
+                    buffer[position++] = powers[channel];
+                }
+            }
+        }
+        return position - offset;
+    }
+}
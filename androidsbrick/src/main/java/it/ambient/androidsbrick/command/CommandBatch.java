@@ -0,0 +1,165 @@
+package it.ambient.androidsbrick.command;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects several commands and encodes them into as few writes as SBrick
+ * protocol allows. SBrick executes one opcode per write, so commands can be
+ * packed only when they share opcode and take a list of parameters: stop and
+ * rotate commands are merged into one brake and one drive write, later command
+ * of a channel wins. Other commands are written one per write, in order they
+ * were added, before channel writes, so e.g. watchdog timeout applies before
+ * motors start.
+ *
+ * Writes are split at maximum write length, e.g. when MTU wasn't exchanged.
+ * SBrick.execute(CommandBatch) encodes other commands only, channel records of
+ * batch always go through its channel state. Not thread safe.
+ */
+public class CommandBatch {
+    /** Write payload of default ATT MTU. */
+    public static final int DEFAULT_MAX_WRITE_LENGTH = 20;
+    private static final int DRIVE_RECORD_LENGTH = 3;
+    private static final int BRAKE_RECORD_LENGTH = 1;
+
+    private final StopCommand stopCommand = new StopCommand();
+    private final RotateCommand rotateCommand = new RotateCommand();
+    private final List<SBrickCommand> otherCommands = new ArrayList<>();
+
+    /**
+     * Adds command to batch. Channel values are copied, rotate and stop commands
+     * can be reused right after the call. Other commands are kept until clear().
+     *
+     * @param command command to add
+     * @return CommandBatch to allow chaining another command
+     * @throws IllegalArgumentException for ramp command, which isn't a single write
+     */
+    public CommandBatch add(SBrickCommand command) {
+        if (command instanceof RampCommand) {
+            throw new IllegalArgumentException("Ramp command can't be batched");
+        }
+        if (command instanceof RotateCommand) {
+            RotateCommand rotate = (RotateCommand) command;
+            int mask = rotate.getChannelMask();
+            for (int channel = 0; channel < SBrickCommand.CHANNEL_COUNT; channel++) {
+                if ((mask & (1 << channel)) != 0) {
+                    rotateCommand.channel(channel, rotate.getDirection(channel), rotate.getPower(channel));
+                }
+            }
+            stopCommand.removeChannels(mask);
+        } else if (command instanceof StopCommand) {
+            int mask = ((StopCommand) command).getChannelMask();
+            for (int channel = 0; channel < SBrickCommand.CHANNEL_COUNT; channel++) {
+                if ((mask & (1 << channel)) != 0) {
+                    stopCommand.channel(channel);
+                }
+            }
+            rotateCommand.removeChannels(mask);
+        } else {
+            otherCommands.add(command);
+        }
+        return this;
+    }
+
+    /**
+     * Removes all commands, so this instance can be reused for next batch.
+     *
+     * @return CommandBatch to allow chaining commands
+     */
+    public CommandBatch clear() {
+        stopCommand.clear();
+        rotateCommand.clear();
+        otherCommands.clear();
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return stopCommand.getChannelMask() == 0 && rotateCommand.getChannelMask() == 0
+                && otherCommands.isEmpty();
+    }
+
+    /**
+     * @return merged stop command of batch, channels stopped by batch
+     */
+    public StopCommand getStopCommand() {
+        return stopCommand;
+    }
+
+    /**
+     * @return merged rotate command of batch, channels driven by batch
+     */
+    public RotateCommand getRotateCommand() {
+        return rotateCommand;
+    }
+
+    /**
+     * @return commands other than rotate and stop, in order they were added
+     */
+    public List<SBrickCommand> getOtherCommands() {
+        return otherCommands;
+    }
+
+    /**
+     * Encodes batch into writes with default ATT MTU.
+     *
+     * @return command streams, one for each write
+     */
+    public List<byte[]> encode() {
+        return encode(DEFAULT_MAX_WRITE_LENGTH);
+    }
+
+    /**
+     * Encodes batch into writes of given maximum length, which is ATT MTU minus
+     * 3 bytes of ATT header.
+     *
+     * @param maxWriteLength maximum length of one write
+     * @return command streams, one for each write
+     * @throws IllegalArgumentException if any command doesn't fit into one write
+     */
+    public List<byte[]> encode(int maxWriteLength) {
+        if (maxWriteLength < 1 + DRIVE_RECORD_LENGTH) {
+            throw new IllegalArgumentException("Write length too short: " + maxWriteLength);
+        }
+        List<byte[]> writes = new ArrayList<>(Arrays.asList(encodeOtherCommands(maxWriteLength)));
+        splitChannels(stopCommand.getPreparedStream(), BRAKE_RECORD_LENGTH, maxWriteLength, writes);
+        splitChannels(rotateCommand.getPreparedStream(), DRIVE_RECORD_LENGTH, maxWriteLength, writes);
+        return writes;
+    }
+
+    /**
+     * Encodes commands other than rotate and stop, one write each. Channel records
+     * aren't encoded, e.g. when they're written from channel state instead.
+     *
+     * @param maxWriteLength maximum length of one write
+     * @return command streams of other commands, in order they were added
+     * @throws IllegalArgumentException if any other command doesn't fit into one write
+     */
+    public byte[][] encodeOtherCommands(int maxWriteLength) {
+        byte[][] streams = new byte[otherCommands.size()][];
+        for (int i = 0; i < streams.length; i++) {
+            SBrickCommand command = otherCommands.get(i);
+            if (command.getStreamLength() > maxWriteLength) {
+                throw new IllegalArgumentException("Command longer than " + maxWriteLength + " bytes: " + command);
+            }
+            streams[i] = command.getPreparedStream();
+        }
+        return streams;
+    }
+
+    /**
+     * Splits channel command into writes, each with opcode followed by whole channel records.
+     */
+    private static void splitChannels(byte[] stream, int recordLength, int maxWriteLength, List<byte[]> writes) {
+        int recordsPerWrite = (maxWriteLength - 1) / recordLength;
+        int position = 1;
+        while (position < stream.length) {
+            int records = Math.min(recordsPerWrite, (stream.length - position) / recordLength);
+            byte[] write = new byte[1 + records * recordLength];
+            write[0] = stream[0];
+            System.arraycopy(stream, position, write, 1, records * recordLength);
+            writes.add(write);
+            position += records * recordLength;
+        }
+    }
+}
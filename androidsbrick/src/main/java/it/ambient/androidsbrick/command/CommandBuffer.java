@@ -0,0 +1,73 @@
+package it.ambient.androidsbrick.command;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded FIFO of prepared command streams. When full, new streams are rejected.
+ * Not thread safe.
+ */
+public class CommandBuffer {
+    private final ArrayDeque<byte[]> preparedStreams;
+    private final int capacity;
+
+    /**
+     * Constructor
+     * @param capacity max number of queued streams
+     */
+    public CommandBuffer(int capacity) {
+        this.capacity = capacity;
+        preparedStreams = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Queues stream, unless buffer is full.
+     *
+     * @param stream prepared command stream
+     * @return false if buffer was full and stream was skipped
+     */
+    public boolean offer(byte[] stream) {
+        if (preparedStreams.size() >= capacity) {
+            return false;
+        }
+        preparedStreams.addFirst(stream);
+        return true;
+    }
+
+    /**
+     * Queues all streams in given order, or none of them if they don't fit.
+     *
+     * @param streams prepared command streams
+     * @return false if buffer didn't have room for all streams and they were skipped
+     */
+    public boolean offerAll(byte[][] streams) {
+        if (preparedStreams.size() + streams.length > capacity) {
+            return false;
+        }
+        for (byte[] stream : streams) {
+            preparedStreams.addFirst(stream);
+        }
+        return true;
+    }
+
+    /**
+     * @return oldest queued stream or null if buffer is empty
+     */
+    public byte[] poll() {
+        return preparedStreams.pollLast();
+    }
+
+    /**
+     * Drops all queued streams.
+     */
+    public void clear() {
+        preparedStreams.clear();
+    }
+
+    public int size() {
+        return preparedStreams.size();
+    }
+
+    public boolean isEmpty() {
+        return preparedStreams.isEmpty();
+    }
+}
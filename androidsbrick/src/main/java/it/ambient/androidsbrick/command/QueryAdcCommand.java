@@ -0,0 +1,163 @@
+package it.ambient.androidsbrick.command;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Queries SBrick analog inputs: battery voltage, temperature or sensor inputs
+ * of channels. SBrick answers with 2 bytes for each queried input, little
+ * endian, 12 bit value in upper bits. Inputs are queried in ascending order.
+ */
+public class QueryAdcCommand implements SBrickCommand {
+    private static final String TAG                     = "QueryAdcCommand";
+    private static final byte SBRICK_COMMAND            = SBrickProtocol.QUERY_ADC;
+
+    /** Sensor inputs of channels A-D, two for each channel. */
+    public static final int ADC_CHANNEL_A1              = 0x00;
+    public static final int ADC_CHANNEL_A2              = 0x01;
+    public static final int ADC_CHANNEL_B1              = 0x02;
+    public static final int ADC_CHANNEL_B2              = 0x03;
+    public static final int ADC_CHANNEL_C1              = 0x04;
+    public static final int ADC_CHANNEL_C2              = 0x05;
+    public static final int ADC_CHANNEL_D1              = 0x06;
+    public static final int ADC_CHANNEL_D2              = 0x07;
+    public static final int ADC_VOLTAGE                 = 0x08;
+    public static final int ADC_TEMPERATURE             = 0x09;
+    public static final int ADC_INPUT_COUNT             = 10;
+
+    private static final int RESPONSE_BYTES_PER_INPUT   = 2;
+    private int inputMask                               = 0;
+
+    /**
+     * Adds battery voltage to query.
+     *
+     * @return QueryAdcCommand to allow chaining another input
+     */
+    public QueryAdcCommand voltage() {
+        return input(ADC_VOLTAGE);
+    }
+
+    /**
+     * Adds SBrick temperature to query.
+     *
+     * @return QueryAdcCommand to allow chaining another input
+     */
+    public QueryAdcCommand temperature() {
+        return input(ADC_TEMPERATURE);
+    }
+
+    /**
+     * Adds analog input given by index to query.
+     *
+     * @param input QueryAdcCommand.ADC_CHANNEL_A1 - ADC_TEMPERATURE
+     * @return QueryAdcCommand to allow chaining another input
+     */
+    public QueryAdcCommand input(int input) {
+        inputMask |= 1 << input;
+        return this;
+    }
+
+    /**
+     * Removes all inputs, so this instance can be reused for next query.
+     *
+     * @return QueryAdcCommand to allow chaining inputs
+     */
+    public QueryAdcCommand clear() {
+        inputMask = 0;
+        return this;
+    }
+
+    /**
+     * @return bitmask of queried inputs, bit 8 is voltage
+     */
+    public int getInputMask() {
+        return inputMask;
+    }
+
+    public int getStreamLength() {
+        return 1 + Integer.bitCount(inputMask);
+    }
+
+    public int writeTo(byte[] buffer, int offset) {
+        int position = offset;
+        buffer[position++] = SBRICK_COMMAND;
+        for (int input = 0; input < ADC_INPUT_COUNT; input++) {
+            if ((inputMask & (1 << input)) != 0) {
+                buffer[position++] = (byte) input;
+            }
+        }
+        return position - offset;
+    }
+
+    public int writeTo(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.put(SBRICK_COMMAND);
+        for (int input = 0; input < ADC_INPUT_COUNT; input++) {
+            if ((inputMask & (1 << input)) != 0) {
+                buffer.put((byte) input);
+            }
+        }
+        return buffer.position() - start;
+    }
+
+    public byte[] getPreparedStream() {
+        byte[] stream = new byte[getStreamLength()];
+        writeTo(stream, 0);
+        return stream;
+    }
+
+    /**
+     * @param stream written command stream
+     * @return true if stream is ADC query, so its response should be decoded
+     */
+    public static boolean isQuery(byte[] stream) {
+        return stream.length > 1 && stream[0] == SBRICK_COMMAND;
+    }
+
+    /**
+     * Decodes raw value of n-th input queried by stream.
+     *
+     * @param response SBrick response
+     * @param index index of input in query, 0 is first
+     * @return 12 bit raw value, -1 if response is too short
+     */
+    public static int decodeRaw(byte[] response, int index) {
+        int position = index * RESPONSE_BYTES_PER_INPUT;
+        if (response == null || position + 1 >= response.length) return -1;
+        int value = (response[position] & 0xFF) | (response[position + 1] & 0xFF) << 8;
+        return value >>> 4;
+    }
+
+    /**
+     * Converts raw value to unit of input: volts for voltage, degrees Celsius
+     * for temperature, 0-1 share of full scale for channel inputs. SBrick
+     * conversion factors apply to value left aligned in 16 bits.
+     *
+     * @param input queried input
+     * @param raw 12 bit raw value
+     * @return converted value
+     */
+    public static double convert(int input, int raw) {
+        switch (input) {
+            case ADC_VOLTAGE:
+                return (raw << 4) * 0.83875 / 2047.0;
+            case ADC_TEMPERATURE:
+                return (raw << 4) / 118.85795 - 160;
+            default:
+                return raw / 4095.0;
+        }
+    }
+
+    /**
+     * Encodes raw value the way SBrick does, e.g. for simulated SBrick.
+     *
+     * @param raw 12 bit raw value
+     * @param response destination
+     * @param index index of input in query, 0 is first
+     */
+    public static void encodeRaw(int raw, byte[] response, int index) {
+        int value = (raw & 0x0FFF) << 4;
+        int position = index * RESPONSE_BYTES_PER_INPUT;
+        response[position] = (byte) value;
+        response[position + 1] = (byte) (value >>> 8);
+    }
+}
@@ -0,0 +1,46 @@
+package it.ambient.androidsbrick.command;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Queries PWM counter value. SBrick answers with 2 bytes, little endian.
+ */
+public class QueryPwmCounterCommand implements SBrickCommand {
+    private static final String TAG                     = "QueryPwmCounterCommand";
+    private static final byte SBRICK_COMMAND            = SBrickProtocol.GET_PWM_COUNTER;
+
+    public int getStreamLength() {
+        return 1;
+    }
+
+    public int writeTo(byte[] buffer, int offset) {
+        buffer[offset] = SBRICK_COMMAND;
+        return 1;
+    }
+
+    public int writeTo(ByteBuffer buffer) {
+        buffer.put(SBRICK_COMMAND);
+        return 1;
+    }
+
+    public byte[] getPreparedStream() {
+        return new byte[]{SBRICK_COMMAND};
+    }
+
+    /**
+     * @param stream written command stream
+     * @return true if stream is PWM counter query
+     */
+    public static boolean isQuery(byte[] stream) {
+        return SBrickProtocol.getOpcode(stream) == SBRICK_COMMAND;
+    }
+
+    /**
+     * @param response SBrick response
+     * @return PWM counter value, -1 if response is too short
+     */
+    public static int decodeValue(byte[] response) {
+        if (response == null || response.length < 2) return -1;
+        return (response[0] & 0xFF) | (response[1] & 0xFF) << 8;
+    }
+}
@@ -0,0 +1,47 @@
+package it.ambient.androidsbrick.command;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Queries SBrick watchdog timeout. SBrick answers with 1 byte, timeout in units
+ * of 100ms, 0 if watchdog is disabled.
+ */
+public class QueryWatchdogTimeoutCommand implements SBrickCommand {
+    private static final String TAG                     = "QueryWatchdogTimeoutCmd";
+    private static final byte SBRICK_COMMAND            = SBrickProtocol.GET_WATCHDOG_TIMEOUT;
+
+    public int getStreamLength() {
+        return 1;
+    }
+
+    public int writeTo(byte[] buffer, int offset) {
+        buffer[offset] = SBRICK_COMMAND;
+        return 1;
+    }
+
+    public int writeTo(ByteBuffer buffer) {
+        buffer.put(SBRICK_COMMAND);
+        return 1;
+    }
+
+    public byte[] getPreparedStream() {
+        return new byte[]{SBRICK_COMMAND};
+    }
+
+    /**
+     * @param stream written command stream
+     * @return true if stream is watchdog timeout query
+     */
+    public static boolean isQuery(byte[] stream) {
+        return SBrickProtocol.getOpcode(stream) == SBRICK_COMMAND;
+    }
+
+    /**
+     * @param response SBrick response
+     * @return timeout in milliseconds, 0 if watchdog is disabled, -1 if response is empty
+     */
+    public static int decodeTimeoutMillis(byte[] response) {
+        if (response == null || response.length < 1) return -1;
+        return (response[0] & 0xFF) * SetWatchdogTimeoutCommand.TIMEOUT_UNIT_MILLIS;
+    }
+}
@@ -0,0 +1,101 @@
+package it.ambient.androidsbrick.command;
+
+/**
+ * Rotate command reaching its direction and power gradually. Each channel
+ * ramps from its current state to the target over given duration, following
+ * the curve. Ramp crossing zero changes direction on the way.
+ *
+ * SBrick interpolates channel power on each write slot, so ramp is as smooth
+ * as the link allows, without executing commands from application timers.
+ * Rotate or stop command executed on ramping channel cancels its ramp.
+ */
+public class RampCommand extends RotateCommand {
+    public static final byte CURVE_LINEAR       = 0x00;
+    public static final byte CURVE_S_CURVE      = 0x01;
+    public static final byte CURVE_EXPONENTIAL  = 0x02;
+
+    // exponential curve: e^(k * t) scaled to 0-1
+    private static final double EXPONENTIAL_STEEPNESS = 4.0;
+    private static final double EXPONENTIAL_SCALE = Math.expm1(EXPONENTIAL_STEEPNESS);
+
+    private long durationMillis                 = 0;
+    private byte curve                          = CURVE_LINEAR;
+
+    /**
+     * Sets how target state is reached.
+     *
+     * @param durationMillis ramp duration in milliseconds, 0 to set target right away
+     * @param curve RampCommand.CURVE_LINEAR, CURVE_S_CURVE (slow start and end)
+     *              or CURVE_EXPONENTIAL (slow start, fast end)
+     * @return RampCommand to allow chaining channel control
+     */
+    public RampCommand over(long durationMillis, byte curve) {
+        this.durationMillis = durationMillis;
+        this.curve = curve;
+        return this;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public byte getCurve() {
+        return curve;
+    }
+
+    @Override
+    public RampCommand channelA(byte direction, byte power) {
+        return channel(SBrickCommand.CHANNEL_A, direction, power);
+    }
+
+    @Override
+    public RampCommand channelB(byte direction, byte power) {
+        return channel(SBrickCommand.CHANNEL_B, direction, power);
+    }
+
+    @Override
+    public RampCommand channelC(byte direction, byte power) {
+        return channel(SBrickCommand.CHANNEL_C, direction, power);
+    }
+
+    @Override
+    public RampCommand channelD(byte direction, byte power) {
+        return channel(SBrickCommand.CHANNEL_D, direction, power);
+    }
+
+    @Override
+    public RampCommand allChannels(byte direction, byte power) {
+        super.allChannels(direction, power);
+        return this;
+    }
+
+    @Override
+    public RampCommand channel(int channel, byte direction, byte power) {
+        super.channel(channel, direction, power);
+        return this;
+    }
+
+    @Override
+    public RampCommand clear() {
+        super.clear();
+        return this;
+    }
+
+    /**
+     * Maps ramp progress to share of power change.
+     *
+     * @param curve RampCommand.CURVE_* constant
+     * @param progress elapsed share of ramp duration, 0-1
+     * @return share of power change, 0-1
+     */
+    public static double ease(byte curve, double progress) {
+        switch (curve) {
+            case CURVE_S_CURVE:
+                return progress * progress * (3 - 2 * progress);
+            case CURVE_EXPONENTIAL:
+                return Math.expm1(EXPONENTIAL_STEEPNESS * progress) / EXPONENTIAL_SCALE;
+            default:
+                return progress;
+        }
+    }
+}
@@ -1,9 +1,6 @@
 package it.ambient.androidsbrick.command;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 public class RotateCommand implements SBrickCommand {
     private static final String TAG                     = "RotateCommand";
@@ -11,7 +8,9 @@ public class RotateCommand implements SBrickCommand {
     public static final byte DIR_COUNTER_CLOCKWISE      = 0x01;
 
     private static final byte SBRICK_COMMAND            = 0x01;
-    private Map<Byte, byte[]> channels                  = new HashMap<>();
+    private final byte[] directions                     = new byte[CHANNEL_COUNT];
+    private final byte[] powers                         = new byte[CHANNEL_COUNT];
+    private int channelMask                             = 0;
 
     /**
      * Assigns rotate command to channel A. Set direction and power.
@@ -21,9 +20,7 @@ public class RotateCommand implements SBrickCommand {
      * @return RotateCommand to allow chaining another channel control
      */
     public RotateCommand channelA(byte direction, byte power) {
-        byte[] part = {SBrickCommand.CHANNEL_A, direction, power};
-        channels.put(SBrickCommand.CHANNEL_A, part);
-        return this;
+        return channel(SBrickCommand.CHANNEL_A, direction, power);
     }
 
     /**
@@ -34,9 +31,7 @@ public class RotateCommand implements SBrickCommand {
      * @return RotateCommand to allow chaining another channel control
      */
     public RotateCommand channelB(byte direction, byte power) {
-        byte[] part = {SBrickCommand.CHANNEL_B, direction, power};
-        channels.put(SBrickCommand.CHANNEL_B, part);
-        return this;
+        return channel(SBrickCommand.CHANNEL_B, direction, power);
     }
 
     /**
@@ -47,9 +42,7 @@ public class RotateCommand implements SBrickCommand {
      * @return RotateCommand to allow chaining another channel control
      */
     public RotateCommand channelC(byte direction, byte power) {
-        byte[] part = {SBrickCommand.CHANNEL_C, direction, power};
-        channels.put(SBrickCommand.CHANNEL_C, part);
-        return this;
+        return channel(SBrickCommand.CHANNEL_C, direction, power);
     }
 
     /**
@@ -60,10 +53,9 @@ public class RotateCommand implements SBrickCommand {
      * @return RotateCommand to allow chaining another channel control
      */
     public RotateCommand channelD(byte direction, byte power) {
-        byte[] part = {SBrickCommand.CHANNEL_D, direction, power};
-        channels.put(SBrickCommand.CHANNEL_D, part);
-        return this;
+        return channel(SBrickCommand.CHANNEL_D, direction, power);
     }
+
     /**
      * Assigns this command to all channels. Sets direction and power.
      *
@@ -72,19 +64,96 @@ public class RotateCommand implements SBrickCommand {
      * @return RotateCommand to allow chaining specific channel control
      */
     public RotateCommand allChannels(byte direction, byte power) {
-        for (byte channel = 0; channel <= 3; channel++) {
-            byte[] part = {channel, direction, power};
-            channels.put(channel, part);
+        for (byte channel = 0; channel < CHANNEL_COUNT; channel++) {
+            channel(channel, direction, power);
         }
         return this;
     }
 
-    public byte[] getPreparedStream() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        outputStream.write(SBRICK_COMMAND);
-        for (byte[] part : channels.values()) {
-            outputStream.write(part);
+    /**
+     * Assigns rotate command to channel given by index.
+     *
+     * @param channel SBrickCommand.CHANNEL_A - SBrickCommand.CHANNEL_D
+     * @param direction RotateCommand.DIR_CLOCKWISE or RotateCommand.DIR_COUNTER_CLOCKWISE
+     * @param power byte 0-255, eg. "(byte) 0xFF"
+     * @return RotateCommand to allow chaining another channel control
+     */
+    public RotateCommand channel(int channel, byte direction, byte power) {
+        directions[channel] = direction;
+        powers[channel] = power;
+        channelMask |= 1 << channel;
+        return this;
+    }
+
+    /**
+     * Removes channels given by bitmask, other channels keep their values.
+     *
+     * @param mask bitmask of channels, bit 0 is channel A
+     * @return RotateCommand to allow chaining another channel
+     */
+    public RotateCommand removeChannels(int mask) {
+        channelMask &= ~mask;
+        return this;
+    }
+
+    /**
+     * Removes all assigned channels, so this instance can be reused for next command.
+     *
+     * @return RotateCommand to allow chaining channel control
+     */
+    public RotateCommand clear() {
+        channelMask = 0;
+        return this;
+    }
+
+    /**
+     * @return bitmask of assigned channels, bit 0 is channel A
+     */
+    public int getChannelMask() {
+        return channelMask;
+    }
+
+    public byte getDirection(int channel) {
+        return directions[channel];
+    }
+
+    public byte getPower(int channel) {
+        return powers[channel];
+    }
+
+    public int getStreamLength() {
+        return 1 + 3 * Integer.bitCount(channelMask);
+    }
+
+    public int writeTo(byte[] buffer, int offset) {
+        int position = offset;
+        buffer[position++] = SBRICK_COMMAND;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((channelMask & (1 << channel)) != 0) {
+                buffer[position++] = (byte) channel;
+                buffer[position++] = directions[channel];
+                buffer[position++] = powers[channel];
+            }
         }
-        return outputStream.toByteArray();
+        return position - offset;
+    }
+
+    public int writeTo(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.put(SBRICK_COMMAND);
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((channelMask & (1 << channel)) != 0) {
+                buffer.put((byte) channel);
+                buffer.put(directions[channel]);
+                buffer.put(powers[channel]);
+            }
+        }
+        return buffer.position() - start;
+    }
+
+    public byte[] getPreparedStream() {
+        byte[] stream = new byte[getStreamLength()];
+        writeTo(stream, 0);
+        return stream;
     }
 }
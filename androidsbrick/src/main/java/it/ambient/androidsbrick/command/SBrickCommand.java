@@ -1,11 +1,45 @@
 package it.ambient.androidsbrick.command;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface SBrickCommand {
     static final byte CHANNEL_A  = 0x00;
     static final byte CHANNEL_B  = 0x01;
     static final byte CHANNEL_C  = 0x02;
     static final byte CHANNEL_D  = 0x03;
-    byte[] getPreparedStream() throws IOException;
+    static final int CHANNEL_COUNT      = 4;
+    static final int ALL_CHANNELS_MASK  = 0x0F;
+    /** Longest stream produced by channel commands: opcode and 3 bytes for each of 4 channels. */
+    static final int MAX_STREAM_LENGTH  = 13;
+
+    /**
+     * Writes command stream into provided array. Doesn't allocate, so it can be
+     * used on every control loop tick with the same destination buffer.
+     *
+     * @param buffer destination array, needs getStreamLength() bytes after offset
+     * @param offset index of first written byte
+     * @return number of written bytes
+     */
+    int writeTo(byte[] buffer, int offset);
+
+    /**
+     * Writes command stream at current buffer position and advances it.
+     *
+     * @param buffer destination buffer, needs getStreamLength() bytes remaining
+     * @return number of written bytes
+     */
+    int writeTo(ByteBuffer buffer);
+
+    /**
+     * @return number of bytes which will be written by writeTo()
+     */
+    int getStreamLength();
+
+    /**
+     * Returns command stream as new array. Allocates on every call,
+     * prefer writeTo() for frequently sent commands.
+     *
+     * @return command stream
+     */
+    byte[] getPreparedStream();
 }
@@ -0,0 +1,48 @@
+package it.ambient.androidsbrick.command;
+
+/**
+ * Opcodes of SBrick remote control characteristic used by commands of this package,
+ * see https://social.sbrick.com/wiki/view/pageId/11/slug/the-sbrick-ble-protocol
+ *
+ * Each write carries one opcode followed by its parameters. Commands taking a list
+ * (brake, drive, ADC query) accept several channels or inputs in one write, other
+ * commands take fixed parameters. Queries are answered by notification, or by
+ * reading the characteristic after the write.
+ */
+public final class SBrickProtocol {
+    public static final byte BRAKE                  = 0x00;
+    public static final byte DRIVE                  = 0x01;
+    public static final byte SET_WATCHDOG_TIMEOUT   = 0x0D;
+    public static final byte GET_WATCHDOG_TIMEOUT   = 0x0E;
+    public static final byte QUERY_ADC              = 0x0F;
+    public static final byte SET_PWM_COUNTER        = 0x20;
+    public static final byte GET_PWM_COUNTER        = 0x21;
+    public static final byte SAVE_PWM_COUNTER       = 0x22;
+
+    private SBrickProtocol() {
+    }
+
+    /**
+     * @param stream command stream
+     * @return opcode of stream, -1 if stream is empty
+     */
+    public static int getOpcode(byte[] stream) {
+        return stream == null || stream.length == 0 ? -1 : stream[0] & 0xFF;
+    }
+
+    /**
+     * @param stream written command stream
+     * @return true if SBrick answers stream with response, which should be read
+     */
+    public static boolean expectsResponse(byte[] stream) {
+        switch (getOpcode(stream)) {
+            case QUERY_ADC:
+                return stream.length > 1;
+            case GET_WATCHDOG_TIMEOUT:
+            case GET_PWM_COUNTER:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
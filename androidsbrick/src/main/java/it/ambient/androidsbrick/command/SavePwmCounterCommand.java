@@ -0,0 +1,29 @@
+package it.ambient.androidsbrick.command;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Saves current PWM counter value to SBrick flash, so it's kept after SBrick is switched off.
+ */
+public class SavePwmCounterCommand implements SBrickCommand {
+    private static final String TAG                     = "SavePwmCounterCommand";
+    private static final byte SBRICK_COMMAND            = SBrickProtocol.SAVE_PWM_COUNTER;
+
+    public int getStreamLength() {
+        return 1;
+    }
+
+    public int writeTo(byte[] buffer, int offset) {
+        buffer[offset] = SBRICK_COMMAND;
+        return 1;
+    }
+
+    public int writeTo(ByteBuffer buffer) {
+        buffer.put(SBRICK_COMMAND);
+        return 1;
+    }
+
+    public byte[] getPreparedStream() {
+        return new byte[]{SBRICK_COMMAND};
+    }
+}
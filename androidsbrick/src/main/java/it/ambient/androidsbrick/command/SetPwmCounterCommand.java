@@ -0,0 +1,56 @@
+package it.ambient.androidsbrick.command;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sets PWM counter value, which sets PWM frequency of channels. Value is sent
+ * as 2 bytes, little endian. It's used until SBrick is switched off,
+ * unless it's saved with SavePwmCounterCommand.
+ */
+public class SetPwmCounterCommand implements SBrickCommand {
+    private static final String TAG                     = "SetPwmCounterCommand";
+    private static final byte SBRICK_COMMAND            = SBrickProtocol.SET_PWM_COUNTER;
+    public static final int MAX_VALUE                   = 0xFFFF;
+    private int value                                   = 0;
+
+    /**
+     * @param value PWM counter value, 0 - MAX_VALUE
+     * @return SetPwmCounterCommand to allow chaining
+     * @throws IllegalArgumentException if value is out of range
+     */
+    public SetPwmCounterCommand value(int value) {
+        if (value < 0 || value > MAX_VALUE) {
+            throw new IllegalArgumentException("PWM counter value out of range: " + value);
+        }
+        this.value = value;
+        return this;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public int getStreamLength() {
+        return 3;
+    }
+
+    public int writeTo(byte[] buffer, int offset) {
+        buffer[offset] = SBRICK_COMMAND;
+        buffer[offset + 1] = (byte) value;
+        buffer[offset + 2] = (byte) (value >>> 8);
+        return 3;
+    }
+
+    public int writeTo(ByteBuffer buffer) {
+        buffer.put(SBRICK_COMMAND);
+        buffer.put((byte) value);
+        buffer.put((byte) (value >>> 8));
+        return 3;
+    }
+
+    public byte[] getPreparedStream() {
+        byte[] stream = new byte[getStreamLength()];
+        writeTo(stream, 0);
+        return stream;
+    }
+}
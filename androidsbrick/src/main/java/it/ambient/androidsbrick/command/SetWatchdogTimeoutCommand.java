@@ -0,0 +1,71 @@
+package it.ambient.androidsbrick.command;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sets SBrick watchdog timeout. SBrick stops all channels when it doesn't receive
+ * any command within timeout, so keep-alive must be written more often.
+ * Timeout is sent in units of 100ms, 0 disables watchdog. Setting is lost
+ * when SBrick is switched off.
+ */
+public class SetWatchdogTimeoutCommand implements SBrickCommand {
+    private static final String TAG                     = "SetWatchdogTimeoutCmd";
+    private static final byte SBRICK_COMMAND            = SBrickProtocol.SET_WATCHDOG_TIMEOUT;
+    public static final int TIMEOUT_UNIT_MILLIS         = 100;
+    public static final int MAX_TIMEOUT_MILLIS          = 0xFF * TIMEOUT_UNIT_MILLIS;
+    private int timeoutUnits                            = 0;
+
+    /**
+     * Sets timeout, rounded up to whole 100ms.
+     *
+     * @param timeoutMillis timeout in milliseconds, 0 disables watchdog
+     * @return SetWatchdogTimeoutCommand to allow chaining
+     * @throws IllegalArgumentException if timeout is negative or longer than MAX_TIMEOUT_MILLIS
+     */
+    public SetWatchdogTimeoutCommand timeoutMillis(int timeoutMillis) {
+        if (timeoutMillis < 0 || timeoutMillis > MAX_TIMEOUT_MILLIS) {
+            throw new IllegalArgumentException("Watchdog timeout out of range: " + timeoutMillis);
+        }
+        timeoutUnits = (timeoutMillis + TIMEOUT_UNIT_MILLIS - 1) / TIMEOUT_UNIT_MILLIS;
+        return this;
+    }
+
+    /**
+     * Disables watchdog, channels are driven until stopped or disconnected.
+     *
+     * @return SetWatchdogTimeoutCommand to allow chaining
+     */
+    public SetWatchdogTimeoutCommand disable() {
+        timeoutUnits = 0;
+        return this;
+    }
+
+    /**
+     * @return timeout in milliseconds, 0 if watchdog is disabled
+     */
+    public int getTimeoutMillis() {
+        return timeoutUnits * TIMEOUT_UNIT_MILLIS;
+    }
+
+    public int getStreamLength() {
+        return 2;
+    }
+
+    public int writeTo(byte[] buffer, int offset) {
+        buffer[offset] = SBRICK_COMMAND;
+        buffer[offset + 1] = (byte) timeoutUnits;
+        return 2;
+    }
+
+    public int writeTo(ByteBuffer buffer) {
+        buffer.put(SBRICK_COMMAND);
+        buffer.put((byte) timeoutUnits);
+        return 2;
+    }
+
+    public byte[] getPreparedStream() {
+        byte[] stream = new byte[getStreamLength()];
+        writeTo(stream, 0);
+        return stream;
+    }
+}
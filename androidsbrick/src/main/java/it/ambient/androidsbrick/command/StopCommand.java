@@ -1,14 +1,11 @@
 package it.ambient.androidsbrick.command;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 public class StopCommand implements SBrickCommand {
     private static final String TAG                     = "StopCommand";
     private static final byte SBRICK_COMMAND            = 0x00;
-    private Map<Byte, byte[]> channels                  = new HashMap<>();
+    private int channelMask                             = 0;
 
     /**
      * Assigns stop command to channel A.
@@ -16,9 +13,7 @@ public class StopCommand implements SBrickCommand {
      * @return StopCommand to allow chaining another channel
      */
     public StopCommand channelA() {
-        byte[] part = {SBrickCommand.CHANNEL_A};
-        channels.put(SBrickCommand.CHANNEL_A, part);
-        return this;
+        return channel(SBrickCommand.CHANNEL_A);
     }
 
     /**
@@ -27,9 +22,7 @@ public class StopCommand implements SBrickCommand {
      * @return StopCommand to allow chaining another channel
      */
     public StopCommand channelB() {
-        byte[] part = {SBrickCommand.CHANNEL_B};
-        channels.put(SBrickCommand.CHANNEL_B, part);
-        return this;
+        return channel(SBrickCommand.CHANNEL_B);
     }
 
     /**
@@ -38,9 +31,7 @@ public class StopCommand implements SBrickCommand {
      * @return StopCommand to allow chaining another channel
      */
     public StopCommand channelC() {
-        byte[] part = {SBrickCommand.CHANNEL_C};
-        channels.put(SBrickCommand.CHANNEL_C, part);
-        return this;
+        return channel(SBrickCommand.CHANNEL_C);
     }
 
     /**
@@ -49,9 +40,7 @@ public class StopCommand implements SBrickCommand {
      * @return StopCommand to allow chaining another channel
      */
     public StopCommand channelD() {
-        byte[] part = {SBrickCommand.CHANNEL_D};
-        channels.put(SBrickCommand.CHANNEL_D, part);
-        return this;
+        return channel(SBrickCommand.CHANNEL_D);
     }
 
     /**
@@ -60,19 +49,78 @@ public class StopCommand implements SBrickCommand {
      * @return StopCommand to allow chaining specific channel
      */
     public StopCommand allChannels() {
-        for (byte channel = 0; channel <= 3; channel++) {
-            byte[] part = {channel};
-            channels.put(channel, part);
-        }
+        channelMask = ALL_CHANNELS_MASK;
+        return this;
+    }
+
+    /**
+     * Assigns stop command to channel given by index.
+     *
+     * @param channel SBrickCommand.CHANNEL_A - SBrickCommand.CHANNEL_D
+     * @return StopCommand to allow chaining another channel
+     */
+    public StopCommand channel(int channel) {
+        channelMask |= 1 << channel;
+        return this;
+    }
+
+    /**
+     * Removes channels given by bitmask, other channels keep their values.
+     *
+     * @param mask bitmask of channels, bit 0 is channel A
+     * @return StopCommand to allow chaining another channel
+     */
+    public StopCommand removeChannels(int mask) {
+        channelMask &= ~mask;
         return this;
     }
 
-    public byte[] getPreparedStream() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        outputStream.write(SBRICK_COMMAND);
-        for (byte[] part : channels.values()) {
-            outputStream.write(part);
+    /**
+     * Removes all assigned channels, so this instance can be reused for next command.
+     *
+     * @return StopCommand to allow chaining channels
+     */
+    public StopCommand clear() {
+        channelMask = 0;
+        return this;
+    }
+
+    /**
+     * @return bitmask of assigned channels, bit 0 is channel A
+     */
+    public int getChannelMask() {
+        return channelMask;
+    }
+
+    public int getStreamLength() {
+        return 1 + Integer.bitCount(channelMask);
+    }
+
+    public int writeTo(byte[] buffer, int offset) {
+        int position = offset;
+        buffer[position++] = SBRICK_COMMAND;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((channelMask & (1 << channel)) != 0) {
+                buffer[position++] = (byte) channel;
+            }
         }
-        return outputStream.toByteArray();
+        return position - offset;
+    }
+
+    public int writeTo(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.put(SBRICK_COMMAND);
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((channelMask & (1 << channel)) != 0) {
+                buffer.put((byte) channel);
+            }
+        }
+        return buffer.position() - start;
+    }
+
+    public byte[] getPreparedStream() {
+        byte[] stream = new byte[getStreamLength()];
+        writeTo(stream, 0);
+        return stream;
     }
 }
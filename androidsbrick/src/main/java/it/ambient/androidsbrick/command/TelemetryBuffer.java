@@ -0,0 +1,64 @@
+package it.ambient.androidsbrick.command;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ring buffer of recent telemetry samples. When full, oldest sample is
+ * overwritten. Thread safe.
+ */
+public class TelemetryBuffer {
+    private final TelemetrySample[] samples;
+    private int next;
+    private int size;
+
+    /**
+     * Constructor
+     *
+     * @param capacity number of kept samples
+     */
+    public TelemetryBuffer(int capacity) {
+        samples = new TelemetrySample[capacity];
+    }
+
+    public synchronized void add(TelemetrySample sample) {
+        samples[next] = sample;
+        next = (next + 1) % samples.length;
+        if (size < samples.length) {
+            size++;
+        }
+    }
+
+    /**
+     * @return kept samples, oldest first
+     */
+    public synchronized List<TelemetrySample> getSamples() {
+        List<TelemetrySample> result = new ArrayList<>(size);
+        int first = (next - size + samples.length) % samples.length;
+        for (int i = 0; i < size; i++) {
+            result.add(samples[(first + i) % samples.length]);
+        }
+        return result;
+    }
+
+    /**
+     * @param input QueryAdcCommand.ADC_* input
+     * @return newest sample of input, null if there is none
+     */
+    public synchronized TelemetrySample getLatest(int input) {
+        for (int i = 1; i <= size; i++) {
+            TelemetrySample sample = samples[(next - i + samples.length) % samples.length];
+            if (sample.getInput() == input) return sample;
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        next = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,47 @@
+package it.ambient.androidsbrick.command;
+
+/**
+ * Single reading of SBrick analog input, decoded from QueryAdcCommand response.
+ */
+public class TelemetrySample {
+    private final long timestampNanos;
+    private final int input;
+    private final int rawValue;
+
+    /**
+     * Constructor
+     *
+     * @param timestampNanos System.nanoTime() when response was received
+     * @param input QueryAdcCommand.ADC_* input
+     * @param rawValue 12 bit raw value
+     */
+    public TelemetrySample(long timestampNanos, int input, int rawValue) {
+        this.timestampNanos = timestampNanos;
+        this.input = input;
+        this.rawValue = rawValue;
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public int getInput() {
+        return input;
+    }
+
+    public int getRawValue() {
+        return rawValue;
+    }
+
+    /**
+     * @return volts for voltage, degrees Celsius for temperature, 0-1 for channel inputs
+     */
+    public double getValue() {
+        return QueryAdcCommand.convert(input, rawValue);
+    }
+
+    @Override
+    public String toString() {
+        return "TelemetrySample{input=" + input + ", raw=" + rawValue + ", value=" + getValue() + "}";
+    }
+}
@@ -0,0 +1,47 @@
+package it.ambient.androidsbrick.transport;
+
+/**
+ * Connection parameters requested from Bluetooth stack: connection priority
+ * (which decides connection interval) and preferred PHY.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public enum ConnectionProfile {
+    /** 11.25-15ms interval and LE 2M PHY where available, for latency critical control. */
+    LOW_LATENCY(1, LinkParameters.PHY_LE_2M, 15000),
+    /** 30-50ms interval, Android default. */
+    BALANCED(0, LinkParameters.PHY_LE_1M, 45000),
+    /** 100-125ms interval, for idle SBricks. */
+    LOW_POWER(2, LinkParameters.PHY_LE_1M, 125000);
+
+    private final int connectionPriority;
+    private final int phy;
+    private final int typicalIntervalMicros;
+
+    ConnectionProfile(int connectionPriority, int phy, int typicalIntervalMicros) {
+        this.connectionPriority = connectionPriority;
+        this.phy = phy;
+        this.typicalIntervalMicros = typicalIntervalMicros;
+    }
+
+    /**
+     * @return priority, equal to BluetoothGatt.CONNECTION_PRIORITY_* constants
+     */
+    public int getConnectionPriority() {
+        return connectionPriority;
+    }
+
+    /**
+     * @return preferred PHY, LinkParameters.PHY_LE_1M or LinkParameters.PHY_LE_2M
+     */
+    public int getPhy() {
+        return phy;
+    }
+
+    /**
+     * @return upper bound of connection interval usually granted for this profile
+     */
+    public int getTypicalIntervalMicros() {
+        return typicalIntervalMicros;
+    }
+}
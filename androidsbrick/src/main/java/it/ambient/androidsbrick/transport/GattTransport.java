@@ -0,0 +1,291 @@
+package it.ambient.androidsbrick.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * SBrickTransport backed by Android BluetoothGatt.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class GattTransport implements SBrickTransport {
+    private static final String TAG = "GattTransport";
+    public static final UUID SERVICE_REMOTE_CONTROL
+            = UUID.fromString("4dc591b0-857c-41de-b5f1-15abda665b0c");
+    public static final UUID CHARACTERISTIC_REMOTE_CONTROL_COMMANDS
+            = UUID.fromString("2b8cbcc-0e25-4bda-8790-a15f53e6010f");
+    private static final UUID DESCRIPTOR_CLIENT_CHARACTERISTIC_CONFIGURATION
+            = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private Context appContext;
+    private BluetoothDevice bluetoothDevice;
+    private BluetoothGatt gatt;
+    private BluetoothGattCharacteristic characteristicRemoteControl;
+    private TransportListener listener;
+    private volatile LinkParameters linkParameters = LinkParameters.DEFAULT;
+
+    /**
+     * Constructor
+     * @param context application context
+     * @param device SBrick BluetoothDevice
+     */
+    public GattTransport(Context context, BluetoothDevice device) {
+        appContext = context;
+        bluetoothDevice = device;
+    }
+
+    public BluetoothDevice getDevice() {
+        return bluetoothDevice;
+    }
+
+    @Override
+    public String getAddress() {
+        if (bluetoothDevice == null) return null;
+        return bluetoothDevice.getAddress();
+    }
+
+    @Override
+    public void connect(TransportListener transportListener) {
+//        Log.d(TAG, "connect");
+        listener = transportListener;
+        if (gatt != null) {
+            // handles kept after link loss: reconnect the same BluetoothGatt, like autoConnect
+            if (!gatt.connect()) {
+                listener.onDisconnected(BluetoothGatt.GATT_FAILURE);
+            }
+            return;
+        }
+        gatt = bluetoothDevice.connectGatt(appContext, false, new GattClientCallback());
+    }
+
+    /**
+     * Discovers services, unless remote control characteristic is known from
+     * previous connection of the same BluetoothGatt. SBrick firmware doesn't change
+     * its handles, so reconnect skips discovery round trips.
+     */
+    @Override
+    public boolean discoverServices() {
+        if (gatt == null) return false;
+        if (characteristicRemoteControl != null) {
+            listener.onServicesDiscovered(true);
+            return true;
+        }
+        return gatt.discoverServices();
+    }
+
+    @Override
+    public boolean write(byte[] value) {
+        return write(value, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    }
+
+    @Override
+    public boolean writeWithoutResponse(byte[] value) {
+        return write(value, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    }
+
+    private boolean write(byte[] value, int writeType) {
+        if (gatt == null || characteristicRemoteControl == null) return false;
+        characteristicRemoteControl.setWriteType(writeType);
+        characteristicRemoteControl.setValue(value);
+        return gatt.writeCharacteristic(characteristicRemoteControl);
+    }
+
+    @Override
+    public boolean read() {
+        if (gatt == null || characteristicRemoteControl == null) return false;
+        return gatt.readCharacteristic(characteristicRemoteControl);
+    }
+
+    @Override
+    public boolean setNotificationsEnabled(boolean enabled) {
+        if (gatt == null || characteristicRemoteControl == null) return false;
+        if (!gatt.setCharacteristicNotification(characteristicRemoteControl, enabled)) {
+            return false;
+        }
+        BluetoothGattDescriptor descriptor
+                = characteristicRemoteControl.getDescriptor(DESCRIPTOR_CLIENT_CHARACTERISTIC_CONFIGURATION);
+        if (descriptor == null) {
+            Log.w(TAG, "setNotificationsEnabled - missing client characteristic configuration");
+            return false;
+        }
+        descriptor.setValue(enabled
+                ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        return gatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public int getMtu() {
+        return linkParameters.getMtu();
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return gatt != null && gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean applyConnectionProfile(ConnectionProfile profile) {
+        if (gatt == null) return false;
+        boolean requested = gatt.requestConnectionPriority(profile.getConnectionPriority());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            int phyMask = profile.getPhy() == LinkParameters.PHY_LE_2M
+                    ? BluetoothDevice.PHY_LE_2M_MASK
+                    : BluetoothDevice.PHY_LE_1M_MASK;
+            gatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+        return requested;
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        return gatt != null && gatt.readRemoteRssi();
+    }
+
+    @Override
+    public LinkParameters getLinkParameters() {
+        return linkParameters;
+    }
+
+    @Override
+    public void disconnectForReconnect() {
+        if (gatt != null) {
+            gatt.disconnect();
+        }
+    }
+
+    @Override
+    public void disconnect() {
+//        Log.d(TAG, "disconnect");
+        characteristicRemoteControl = null;
+        if (gatt != null) {
+            gatt.disconnect();
+            gatt.close();
+            gatt = null;
+        }
+    }
+
+    /**
+     * Handles Bluetooth connection changes and passes them to TransportListener.
+     */
+    private class GattClientCallback extends BluetoothGattCallback {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            super.onConnectionStateChange(gatt, status, newState);
+            Log.d(TAG, "onConnectionStateChange newState: " + newState);
+
+            if (status == BluetoothGatt.GATT_FAILURE) {
+                Log.e(TAG, "Connection GATT_FAILURE status " + status);
+                listener.onDisconnected(status);
+                return;
+            } else if (status != BluetoothGatt.GATT_SUCCESS) {
+                // handle anything not SUCCESS as failure
+                Log.e(TAG,"Connection not GATT_SUCCESS status " + status);
+                listener.onDisconnected(status);
+                return;
+            }
+
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.d(TAG,"Connected to device " + gatt.getDevice().getAddress());
+                linkParameters = LinkParameters.DEFAULT;
+                listener.onConnected();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.d(TAG,"Disconnected from device");
+                listener.onDisconnected(status);
+            }
+        }
+
+        /**
+         * Services discovered - connect to RC service and create characteristic
+         * @param gatt BluetoothGatt callback
+         * @param status BluetoothGatt.<status>
+         */
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            super.onServicesDiscovered(gatt, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                listener.onServicesDiscovered(false);
+                return;
+            }
+            Log.d(TAG, "onServicesDiscovered - services discovered");
+            BluetoothGattService serviceRemoteControl = gatt.getService(SERVICE_REMOTE_CONTROL);
+            if (serviceRemoteControl == null) {
+                Log.e(TAG, "onServicesDiscovered - missing remote control service");
+                listener.onServicesDiscovered(false);
+                return;
+            }
+            characteristicRemoteControl = serviceRemoteControl.getCharacteristic(CHARACTERISTIC_REMOTE_CONTROL_COMMANDS);
+            listener.onServicesDiscovered(characteristicRemoteControl != null);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            listener.onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            listener.onReadComplete(characteristic.getValue(), status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            listener.onNotification(characteristic.getValue());
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            if (DESCRIPTOR_CLIENT_CHARACTERISTIC_CONFIGURATION.equals(descriptor.getUuid())) {
+                listener.onNotificationsEnabled(status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            listener.onRssiRead(rssi, status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.d(TAG, "onMtuChanged mtu: " + mtu + ", status: " + status);
+            boolean success = status == BluetoothGatt.GATT_SUCCESS;
+            if (success) {
+                linkParameters = linkParameters.withMtu(mtu);
+            }
+            listener.onMtuChanged(linkParameters.getMtu(), success);
+            if (success) {
+                listener.onLinkParametersChanged(linkParameters);
+            }
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) return;
+            linkParameters = linkParameters.withPhy(txPhy, rxPhy);
+            listener.onLinkParametersChanged(linkParameters);
+        }
+
+        /**
+         * Hidden BluetoothGattCallback method (API 26+), called by Bluetooth stack
+         * when connection parameters change. Can't be annotated with @Override.
+         * @param interval connection interval in 1.25ms units
+         * @param latency peripheral latency in connection events
+         * @param timeout supervision timeout in 10ms units
+         */
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) return;
+            linkParameters = linkParameters.withInterval(interval * 1250, latency, timeout * 10);
+            listener.onLinkParametersChanged(linkParameters);
+        }
+    }
+}
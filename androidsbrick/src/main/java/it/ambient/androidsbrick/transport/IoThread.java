@@ -0,0 +1,141 @@
+package it.ambient.androidsbrick.transport;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread running SBrick I/O: writes, their completions, retries
+ * and timeouts. Keeps Bluetooth traffic off main thread, so UI work doesn't
+ * delay commands. Android exposes single Bluetooth adapter, so by default
+ * all SBricks share one I/O thread.
+ *
+ * Works like android.os.Handler: runnables are posted, optionally delayed,
+ * and can be removed before they run. Doesn't depend on Android, so the same
+ * pipeline runs in unit tests and benchmarks.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class IoThread {
+    private static IoThread sharedThread;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<Runnable, List<Task>> tasks = new IdentityHashMap<>();
+    private volatile Thread thread;
+
+    /**
+     * Constructor, starts daemon thread.
+     * @param name thread name
+     */
+    public IoThread(String name) {
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread newThread = new Thread(runnable, name);
+            newThread.setDaemon(true);
+            thread = newThread;
+            return newThread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Returns I/O thread of Bluetooth adapter, shared by all SBricks.
+     * @return shared I/O thread
+     */
+    public static synchronized IoThread getShared() {
+        if (sharedThread == null) {
+            sharedThread = new IoThread("SBrickIo");
+        }
+        return sharedThread;
+    }
+
+    /**
+     * Runs runnable on I/O thread, after already posted ones.
+     * @param runnable runnable to run
+     */
+    public void post(Runnable runnable) {
+        postDelayed(runnable, 0);
+    }
+
+    /**
+     * Runs runnable on I/O thread after delay.
+     * @param runnable runnable to run
+     * @param delayMillis delay in milliseconds
+     */
+    public void postDelayed(Runnable runnable, long delayMillis) {
+        Task task = new Task(runnable);
+        synchronized (tasks) {
+            List<Task> posted = tasks.get(runnable);
+            if (posted == null) {
+                posted = new ArrayList<>(1);
+                tasks.put(runnable, posted);
+            }
+            posted.add(task);
+            task.future = executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Removes all pending posts of runnable. Called on I/O thread, guarantees
+     * that runnable won't run until posted again.
+     * @param runnable posted runnable
+     */
+    public void removeCallbacks(Runnable runnable) {
+        synchronized (tasks) {
+            List<Task> posted = tasks.remove(runnable);
+            if (posted == null) return;
+            for (Task task : posted) {
+                task.cancelled = true;
+                task.future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @return true if called on this I/O thread
+     */
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Stops thread, pending runnables are dropped. Shared thread shouldn't be stopped.
+     */
+    public void quit() {
+        executor.shutdownNow();
+    }
+
+    private class Task implements Runnable {
+        final Runnable runnable;
+        Future<?> future;
+        boolean cancelled;
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            synchronized (tasks) {
+                if (cancelled) return;
+                List<Task> posted = tasks.get(runnable);
+                if (posted != null) {
+                    posted.remove(this);
+                    if (posted.isEmpty()) {
+                        tasks.remove(runnable);
+                    }
+                }
+            }
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                // executor would keep exception in future, report it like Handler does
+                Thread current = Thread.currentThread();
+                current.getUncaughtExceptionHandler().uncaughtException(current, e);
+            }
+        }
+    }
+}
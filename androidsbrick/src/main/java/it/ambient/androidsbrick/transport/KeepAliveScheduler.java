@@ -0,0 +1,160 @@
+package it.ambient.androidsbrick.transport;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps links of whole SBrick fleet alive from single background thread.
+ *
+ * Each pass checks all registered links and sends keep-alive only to those
+ * which are due, links which wrote recently are skipped. Links due within
+ * tick slack are sent keep-alive in the same pass, so fleet settles on shared
+ * ticks and scheduler wakes up few times per keep-alive period, no matter how
+ * many SBricks are connected. Links should be registered only while connected.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class KeepAliveScheduler {
+    private static final long DEFAULT_TICK_SLACK_MILLIS = 50;
+
+    private static KeepAliveScheduler sharedScheduler;
+
+    private final ScheduledExecutorService executor;
+    private final long tickSlackNanos;
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    private final Runnable tick = this::tick;
+    // accessed only on executor thread
+    private ScheduledFuture<?> nextTick;
+
+    private volatile long tickCount;
+    private volatile long keepAliveCount;
+
+    /**
+     * Link kept alive by scheduler. Methods are called on scheduler thread.
+     */
+    public interface Link {
+        /**
+         * @return System.nanoTime() when link needs keep-alive write, e.g. last write + keep-alive period
+         */
+        long getKeepAliveDueNanos();
+
+        /**
+         * Sends keep-alive write, or hands it over to thread owning the link. Should return quickly.
+         * @param nowNanos System.nanoTime() of current pass
+         * @return System.nanoTime() when link needs next keep-alive, if this one succeeds
+         */
+        long keepAlive(long nowNanos);
+    }
+
+    /**
+     * Constructor
+     * @param executor single thread executor running keep-alive passes
+     * @param tickSlack links due within slack are kept alive in the same pass
+     * @param unit unit of tickSlack
+     */
+    public KeepAliveScheduler(ScheduledExecutorService executor, long tickSlack, TimeUnit unit) {
+        this.executor = executor;
+        this.tickSlackNanos = unit.toNanos(tickSlack);
+    }
+
+    /**
+     * Returns scheduler shared by all SBricks, running on its own daemon thread.
+     * @return shared scheduler
+     */
+    public static synchronized KeepAliveScheduler getShared() {
+        if (sharedScheduler == null) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "SBrickKeepAlive");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sharedScheduler = new KeepAliveScheduler(executor, DEFAULT_TICK_SLACK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return sharedScheduler;
+    }
+
+    /**
+     * Starts keeping link alive, e.g. when SBrick is ready for commands.
+     * @param link connected link
+     */
+    public void register(Link link) {
+        if (!links.contains(link)) {
+            links.add(link);
+        }
+        tickNow();
+    }
+
+    /**
+     * Stops keeping link alive, e.g. when SBrick disconnects.
+     * @param link registered link
+     */
+    public void unregister(Link link) {
+        links.remove(link);
+    }
+
+    /**
+     * Runs keep-alive pass right away on scheduler thread, instead of waiting
+     * for earliest due link.
+     */
+    public void tickNow() {
+        executor.execute(tick);
+    }
+
+    /**
+     * @return number of registered links
+     */
+    public int getLinkCount() {
+        return links.size();
+    }
+
+    /**
+     * @return number of passes over registered links
+     */
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * @return number of keep-alive writes requested from links
+     */
+    public long getKeepAliveCount() {
+        return keepAliveCount;
+    }
+
+    private void tick() {
+        if (nextTick != null) {
+            nextTick.cancel(false);
+            nextTick = null;
+        }
+        long now = System.nanoTime();
+        long nextDelay = Long.MAX_VALUE;
+        int keptAlive = 0;
+        for (Link link : links) {
+            long delay;
+            try {
+                delay = link.getKeepAliveDueNanos() - now;
+                if (delay <= tickSlackNanos) {
+                    delay = link.keepAlive(now) - now;
+                    keptAlive++;
+                }
+            } catch (RuntimeException e) {
+                // e.g. I/O thread of link quit without disconnect, other links are kept alive
+                links.remove(link);
+                continue;
+            }
+            if (delay < nextDelay) {
+                nextDelay = delay;
+            }
+        }
+        tickCount++;
+        keepAliveCount += keptAlive;
+        if (nextDelay != Long.MAX_VALUE) {
+            // links skipped in this pass are due after slack, earlier wake up would find nothing to do
+            nextTick = executor.schedule(tick, Math.max(nextDelay, tickSlackNanos), TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package it.ambient.androidsbrick.transport;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Write latency histogram with fixed relative precision, like HdrHistogram.
+ * Latency is counted in microseconds: values below 32us are exact, larger ones
+ * fall into 16 buckets per power of two, so each bucket is within about 6%
+ * of the recorded value. Memory is fixed, about 3.5kB, up to ~35 minutes.
+ *
+ * Recording doesn't allocate or lock, so it can run on I/O thread for each write.
+ * Histogram can be read from any thread, while it's recorded.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    private static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+    private static final long MAX_VALUE_MICROS = (1L << 31) - 1;
+    private static final int BUCKET_COUNT = indexOf(MAX_VALUE_MICROS) + 1;
+
+    private final AtomicLongArray counts;
+    private volatile long totalCount;
+    private volatile long maxValueMicros;
+    private volatile long totalMicros;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKET_COUNT);
+    }
+
+    /**
+     * Records write latency. Called by single thread, e.g. I/O thread.
+     *
+     * @param latencyNanos time from write start to its acknowledgement
+     */
+    public void recordNanos(long latencyNanos) {
+        long micros = Math.min(Math.max(latencyNanos / 1000, 0), MAX_VALUE_MICROS);
+        counts.incrementAndGet(indexOf(micros));
+        totalMicros += micros;
+        if (micros > maxValueMicros) {
+            maxValueMicros = micros;
+        }
+        totalCount++;
+    }
+
+    /**
+     * @return number of recorded latencies
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMaxMicros() {
+        return maxValueMicros;
+    }
+
+    public long getMeanMicros() {
+        long count = totalCount;
+        return count == 0 ? 0 : totalMicros / count;
+    }
+
+    /**
+     * Returns latency not exceeded by given share of writes, e.g. 99.0 for 99th percentile.
+     * Value is the upper bound of its bucket, never above recorded maximum.
+     *
+     * @param percentile 0-100
+     * @return latency in microseconds, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), maxValueMicros);
+            }
+        }
+        return maxValueMicros;
+    }
+
+    /**
+     * @return number of latencies recorded in bucket covering given latency
+     */
+    public long getCountAtMicros(long micros) {
+        return counts.get(indexOf(Math.min(Math.max(micros, 0), MAX_VALUE_MICROS)));
+    }
+
+    /**
+     * Copies histogram, e.g. to compare it with later state.
+     * @return independent copy
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy.counts.set(i, counts.get(i));
+        }
+        copy.totalCount = totalCount;
+        copy.totalMicros = totalMicros;
+        copy.maxValueMicros = maxValueMicros;
+        return copy;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount = 0;
+        totalMicros = 0;
+        maxValueMicros = 0;
+    }
+
+    /**
+     * Bucket of value: first 32 values are exact, then each power of two is split
+     * into 16 buckets.
+     */
+    private static int indexOf(long micros) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros | (SUB_BUCKET_COUNT - 1)) - SUB_BUCKET_HALF_BITS;
+        int subBucket = (int) (micros >>> magnitude);
+        return magnitude * SUB_BUCKET_HALF + subBucket;
+    }
+
+    private static long highestValueAt(int index) {
+        int magnitude = index < SUB_BUCKET_COUNT ? 0 : index / SUB_BUCKET_HALF - 1;
+        long subBucket = index - magnitude * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + totalCount
+                + ", p50Us=" + getValueAtPercentile(50)
+                + ", p99Us=" + getValueAtPercentile(99)
+                + ", maxUs=" + maxValueMicros + "}";
+    }
+}
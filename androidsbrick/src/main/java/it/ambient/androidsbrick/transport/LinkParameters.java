@@ -0,0 +1,87 @@
+package it.ambient.androidsbrick.transport;
+
+/**
+ * Negotiated parameters of SBrick link. Immutable, transport creates new
+ * instance when any parameter changes.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class LinkParameters {
+    // PHY values are equal to BluetoothDevice.PHY_LE_* constants
+    public static final int PHY_LE_1M     = 1;
+    public static final int PHY_LE_2M     = 2;
+    public static final int PHY_LE_CODED  = 3;
+
+    /** Parameters of new connection, before any negotiation. Interval isn't known yet. */
+    public static final LinkParameters DEFAULT
+            = new LinkParameters(0, 0, 0, PHY_LE_1M, PHY_LE_1M, SBrickTransport.DEFAULT_MTU);
+
+    private final int intervalMicros;
+    private final int peripheralLatency;
+    private final int supervisionTimeoutMillis;
+    private final int txPhy;
+    private final int rxPhy;
+    private final int mtu;
+
+    public LinkParameters(int intervalMicros, int peripheralLatency, int supervisionTimeoutMillis,
+                          int txPhy, int rxPhy, int mtu) {
+        this.intervalMicros = intervalMicros;
+        this.peripheralLatency = peripheralLatency;
+        this.supervisionTimeoutMillis = supervisionTimeoutMillis;
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+        this.mtu = mtu;
+    }
+
+    public LinkParameters withInterval(int intervalMicros, int peripheralLatency, int supervisionTimeoutMillis) {
+        return new LinkParameters(intervalMicros, peripheralLatency, supervisionTimeoutMillis, txPhy, rxPhy, mtu);
+    }
+
+    public LinkParameters withPhy(int txPhy, int rxPhy) {
+        return new LinkParameters(intervalMicros, peripheralLatency, supervisionTimeoutMillis, txPhy, rxPhy, mtu);
+    }
+
+    public LinkParameters withMtu(int mtu) {
+        return new LinkParameters(intervalMicros, peripheralLatency, supervisionTimeoutMillis, txPhy, rxPhy, mtu);
+    }
+
+    /**
+     * @return connection interval in microseconds, 0 if not reported by Bluetooth stack
+     */
+    public int getIntervalMicros() {
+        return intervalMicros;
+    }
+
+    /**
+     * @return number of connection events SBrick may skip
+     */
+    public int getPeripheralLatency() {
+        return peripheralLatency;
+    }
+
+    public int getSupervisionTimeoutMillis() {
+        return supervisionTimeoutMillis;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    @Override
+    public String toString() {
+        return "LinkParameters{intervalUs=" + intervalMicros
+                + ", latency=" + peripheralLatency
+                + ", timeoutMs=" + supervisionTimeoutMillis
+                + ", txPhy=" + txPhy
+                + ", rxPhy=" + rxPhy
+                + ", mtu=" + mtu + "}";
+    }
+}
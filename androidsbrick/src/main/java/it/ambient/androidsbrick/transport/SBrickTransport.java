@@ -0,0 +1,121 @@
+package it.ambient.androidsbrick.transport;
+
+/**
+ * Link to single SBrick. Hides Bluetooth stack from SBrick, so command pipeline
+ * can run on Android GATT (GattTransport) or in-memory (SimulatedTransport).
+ *
+ * All operations are asynchronous, results are passed to TransportListener.
+ * Like Android GATT, transport allows only one outstanding write or read.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public interface SBrickTransport {
+    /** Disconnected by application. */
+    static final int STATUS_SUCCESS     = 0;
+    /** GATT_FAILURE, e.g. SBrick remote control service not found. */
+    static final int STATUS_FAILURE     = 0x101;
+    /** Default ATT MTU, before any MTU exchange. */
+    static final int DEFAULT_MTU        = 23;
+    /** ATT write request header, payload can be MTU minus this value. */
+    static final int ATT_HEADER_LENGTH  = 3;
+
+    /**
+     * @return device address, e.g. "00:07:80:2E:0A:1B"
+     */
+    String getAddress();
+
+    /**
+     * Starts connecting to device. Result is passed to listener.onConnected()
+     * or listener.onDisconnected().
+     *
+     * @param listener receiver of all transport events
+     */
+    void connect(TransportListener listener);
+
+    /**
+     * Starts discovery of SBrick remote control service.
+     *
+     * @return true if discovery started
+     */
+    boolean discoverServices();
+
+    /**
+     * Writes value to remote control characteristic. Value must not be modified
+     * until listener.onWriteComplete() is called.
+     *
+     * @param value command stream
+     * @return true if write was started
+     */
+    boolean write(byte[] value);
+
+    /**
+     * Writes value to remote control characteristic without waiting for SBrick
+     * acknowledgement. listener.onWriteComplete() is called when value is passed
+     * to the link, lost value isn't reported.
+     *
+     * @param value command stream
+     * @return true if write was started
+     */
+    boolean writeWithoutResponse(byte[] value);
+
+    /**
+     * Reads remote control characteristic, e.g. to get response of query command.
+     *
+     * @return true if read was started
+     */
+    boolean read();
+
+    /**
+     * Enables or disables notifications of remote control characteristic.
+     *
+     * @param enabled notifications state
+     * @return true if request was accepted
+     */
+    boolean setNotificationsEnabled(boolean enabled);
+
+    /**
+     * @return current ATT MTU
+     */
+    int getMtu();
+
+    /**
+     * Requests larger ATT MTU. Result is passed to listener.onMtuChanged().
+     *
+     * @param mtu requested MTU
+     * @return true if request was started
+     */
+    boolean requestMtu(int mtu);
+
+    /**
+     * Requests connection priority and PHY of given profile. Granted parameters
+     * are passed to listener.onLinkParametersChanged(), if reported by Bluetooth stack.
+     *
+     * @param profile connection profile
+     * @return true if request was accepted
+     */
+    boolean applyConnectionProfile(ConnectionProfile profile);
+
+    /**
+     * Reads signal strength of the link. Result is passed to listener.onRssiRead().
+     * Unlike write and read, can be requested while other operation is outstanding.
+     *
+     * @return true if read was started
+     */
+    boolean readRemoteRssi();
+
+    /**
+     * @return last known link parameters
+     */
+    LinkParameters getLinkParameters();
+
+    /**
+     * Disconnects and releases the link. No more events are passed to listener.
+     */
+    void disconnect();
+
+    /**
+     * Disconnects after link loss, but keeps link handles, e.g. discovered
+     * characteristic, so next connect() reconnects faster. disconnect() releases them.
+     */
+    void disconnectForReconnect();
+}
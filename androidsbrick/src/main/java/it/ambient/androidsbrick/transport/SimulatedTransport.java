@@ -0,0 +1,682 @@
+package it.ambient.androidsbrick.transport;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import it.ambient.androidsbrick.command.QueryAdcCommand;
+import it.ambient.androidsbrick.command.SBrickProtocol;
+import it.ambient.androidsbrick.command.SetWatchdogTimeoutCommand;
+
+/**
+ * In-memory SBrick, runs on plain JVM. Allows testing and benchmarking command
+ * pipeline without Android device and real SBrick.
+ *
+ * Simulates write latency, MTU, packet loss and disconnections. Events are passed
+ * to TransportListener on executor thread, like Android passes GATT callbacks
+ * on binder thread. Received drive and stop commands are applied to simulated
+ * channel state, which can be checked by tests. ADC queries are answered
+ * with simulated battery voltage, temperature and channel inputs, by notification
+ * when notifications are enabled, and on read.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class SimulatedTransport implements SBrickTransport {
+    /** GATT_CONN_TIMEOUT, reported when simulated link is lost. */
+    public static final int STATUS_LINK_LOSS   = 0x08;
+    /** GATT_ERROR, reported when simulated connect fails. */
+    public static final int STATUS_GATT_ERROR  = 0x85;
+
+    private static final int STATE_DISCONNECTED = 0;
+    private static final int STATE_CONNECTING   = 1;
+    private static final int STATE_CONNECTED    = 2;
+    private static final int STATE_READY        = 3;
+
+    private static final int CHANNEL_COUNT      = 4;
+    private static final byte OPCODE_STOP       = 0x00;
+    private static final byte OPCODE_DRIVE      = 0x01;
+    private static final int DEFAULT_WATCHDOG_UNITS = 5;
+    private static final int DEFAULT_PWM_COUNTER = 1000;
+
+    private static ScheduledExecutorService defaultExecutor;
+
+    private final String address;
+    private final ScheduledExecutorService executor;
+    private final Random random = new Random();
+    private TransportListener listener;
+    private int state = STATE_DISCONNECTED;
+    private int connectionId;
+
+    private long connectLatencyNanos    = TimeUnit.MILLISECONDS.toNanos(50);
+    private long writeLatencyNanos      = TimeUnit.MILLISECONDS.toNanos(15);
+    private long noResponseLatencyNanos = TimeUnit.MILLISECONDS.toNanos(2);
+    private int maxMtu                  = DEFAULT_MTU;
+    private LinkParameters linkParameters = LinkParameters.DEFAULT;
+    private double packetLoss           = 0;
+    private double connectFailure       = 0;
+    private double disconnectProbability = 0;
+    private long disconnectAfterWrites  = 0;
+    private int rssi                    = -60;
+
+    private boolean operationPending;
+    private byte[] pendingWrite         = new byte[DEFAULT_MTU];
+    private int pendingWriteLength;
+    private boolean pendingAcknowledged;
+    private byte[] readValue            = new byte[0];
+    private boolean notificationsEnabled;
+    private boolean notificationsSupported = true;
+    private boolean responsePrepared;
+    private boolean handlesCached;
+
+    private final byte[] channelDirections = new byte[CHANNEL_COUNT];
+    private final byte[] channelPowers     = new byte[CHANNEL_COUNT];
+    private final int[] adcValues          = new int[QueryAdcCommand.ADC_INPUT_COUNT];
+    private int watchdogUnits              = DEFAULT_WATCHDOG_UNITS;
+    private int pwmCounter                 = DEFAULT_PWM_COUNTER;
+    private int savedPwmCounter            = DEFAULT_PWM_COUNTER;
+    private long writesReceived;
+    private long readsReceived;
+    private long writesLost;
+    private long writesSinceConnect;
+    private long lastWriteNanos;
+    private long watchdogExpirations;
+
+    private final Runnable writeCompletion = this::completeWrite;
+    private final Runnable readCompletion = this::completeRead;
+
+    /**
+     * Constructor, events are passed on shared simulator thread.
+     * @param address simulated device address
+     */
+    public SimulatedTransport(String address) {
+        this(address, getDefaultExecutor());
+    }
+
+    /**
+     * Constructor
+     * @param address simulated device address
+     * @param executor executor used for delaying and passing events
+     */
+    public SimulatedTransport(String address, ScheduledExecutorService executor) {
+        this.address = address;
+        this.executor = executor;
+    }
+
+    private static synchronized ScheduledExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "SimulatedSBrick");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Sets time between connect() or discoverServices() and its result.
+     * Default is 50ms.
+     */
+    public synchronized SimulatedTransport setConnectLatency(long latency, TimeUnit unit) {
+        connectLatencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    /**
+     * Sets time between write() or read() and its completion.
+     * Default is 15ms, like acknowledged write at 7.5ms connection interval.
+     */
+    public synchronized SimulatedTransport setWriteLatency(long latency, TimeUnit unit) {
+        writeLatencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    /**
+     * Sets time between writeWithoutResponse() and its completion, i.e. time
+     * to pass value to the link. Default is 2ms.
+     */
+    public synchronized SimulatedTransport setWithoutResponseLatency(long latency, TimeUnit unit) {
+        noResponseLatencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    /**
+     * Sets largest ATT MTU supported by simulated SBrick. Connection starts with
+     * MTU 23, larger MTU is granted by requestMtu(). Writes longer than MTU - 3
+     * bytes are rejected.
+     */
+    public synchronized SimulatedTransport setMtu(int mtu) {
+        maxMtu = mtu;
+        if (pendingWrite.length < mtu) {
+            pendingWrite = new byte[mtu];
+        }
+        return this;
+    }
+
+    /**
+     * Sets whether simulated SBrick notifies query responses. When notifications
+     * are enabled, response is notified right after query write completes, and
+     * can be read too. Default is true.
+     */
+    public synchronized SimulatedTransport setNotificationsSupported(boolean supported) {
+        notificationsSupported = supported;
+        return this;
+    }
+
+    /**
+     * Sets probability (0-1) that write is lost. Lost write isn't applied to channels.
+     * Acknowledged write completes with failure, write without response with success.
+     */
+    public synchronized SimulatedTransport setPacketLoss(double probability) {
+        packetLoss = probability;
+        return this;
+    }
+
+    /**
+     * Sets probability (0-1) that connect() fails with GATT_ERROR (133).
+     */
+    public synchronized SimulatedTransport setConnectFailure(double probability) {
+        connectFailure = probability;
+        return this;
+    }
+
+    /**
+     * Sets probability (0-1) that link is lost after any write.
+     */
+    public synchronized SimulatedTransport setDisconnectProbability(double probability) {
+        disconnectProbability = probability;
+        return this;
+    }
+
+    /**
+     * Link is lost after given number of writes since connection, 0 disables.
+     */
+    public synchronized SimulatedTransport setDisconnectAfterWrites(long writes) {
+        disconnectAfterWrites = writes;
+        return this;
+    }
+
+    /**
+     * Seeds packet loss and disconnection randomness, for repeatable runs.
+     */
+    public synchronized SimulatedTransport setRandomSeed(long seed) {
+        random.setSeed(seed);
+        return this;
+    }
+
+    /**
+     * Drops connection, like SBrick going out of range.
+     */
+    public void simulateDisconnect() {
+        TransportListener disconnectedListener;
+        synchronized (this) {
+            if (state == STATE_DISCONNECTED) return;
+            disconnectedListener = dropConnection();
+        }
+        executor.execute(() -> disconnectedListener.onDisconnected(STATUS_LINK_LOSS));
+    }
+
+    /**
+     * Sends notification of remote control characteristic, if enabled.
+     */
+    public void simulateNotification(byte[] value) {
+        TransportListener notifiedListener;
+        synchronized (this) {
+            if (state != STATE_READY || !notificationsEnabled) return;
+            notifiedListener = listener;
+        }
+        executor.execute(() -> notifiedListener.onNotification(value));
+    }
+
+    /**
+     * Sets signal strength reported by readRemoteRssi(). Default is -60 dBm.
+     */
+    public synchronized SimulatedTransport setRssi(int rssi) {
+        this.rssi = rssi;
+        return this;
+    }
+
+    /**
+     * Sets raw value of analog input, returned for ADC query.
+     * @param input QueryAdcCommand.ADC_* input
+     * @param raw 12 bit raw value
+     */
+    public synchronized SimulatedTransport setAdcValue(int input, int raw) {
+        adcValues[input] = raw;
+        return this;
+    }
+
+    /**
+     * Sets battery voltage returned for ADC query.
+     */
+    public SimulatedTransport setBatteryVoltage(double volts) {
+        return setAdcValue(QueryAdcCommand.ADC_VOLTAGE, (int) Math.round(volts * 2047.0 / 0.83875) >> 4);
+    }
+
+    /**
+     * Sets temperature returned for ADC query.
+     */
+    public SimulatedTransport setTemperature(double celsius) {
+        return setAdcValue(QueryAdcCommand.ADC_TEMPERATURE, (int) Math.round((celsius + 160) * 118.85795) >> 4);
+    }
+
+    /**
+     * @return watchdog timeout set by SetWatchdogTimeoutCommand, 0 if disabled. Default is 500ms
+     */
+    public synchronized int getWatchdogTimeoutMillis() {
+        return watchdogUnits * SetWatchdogTimeoutCommand.TIMEOUT_UNIT_MILLIS;
+    }
+
+    /**
+     * @return number of times channels were stopped by watchdog, because no write arrived within timeout
+     */
+    public synchronized long getWatchdogExpirations() {
+        return watchdogExpirations;
+    }
+
+    /**
+     * @return PWM counter value set by SetPwmCounterCommand
+     */
+    public synchronized int getPwmCounter() {
+        return pwmCounter;
+    }
+
+    /**
+     * @return PWM counter value saved by SavePwmCounterCommand
+     */
+    public synchronized int getSavedPwmCounter() {
+        return savedPwmCounter;
+    }
+
+    /**
+     * Sets value returned by read().
+     */
+    public synchronized void setReadValue(byte[] value) {
+        readValue = value;
+    }
+
+    public synchronized boolean isConnected() {
+        return state >= STATE_CONNECTED;
+    }
+
+    public synchronized byte getChannelDirection(int channel) {
+        return channelDirections[channel];
+    }
+
+    /**
+     * @return power of channel, 0 when stopped
+     */
+    public synchronized int getChannelPower(int channel) {
+        return channelPowers[channel] & 0xFF;
+    }
+
+    /**
+     * @return number of writes applied to simulated SBrick
+     */
+    public synchronized long getWritesReceived() {
+        return writesReceived;
+    }
+
+    /**
+     * @return number of started reads
+     */
+    public synchronized long getReadsReceived() {
+        return readsReceived;
+    }
+
+    /**
+     * @return number of writes lost by simulated packet loss
+     */
+    public synchronized long getWritesLost() {
+        return writesLost;
+    }
+
+    /**
+     * @return System.nanoTime() of last applied write, 0 if none
+     */
+    public synchronized long getLastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public void connect(TransportListener transportListener) {
+        final int id;
+        synchronized (this) {
+            listener = transportListener;
+            state = STATE_CONNECTING;
+            id = ++connectionId;
+        }
+        executor.schedule(() -> completeConnect(id), connectLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean discoverServices() {
+        final int id;
+        final long latencyNanos;
+        synchronized (this) {
+            if (state != STATE_CONNECTED) return false;
+            id = connectionId;
+            latencyNanos = handlesCached ? 0 : connectLatencyNanos;
+        }
+        executor.schedule(() -> completeDiscovery(id), latencyNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean write(byte[] value) {
+        return write(value, true);
+    }
+
+    @Override
+    public boolean writeWithoutResponse(byte[] value) {
+        return write(value, false);
+    }
+
+    private boolean write(byte[] value, boolean acknowledged) {
+        long latencyNanos;
+        synchronized (this) {
+            if (state != STATE_READY || operationPending) return false;
+            if (value.length > linkParameters.getMtu() - ATT_HEADER_LENGTH) return false;
+            operationPending = true;
+            System.arraycopy(value, 0, pendingWrite, 0, value.length);
+            pendingWriteLength = value.length;
+            pendingAcknowledged = acknowledged;
+            latencyNanos = acknowledged ? writeLatencyNanos : noResponseLatencyNanos;
+        }
+        executor.schedule(writeCompletion, latencyNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean read() {
+        synchronized (this) {
+            if (state != STATE_READY || operationPending) return false;
+            operationPending = true;
+            readsReceived++;
+        }
+        executor.schedule(readCompletion, writeLatencyNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean setNotificationsEnabled(boolean enabled) {
+        final int id;
+        synchronized (this) {
+            if (state != STATE_READY || operationPending) return false;
+            operationPending = true;
+            id = connectionId;
+        }
+        executor.schedule(() -> completeNotificationsEnabled(id, enabled), writeLatencyNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    @Override
+    public synchronized int getMtu() {
+        return linkParameters.getMtu();
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        final int id;
+        synchronized (this) {
+            if (state != STATE_READY || operationPending) return false;
+            operationPending = true;
+            id = connectionId;
+        }
+        executor.schedule(() -> completeMtuExchange(id, mtu), writeLatencyNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    /**
+     * Grants typical interval of profile and its PHY.
+     */
+    @Override
+    public boolean applyConnectionProfile(ConnectionProfile profile) {
+        final int id;
+        synchronized (this) {
+            if (state < STATE_CONNECTED) return false;
+            id = connectionId;
+        }
+        executor.schedule(() -> completeConnectionUpdate(id, profile), connectLatencyNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        final int id;
+        synchronized (this) {
+            if (state != STATE_READY) return false;
+            id = connectionId;
+        }
+        executor.schedule(() -> completeRssiRead(id), noResponseLatencyNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    @Override
+    public synchronized LinkParameters getLinkParameters() {
+        return linkParameters;
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        dropConnection();
+        handlesCached = false;
+    }
+
+    /**
+     * Like disconnect(), but next service discovery completes right away.
+     */
+    @Override
+    public synchronized void disconnectForReconnect() {
+        dropConnection();
+        handlesCached = true;
+    }
+
+    private TransportListener dropConnection() {
+        state = STATE_DISCONNECTED;
+        connectionId++;
+        operationPending = false;
+        notificationsEnabled = false;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            channelPowers[channel] = 0;
+        }
+        return listener;
+    }
+
+    private void completeConnect(int id) {
+        boolean failed;
+        synchronized (this) {
+            if (id != connectionId || state != STATE_CONNECTING) return;
+            failed = random.nextDouble() < connectFailure;
+            state = failed ? STATE_DISCONNECTED : STATE_CONNECTED;
+            writesSinceConnect = 0;
+            linkParameters = LinkParameters.DEFAULT
+                    .withInterval(ConnectionProfile.BALANCED.getTypicalIntervalMicros(), 0, 5000);
+        }
+        if (failed) {
+            listener.onDisconnected(STATUS_GATT_ERROR);
+        } else {
+            listener.onConnected();
+        }
+    }
+
+    private void completeDiscovery(int id) {
+        synchronized (this) {
+            if (id != connectionId || state != STATE_CONNECTED) return;
+            state = STATE_READY;
+        }
+        listener.onServicesDiscovered(true);
+    }
+
+    private void completeMtuExchange(int id, int requestedMtu) {
+        LinkParameters parameters;
+        synchronized (this) {
+            if (id != connectionId || state != STATE_READY) return;
+            operationPending = false;
+            linkParameters = linkParameters.withMtu(Math.max(DEFAULT_MTU, Math.min(requestedMtu, maxMtu)));
+            parameters = linkParameters;
+        }
+        listener.onMtuChanged(parameters.getMtu(), true);
+        listener.onLinkParametersChanged(parameters);
+    }
+
+    private void completeRssiRead(int id) {
+        int value;
+        synchronized (this) {
+            if (id != connectionId || state != STATE_READY) return;
+            value = rssi;
+        }
+        listener.onRssiRead(value, true);
+    }
+
+    private void completeNotificationsEnabled(int id, boolean enabled) {
+        synchronized (this) {
+            if (id != connectionId || state != STATE_READY) return;
+            operationPending = false;
+            notificationsEnabled = enabled && notificationsSupported;
+        }
+        listener.onNotificationsEnabled(notificationsSupported);
+    }
+
+    private void completeConnectionUpdate(int id, ConnectionProfile profile) {
+        LinkParameters parameters;
+        synchronized (this) {
+            if (id != connectionId || state < STATE_CONNECTED) return;
+            linkParameters = linkParameters
+                    .withInterval(profile.getTypicalIntervalMicros(), 0, linkParameters.getSupervisionTimeoutMillis())
+                    .withPhy(profile.getPhy(), profile.getPhy());
+            parameters = linkParameters;
+        }
+        listener.onLinkParametersChanged(parameters);
+    }
+
+    private void completeWrite() {
+        boolean lost;
+        boolean acknowledged;
+        boolean linkLost;
+        byte[] notifiedValue = null;
+        TransportListener writeListener;
+        synchronized (this) {
+            if (!operationPending || state != STATE_READY) return;
+            operationPending = false;
+            writeListener = listener;
+            acknowledged = pendingAcknowledged;
+            lost = random.nextDouble() < packetLoss;
+            if (lost) {
+                writesLost++;
+            } else {
+                long now = System.nanoTime();
+                checkWatchdog(now);
+                responsePrepared = false;
+                applyCommand(pendingWrite, pendingWriteLength);
+                writesReceived++;
+                lastWriteNanos = now;
+                if (responsePrepared && notificationsEnabled) {
+                    notifiedValue = readValue;
+                }
+            }
+            writesSinceConnect++;
+            linkLost = (disconnectAfterWrites > 0 && writesSinceConnect >= disconnectAfterWrites)
+                    || random.nextDouble() < disconnectProbability;
+            if (linkLost) {
+                dropConnection();
+            }
+        }
+        if (linkLost) {
+            writeListener.onDisconnected(STATUS_LINK_LOSS);
+        } else {
+            writeListener.onWriteComplete(!lost || !acknowledged);
+            if (notifiedValue != null) {
+                writeListener.onNotification(notifiedValue);
+            }
+        }
+    }
+
+    private void completeRead() {
+        byte[] value;
+        TransportListener readListener;
+        synchronized (this) {
+            if (!operationPending || state != STATE_READY) return;
+            operationPending = false;
+            value = readValue;
+            readListener = listener;
+        }
+        readListener.onReadComplete(value, true);
+    }
+
+    /**
+     * Stops channels, like SBrick watchdog does, when gap since previous write
+     * of this connection exceeded watchdog timeout.
+     */
+    private void checkWatchdog(long nowNanos) {
+        if (watchdogUnits == 0 || writesSinceConnect == 0) return;
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(watchdogUnits * SetWatchdogTimeoutCommand.TIMEOUT_UNIT_MILLIS);
+        if (nowNanos - lastWriteNanos > timeoutNanos) {
+            watchdogExpirations++;
+            for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+                channelPowers[channel] = 0;
+            }
+        }
+    }
+
+    /**
+     * Applies drive and stop commands to simulated channels and settings, prepares
+     * response of queries. Other opcodes are ignored.
+     */
+    private void applyCommand(byte[] stream, int length) {
+        if (length == 0) return;
+        switch (stream[0]) {
+            case SBrickProtocol.SET_WATCHDOG_TIMEOUT:
+                if (length > 1) watchdogUnits = stream[1] & 0xFF;
+                return;
+            case SBrickProtocol.GET_WATCHDOG_TIMEOUT:
+                readValue = new byte[]{(byte) watchdogUnits};
+                responsePrepared = true;
+                return;
+            case SBrickProtocol.SET_PWM_COUNTER:
+                if (length > 2) pwmCounter = (stream[1] & 0xFF) | (stream[2] & 0xFF) << 8;
+                return;
+            case SBrickProtocol.GET_PWM_COUNTER:
+                readValue = new byte[]{(byte) pwmCounter, (byte) (pwmCounter >>> 8)};
+                responsePrepared = true;
+                return;
+            case SBrickProtocol.SAVE_PWM_COUNTER:
+                savedPwmCounter = pwmCounter;
+                return;
+        }
+        if (stream[0] == SBrickProtocol.QUERY_ADC) {
+            byte[] response = new byte[2 * (length - 1)];
+            for (int i = 1; i < length; i++) {
+                int input = stream[i];
+                if (input >= 0 && input < adcValues.length) {
+                    QueryAdcCommand.encodeRaw(adcValues[input], response, i - 1);
+                }
+            }
+            readValue = response;
+            responsePrepared = true;
+            return;
+        }
+        if (stream[0] == OPCODE_STOP) {
+            for (int i = 1; i < length; i++) {
+                int channel = stream[i];
+                if (channel >= 0 && channel < CHANNEL_COUNT) {
+                    channelPowers[channel] = 0;
+                }
+            }
+        } else if (stream[0] == OPCODE_DRIVE) {
+            for (int i = 1; i + 2 < length; i += 3) {
+                int channel = stream[i];
+                if (channel >= 0 && channel < CHANNEL_COUNT) {
+                    channelDirections[channel] = stream[i + 1];
+                    channelPowers[channel] = stream[i + 2];
+                }
+            }
+        }
+    }
+}
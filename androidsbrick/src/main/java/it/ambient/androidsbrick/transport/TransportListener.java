@@ -0,0 +1,50 @@
+package it.ambient.androidsbrick.transport;
+
+/**
+ * Receives SBrickTransport events. Methods can be called on any thread.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public interface TransportListener {
+
+    void onConnected();
+
+    /**
+     * @param status GATT status which caused disconnection, 0 if disconnected cleanly
+     */
+    void onDisconnected(int status);
+
+    void onServicesDiscovered(boolean success);
+
+    void onWriteComplete(boolean success);
+
+    void onReadComplete(byte[] value, boolean success);
+
+    void onNotification(byte[] value);
+
+    /**
+     * @param mtu negotiated MTU
+     * @param success false if MTU exchange failed and MTU is unchanged
+     */
+    default void onMtuChanged(int mtu, boolean success) {
+    }
+
+    /**
+     * @param success true if notifications of remote control characteristic are enabled
+     */
+    default void onNotificationsEnabled(boolean success) {
+    }
+
+    /**
+     * @param rssi signal strength in dBm
+     * @param success true if RSSI was read
+     */
+    default void onRssiRead(int rssi, boolean success) {
+    }
+
+    /**
+     * Connection interval, PHY or MTU changed.
+     */
+    default void onLinkParametersChanged(LinkParameters parameters) {
+    }
+}
@@ -0,0 +1,114 @@
+package it.ambient.androidsbrick.transport;
+
+/**
+ * Write statistics of single SBrick link: achieved writes per second and
+ * latency between write start and its acknowledgement. Thread safe.
+ *
+ * @author Tomasz Wegrowski <tomasz.wegrowski+github@gmail.com>
+ */
+public class WriteStats {
+    private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+    private long writeCount;
+    private long failureCount;
+    private long retryCount;
+    private long lastLatencyNanos;
+    private long maxLatencyNanos;
+    private long totalLatencyNanos;
+
+    private long windowStartNanos;
+    private long windowWrites;
+    private double writesPerSecond;
+
+    /**
+     * Records acknowledged write.
+     *
+     * @param latencyNanos time from write start to acknowledgement
+     * @param nowNanos System.nanoTime() of acknowledgement
+     */
+    public synchronized void recordWrite(long latencyNanos, long nowNanos) {
+        writeCount++;
+        lastLatencyNanos = latencyNanos;
+        totalLatencyNanos += latencyNanos;
+        if (latencyNanos > maxLatencyNanos) {
+            maxLatencyNanos = latencyNanos;
+        }
+        long windowNanos = nowNanos - windowStartNanos;
+        if (windowNanos >= RATE_WINDOW_NANOS) {
+            writesPerSecond = windowStartNanos == 0 ? 0 : windowWrites * 1e9 / windowNanos;
+            windowStartNanos = nowNanos;
+            windowWrites = 0;
+        }
+        windowWrites++;
+    }
+
+    /**
+     * Records write rejected by transport or not acknowledged by SBrick.
+     */
+    public synchronized void recordFailure() {
+        failureCount++;
+    }
+
+    /**
+     * Records retry of failed write.
+     */
+    public synchronized void recordRetry() {
+        retryCount++;
+    }
+
+    /**
+     * @return acknowledged writes per second, measured in last full second, 0 when link is idle
+     */
+    public synchronized double getWritesPerSecond() {
+        if (System.nanoTime() - windowStartNanos > 2 * RATE_WINDOW_NANOS) {
+            return 0;
+        }
+        return writesPerSecond;
+    }
+
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+
+    public synchronized long getRetryCount() {
+        return retryCount;
+    }
+
+    public synchronized long getLastLatencyNanos() {
+        return lastLatencyNanos;
+    }
+
+    public synchronized long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    public synchronized long getAverageLatencyNanos() {
+        return writeCount == 0 ? 0 : totalLatencyNanos / writeCount;
+    }
+
+    public synchronized void reset() {
+        writeCount = 0;
+        failureCount = 0;
+        retryCount = 0;
+        lastLatencyNanos = 0;
+        maxLatencyNanos = 0;
+        totalLatencyNanos = 0;
+        windowStartNanos = 0;
+        windowWrites = 0;
+        writesPerSecond = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WriteStats{writes=" + writeCount
+                + ", failures=" + failureCount
+                + ", retries=" + retryCount
+                + ", writesPerSecond=" + writesPerSecond
+                + ", avgLatencyUs=" + (writeCount == 0 ? 0 : totalLatencyNanos / writeCount / 1000)
+                + ", maxLatencyUs=" + maxLatencyNanos / 1000 + "}";
+    }
+}
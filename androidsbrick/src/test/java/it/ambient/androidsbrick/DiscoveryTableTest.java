@@ -0,0 +1,75 @@
+package it.ambient.androidsbrick;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Removes devices from run of colliding entries, which wraps from end of table to its start.
+ */
+public class DiscoveryTableTest {
+    // table for 4 devices has 16 slots
+    private static final int CAPACITY = 16;
+    private static final long FRESH = 2000L;
+    private static final long STALE = 1000L;
+
+    @Test
+    public void removeSeenBefore_runWrappingAround_removesStaleOnly() {
+        // three devices at home in last slot, one in first slot, so run spans slots 15, 0, 1, 2
+        long[] addresses = {
+                addressAtHome(CAPACITY - 1, 0), addressAtHome(CAPACITY - 1, 1),
+                addressAtHome(CAPACITY - 1, 2), addressAtHome(0, 0)};
+        for (int staleMask = 0; staleMask < 1 << addresses.length; staleMask++) {
+            DiscoveryTable table = new DiscoveryTable(4, DiscoveryTable.DEFAULT_SMOOTHING);
+            int staleCount = 0;
+            for (int i = 0; i < addresses.length; i++) {
+                boolean stale = (staleMask & (1 << i)) != 0;
+                table.update(addresses[i], null, -60, stale ? STALE : FRESH);
+                if (stale) staleCount++;
+            }
+
+            assertEquals("stale mask " + staleMask, staleCount, table.removeSeenBefore(FRESH));
+            assertEquals(addresses.length - staleCount, table.size());
+            for (int i = 0; i < addresses.length; i++) {
+                boolean stale = (staleMask & (1 << i)) != 0;
+                assertEquals("stale mask " + staleMask + ", device " + i, !stale, table.contains(addresses[i]));
+            }
+        }
+    }
+
+    @Test
+    public void remove_fromWrappedRun_keepsOthersReachable() {
+        DiscoveryTable table = new DiscoveryTable(4, DiscoveryTable.DEFAULT_SMOOTHING);
+        long first = addressAtHome(CAPACITY - 1, 0);
+        long second = addressAtHome(CAPACITY - 1, 1);
+        long third = addressAtHome(0, 0);
+        table.update(first, null, -40, FRESH);
+        table.update(second, null, -50, FRESH);
+        table.update(third, null, -70, FRESH);
+
+        assertTrue(table.remove(first));
+        assertFalse(table.contains(first));
+        assertEquals(-50, table.getSmoothedRssi(second));
+        assertEquals(-70, table.getSmoothedRssi(third));
+        assertEquals(2, table.size());
+    }
+
+    /**
+     * @return n-th SBrick-like address whose home slot is given one
+     */
+    private static long addressAtHome(int home, int n) {
+        for (long address = 0x000780000000L; ; address++) {
+            if ((hash(address) & (CAPACITY - 1)) == home && n-- == 0) {
+                return address;
+            }
+        }
+    }
+
+    /**
+     * Same mixing as DiscoveryTable.
+     */
+    private static int hash(long address) {
+        long mixed = address * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 32) ^ (int) mixed;
+    }
+}
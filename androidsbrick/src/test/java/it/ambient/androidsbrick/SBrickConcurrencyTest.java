@@ -0,0 +1,115 @@
+package it.ambient.androidsbrick;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import it.ambient.androidsbrick.command.RotateCommand;
+import it.ambient.androidsbrick.command.SBrickCommand;
+import it.ambient.androidsbrick.transport.SimulatedTransport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Executes commands from many threads at once, through simulated SBrick.
+ * Every thread drives its own channel, so the last command of each thread
+ * must end up on SBrick, no matter how many were coalesced on the way.
+ */
+public class SBrickConcurrencyTest {
+    private static final int THREADS = SBrickCommand.CHANNEL_COUNT;
+    private static final int COMMANDS_PER_THREAD = 20_000;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public final SimulatedSBrickRule simulated = new SimulatedSBrickRule("00:07:80:00:00:01", 1);
+    private SimulatedTransport transport;
+    private SBrick sbrick;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        transport = simulated.getTransport()
+                .setWithoutResponseLatency(0, TimeUnit.MILLISECONDS);
+        sbrick = simulated.getSBrick();
+        simulated.connect();
+    }
+
+    @Test
+    public void execute_fromManyThreads_latestStateWins() throws Exception {
+        executeConcurrently();
+    }
+
+    @Test
+    public void execute_fromManyThreadsInFastMode_latestStateWins() throws Exception {
+        sbrick.setFastMode(true);
+        executeConcurrently();
+        assertTrue(sbrick.getFastModeWriteStats().getWriteCount() > 0);
+    }
+
+    private void executeConcurrently() throws Exception {
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int channel = i;
+            threads[i] = new Thread(() -> {
+                RotateCommand command = new RotateCommand();
+                Random random = new Random(channel);
+                try {
+                    start.await();
+                    for (int n = 0; n < COMMANDS_PER_THREAD; n++) {
+                        command.clear().channel(channel, (byte) random.nextInt(2), (byte) random.nextInt(256));
+                        assertTrue(sbrick.execute(command));
+                    }
+                    command.clear().channel(channel, finalDirection(channel), finalPower(channel));
+                    assertTrue(sbrick.execute(command));
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError("executing thread failed", error.get());
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!hasFinalState() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        for (int channel = 0; channel < THREADS; channel++) {
+            assertEquals("power of channel " + channel,
+                    finalPower(channel) & 0xFF, transport.getChannelPower(channel));
+            assertEquals("direction of channel " + channel,
+                    finalDirection(channel), transport.getChannelDirection(channel));
+        }
+        assertTrue("commands weren't coalesced",
+                transport.getWritesReceived() < THREADS * COMMANDS_PER_THREAD);
+        assertEquals(0, sbrick.getWriteStats().getFailureCount());
+    }
+
+    private boolean hasFinalState() {
+        for (int channel = 0; channel < THREADS; channel++) {
+            if (transport.getChannelPower(channel) != (finalPower(channel) & 0xFF)
+                    || transport.getChannelDirection(channel) != finalDirection(channel)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte finalDirection(int channel) {
+        return channel % 2 == 0 ? RotateCommand.DIR_CLOCKWISE : RotateCommand.DIR_COUNTER_CLOCKWISE;
+    }
+
+    private static byte finalPower(int channel) {
+        return (byte) (0x40 + 0x30 * channel);
+    }
+}
@@ -0,0 +1,74 @@
+package it.ambient.androidsbrick;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.ambient.androidsbrick.command.RotateCommand;
+import it.ambient.androidsbrick.command.SBrickCommand;
+import it.ambient.androidsbrick.transport.SimulatedTransport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Dispatches group commands to simulated SBrick and checks that each dispatch
+ * is reported, however its state reaches the link.
+ */
+public class SBrickGroupTest {
+    private static final long TIMEOUT_SECONDS = SimulatedSBrickRule.TIMEOUT_SECONDS;
+    private static final long WRITE_LATENCY_MILLIS = 20;
+
+    @Rule
+    public final SimulatedSBrickRule simulated = new SimulatedSBrickRule("00:07:80:00:00:02", WRITE_LATENCY_MILLIS);
+    private SimulatedTransport transport;
+    private SBrick sbrick;
+    private SBrickGroup group;
+    private CountDownLatch dispatched = new CountDownLatch(1);
+    private AtomicInteger writtenCount = new AtomicInteger(-1);
+
+    @Before
+    public void setUp() throws InterruptedException {
+        transport = simulated.getTransport();
+        sbrick = simulated.getSBrick();
+        simulated.connect();
+        // watchdog query and initial stop are written at connect
+        Thread.sleep(10 * WRITE_LATENCY_MILLIS);
+        group = new SBrickGroup(sbrick);
+        group.setListener((group, written, skewNanos, latencyNanos) -> {
+            writtenCount.set(written);
+            dispatched.countDown();
+        });
+    }
+
+    @Test
+    public void execute_linkFree_dispatchWritten() throws InterruptedException {
+        group.execute(group.newCommand().rotate(sbrick, SBrickCommand.CHANNEL_B, RotateCommand.DIR_CLOCKWISE, (byte) 80));
+        assertTrue("dispatch not reported", dispatched.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, writtenCount.get());
+    }
+
+    @Test
+    public void execute_stateDrainedByWriteCompletion_dispatchReported() throws InterruptedException {
+        sbrick.execute(new RotateCommand().channelA(RotateCommand.DIR_CLOCKWISE, (byte) 50));
+        // I/O thread stalls while write is in flight, its completion is queued before group wake-up
+        simulated.getIoThread().post(() -> sleep(3 * WRITE_LATENCY_MILLIS));
+        Thread.sleep(2 * WRITE_LATENCY_MILLIS);
+        group.execute(group.newCommand().rotate(sbrick, SBrickCommand.CHANNEL_B, RotateCommand.DIR_CLOCKWISE, (byte) 80));
+
+        assertTrue("dispatch not reported", dispatched.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, writtenCount.get());
+        assertTrue("dispatched state not written", simulated.awaitPower(SBrickCommand.CHANNEL_B, 80));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package it.ambient.androidsbrick;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import it.ambient.androidsbrick.command.QueryAdcCommand;
+
+import static org.junit.Assert.*;
+
+/**
+ * Samples telemetry of simulated SBrick and checks how query responses reach it.
+ */
+public class SBrickQueryTest {
+    private static final int SAMPLES = 5;
+    private static final long PERIOD_MILLIS = 10;
+
+    @Rule
+    public final SimulatedSBrickRule simulated = new SimulatedSBrickRule("00:07:80:00:00:05", 2);
+
+    @Test
+    public void telemetry_notificationsEnabled_responsesNotRead() throws InterruptedException {
+        simulated.connect();
+        awaitSamples();
+        assertEquals(0, simulated.getTransport().getReadsReceived());
+    }
+
+    @Test
+    public void telemetry_notificationsNotSupported_responsesRead() throws InterruptedException {
+        simulated.getTransport().setNotificationsSupported(false);
+        simulated.connect();
+        awaitSamples();
+        assertTrue(simulated.getTransport().getReadsReceived() >= SAMPLES);
+    }
+
+    private void awaitSamples() throws InterruptedException {
+        SBrick sbrick = simulated.getSBrick();
+        CountDownLatch sampled = new CountDownLatch(SAMPLES);
+        sbrick.addTelemetryListener((s, sample) -> sampled.countDown());
+        sbrick.startTelemetry(new QueryAdcCommand().voltage(), PERIOD_MILLIS);
+        assertTrue("telemetry not sampled",
+                sampled.await(SimulatedSBrickRule.TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        sbrick.stopTelemetry();
+    }
+}
@@ -0,0 +1,141 @@
+package it.ambient.androidsbrick;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.ambient.androidsbrick.command.RotateCommand;
+import it.ambient.androidsbrick.command.SBrickCommand;
+import it.ambient.androidsbrick.transport.SimulatedTransport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drops link of simulated SBrick with automatic reconnect enabled and checks
+ * channel state after recovery, for each resume mode.
+ */
+public class SBrickReconnectTest {
+    private static final long TIMEOUT_SECONDS = SimulatedSBrickRule.TIMEOUT_SECONDS;
+    private static final int A = SBrickCommand.CHANNEL_A;
+    private static final int FULL_POWER = 0xFF;
+
+    @Rule
+    public final SimulatedSBrickRule simulated = new SimulatedSBrickRule("00:07:80:00:00:03", 2);
+    private SimulatedTransport transport;
+    private SBrick sbrick;
+    private CountDownLatch recovered = new CountDownLatch(1);
+    private AtomicInteger disconnects = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        transport = simulated.getTransport();
+        sbrick = simulated.getSBrick();
+        sbrick.addStateListener(new SBrickStateListener() {
+            @Override
+            public void onSBrickReady(SBrick sbrick) {
+            }
+
+            @Override
+            public void onSBrickDisconnected(SBrick sbrick, int status) {
+                disconnects.incrementAndGet();
+            }
+
+            @Override
+            public void onSBrickRecovered(SBrick sbrick, long recoveryMillis, int attempts) {
+                recovered.countDown();
+            }
+        });
+    }
+
+    @Test
+    public void linkLost_lastState_channelsDrivenAgain() throws InterruptedException {
+        connectDriving(SBrick.ResumeMode.LAST_STATE);
+
+        transport.simulateDisconnect();
+        assertTrue("not recovered", recovered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertTrue("channel not resumed", simulated.awaitPower(A, FULL_POWER));
+        assertEquals(1, disconnects.get());
+        assertFalse(sbrick.isReconnecting());
+        assertTrue(sbrick.getLastRecoveryMillis() > 0);
+    }
+
+    @Test
+    public void linkLost_stop_channelsStayStopped() throws InterruptedException {
+        connectDriving(SBrick.ResumeMode.STOP);
+
+        transport.simulateDisconnect();
+        assertTrue("not recovered", recovered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        long writes = transport.getWritesReceived();
+        awaitWritesAfter(writes);
+        assertEquals(0, transport.getChannelPower(A));
+        assertEquals(1, disconnects.get());
+    }
+
+    @Test
+    public void linkLost_commandDuringReconnect_writtenAfterRecovery() throws InterruptedException {
+        connectDriving(SBrick.ResumeMode.STOP);
+
+        transport.simulateDisconnect();
+        awaitReconnecting();
+        sbrick.execute(new RotateCommand().channelA(RotateCommand.DIR_CLOCKWISE, (byte) 0x40));
+        assertTrue("not recovered", recovered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertTrue("command not written", simulated.awaitPower(A, 0x40));
+    }
+
+    @Test
+    public void emergencyStop_duringReconnect_channelsStayStopped() throws InterruptedException {
+        connectDriving(SBrick.ResumeMode.LAST_STATE);
+
+        transport.simulateDisconnect();
+        awaitReconnecting();
+        // executed before stop, dropped by it
+        sbrick.execute(new RotateCommand().channelB(RotateCommand.DIR_CLOCKWISE, (byte) 0x40));
+        EmergencyStop emergencyStop = new EmergencyStop(sbrick);
+        CountDownLatch stopped = new CountDownLatch(1);
+        emergencyStop.setListener((stop, result) -> stopped.countDown());
+        emergencyStop.trigger();
+        assertTrue("stop not completed", stopped.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(EmergencyStop.Status.NOT_CONNECTED, emergencyStop.getLastResult().getStatus(sbrick));
+
+        assertTrue("not recovered", recovered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        long writes = transport.getWritesReceived();
+        awaitWritesAfter(writes);
+        assertEquals(0, transport.getChannelPower(A));
+        assertEquals(0, transport.getChannelPower(SBrickCommand.CHANNEL_B));
+    }
+
+    private void connectDriving(SBrick.ResumeMode mode) throws InterruptedException {
+        sbrick.setAutoReconnect(true, mode);
+        simulated.connect();
+        sbrick.execute(new RotateCommand().channelA(RotateCommand.DIR_CLOCKWISE, (byte) FULL_POWER));
+        assertTrue("channel not driven", simulated.awaitPower(A, FULL_POWER));
+    }
+
+    /**
+     * Waits until SBrick noticed link loss, commands executed before it are replaced by stop.
+     */
+    private void awaitReconnecting() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!sbrick.isReconnecting() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue("link loss not noticed", sbrick.isReconnecting());
+    }
+
+    /**
+     * Waits until SBrick wrote after recovery, e.g. channel state restored at ready.
+     */
+    private void awaitWritesAfter(long writes) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (transport.getWritesReceived() <= writes + 2 && System.nanoTime() < deadline) {
+            Thread.sleep(2);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package it.ambient.androidsbrick;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Saves registry and loads it back, from intact and broken files.
+ */
+public class SBrickRegistryTest {
+    private static final String FIRST = "00:07:80:2E:A1:01";
+    private static final String SECOND = "00:07:80:2E:A1:02";
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("registry", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void saveAndLoad_keepsEntries() {
+        SBrickRegistry registry = new SBrickRegistry(file);
+        assertTrue(registry.markSeen(FIRST, "SBrick \u017B", 1000L));
+        assertTrue(registry.markSeen(SECOND, null, 2000L));
+        assertTrue(registry.save());
+
+        SBrickRegistry loaded = new SBrickRegistry(file);
+        assertTrue(loaded.load());
+        List<SBrickRegistry.Entry> entries = loaded.getEntries();
+        assertEquals(2, entries.size());
+        // most recently seen first
+        assertEquals(SECOND, entries.get(0).getAddress());
+        assertEquals("", entries.get(0).getName());
+        assertEquals(2000L, entries.get(0).getLastSeenMillis());
+        assertEquals(FIRST, entries.get(1).getAddress());
+        assertEquals("SBrick \u017B", entries.get(1).getName());
+        assertEquals(1000L, entries.get(1).getLastSeenMillis());
+    }
+
+    @Test
+    public void saveAndLoad_keepsOrderAfterUpdate() {
+        SBrickRegistry registry = new SBrickRegistry(file);
+        registry.markSeen(FIRST, "first", 1000L);
+        registry.markSeen(SECOND, "second", 2000L);
+        registry.markSeen(FIRST, null, 3000L);
+        registry.save();
+
+        SBrickRegistry loaded = new SBrickRegistry(file);
+        loaded.load();
+        assertEquals(FIRST, loaded.getEntries().get(0).getAddress());
+        assertEquals("first", loaded.get(FIRST).getName());
+    }
+
+    @Test
+    public void load_missingFile_isEmpty() {
+        file.delete();
+        SBrickRegistry registry = new SBrickRegistry(file);
+        assertFalse(registry.load());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void load_truncatedFile_isEmpty() throws IOException {
+        SBrickRegistry registry = new SBrickRegistry(file);
+        registry.markSeen(FIRST, "first", 1000L);
+        registry.markSeen(SECOND, "second", 2000L);
+        registry.save();
+        try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+            truncated.setLength(truncated.length() - 3);
+        }
+
+        SBrickRegistry loaded = new SBrickRegistry(file);
+        assertFalse(loaded.load());
+        assertEquals(0, loaded.size());
+    }
+
+    @Test
+    public void load_unknownFormat_isEmpty() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeBytes("not a registry");
+        }
+        SBrickRegistry registry = new SBrickRegistry(file);
+        assertFalse(registry.load());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void load_entryCountAboveLimit_isRejected() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x53427267);
+            out.writeByte(1);
+            out.writeShort(0xFFFF);
+        }
+        SBrickRegistry registry = new SBrickRegistry(file);
+        assertFalse(registry.load());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void markSeen_manySBricks_oldestDropped() {
+        SBrickRegistry registry = new SBrickRegistry(file);
+        for (int i = 0; i < 300; i++) {
+            registry.markSeen(BluetoothAddress.toString(0x000780000000L + i), null, i);
+        }
+        assertEquals(256, registry.size());
+        assertFalse(registry.contains(BluetoothAddress.toString(0x000780000000L)));
+        assertTrue(registry.save());
+
+        SBrickRegistry loaded = new SBrickRegistry(file);
+        assertTrue(loaded.load());
+        assertEquals(256, loaded.size());
+    }
+}
@@ -0,0 +1,54 @@
+package it.ambient.androidsbrick;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Starts scans on fake clock, like duty cycled PresenceMonitor. Quota is shared
+ * by whole application, so each test runs at its own time, far from others.
+ */
+public class ScanQuotaTest {
+    private static final long HOUR = 3_600_000L; // ms
+
+    @Test
+    public void getDelayMillis_sixthStartWithinPeriod_waitsForOldest() {
+        long now = 1000 * HOUR;
+        for (int i = 0; i < ScanQuota.MAX_STARTS; i++) {
+            assertEquals(0, ScanQuota.getDelayMillis(now + i * 1000));
+            ScanQuota.recordStart(now + i * 1000);
+        }
+        long sixth = now + ScanQuota.MAX_STARTS * 1000;
+        long delay = ScanQuota.getDelayMillis(sixth);
+        assertTrue(delay > 0);
+        // oldest start falls out of period, with margin
+        assertTrue(sixth + delay >= now + ScanQuota.PERIOD);
+        assertEquals(0, ScanQuota.getDelayMillis(sixth + delay));
+    }
+
+    @Test
+    public void dutyCycle_minInterval_neverWaits() {
+        long now = 2000 * HOUR;
+        for (int window = 0; window < 4 * ScanQuota.MAX_STARTS; window++) {
+            assertEquals("window " + window, 0, ScanQuota.getDelayMillis(now));
+            ScanQuota.recordStart(now);
+            now += ScanQuota.MIN_INTERVAL;
+        }
+    }
+
+    @Test
+    public void dutyCycle_shorterInterval_waits() {
+        long now = 3000 * HOUR;
+        long interval = ScanQuota.PERIOD / ScanQuota.MAX_STARTS;
+        long waited = 0;
+        for (int window = 0; window < 4 * ScanQuota.MAX_STARTS; window++) {
+            long delay = ScanQuota.getDelayMillis(now);
+            // window waits for quota like PresenceMonitor does, next interval counts from its start
+            now += delay;
+            waited += delay;
+            ScanQuota.recordStart(now);
+            now += interval;
+        }
+        assertTrue(waited > 0);
+    }
+}
@@ -0,0 +1,104 @@
+package it.ambient.androidsbrick;
+
+import org.junit.rules.ExternalResource;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import it.ambient.androidsbrick.transport.IoThread;
+import it.ambient.androidsbrick.transport.SimulatedTransport;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SBrick on simulated link and its own I/O thread, created before each test.
+ * After test SBrick is disconnected and I/O thread quits only when link is down,
+ * so keep-alive scheduler shared by tests never ticks link of quit I/O thread.
+ * Transport can be configured, and listeners added, before connect().
+ */
+class SimulatedSBrickRule extends ExternalResource {
+    static final long TIMEOUT_SECONDS = 5;
+
+    private final String address;
+    private final long writeLatencyMillis;
+    private IoThread ioThread;
+    private SimulatedTransport transport;
+    private SBrick sbrick;
+    private CountDownLatch ready;
+
+    /**
+     * @param address address of simulated SBrick, unique for each test class
+     * @param writeLatencyMillis latency of acknowledged write and read
+     */
+    SimulatedSBrickRule(String address, long writeLatencyMillis) {
+        this.address = address;
+        this.writeLatencyMillis = writeLatencyMillis;
+    }
+
+    @Override
+    protected void before() {
+        ioThread = new IoThread("TestIo " + address);
+        transport = new SimulatedTransport(address)
+                .setConnectLatency(1, TimeUnit.MILLISECONDS)
+                .setWriteLatency(writeLatencyMillis, TimeUnit.MILLISECONDS);
+        sbrick = new SBrick(transport, ioThread, false);
+        ready = new CountDownLatch(1);
+        sbrick.addStateListener(new SBrickStateListener() {
+            @Override
+            public void onSBrickReady(SBrick sbrick) {
+                ready.countDown();
+            }
+
+            @Override
+            public void onSBrickDisconnected(SBrick sbrick, int status) {
+            }
+        });
+    }
+
+    @Override
+    protected void after() {
+        sbrick.disconnect();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        try {
+            while ((sbrick.isConnected() || sbrick.isReconnecting()) && System.nanoTime() < deadline) {
+                Thread.sleep(2);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ioThread.quit();
+    }
+
+    /**
+     * Connects SBrick and waits until it's ready for commands.
+     */
+    void connect() throws InterruptedException {
+        assertTrue(sbrick.connect());
+        assertTrue("SBrick not ready", ready.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Waits until simulated channel runs at given power.
+     * @return false if it didn't within timeout
+     */
+    boolean awaitPower(int channel, int power) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (transport.getChannelPower(channel) != power) {
+            if (System.nanoTime() > deadline) return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    SBrick getSBrick() {
+        return sbrick;
+    }
+
+    SimulatedTransport getTransport() {
+        return transport;
+    }
+
+    IoThread getIoThread() {
+        return ioThread;
+    }
+}
@@ -0,0 +1,167 @@
+package it.ambient.androidsbrick;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import it.ambient.androidsbrick.command.ChannelState;
+import it.ambient.androidsbrick.command.RotateCommand;
+import it.ambient.androidsbrick.command.SBrickCommand;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes timelines and reads them back, then plays one to simulated SBrick.
+ */
+public class TimelineTest {
+    private static final long FIRST = 0x000780000001L;
+    private static final long SECOND = 0x000780000002L;
+    private static final byte CW = RotateCommand.DIR_CLOCKWISE;
+    private static final byte CCW = RotateCommand.DIR_COUNTER_CLOCKWISE;
+    private static final String ADDRESS = "00:07:80:00:00:04";
+
+    @Rule
+    public final SimulatedSBrickRule simulated = new SimulatedSBrickRule(ADDRESS, 2);
+
+    @Test
+    public void writeAndRead_keepsEvents() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TimelineWriter writer = new TimelineWriter(bytes)) {
+            writer.write(0, FIRST, SBrickCommand.CHANNEL_A, ChannelState.MODE_DRIVE, CW, (byte) 0xFF);
+            writer.write(0, SECOND, SBrickCommand.CHANNEL_D, ChannelState.MODE_DRIVE, CCW, (byte) 0x80);
+            writer.write(1_500, FIRST, SBrickCommand.CHANNEL_A, ChannelState.MODE_STOP, (byte) 0, (byte) 0);
+            // delta needs several varlong bytes
+            writer.write(3_600_000_000_000L, SECOND, SBrickCommand.CHANNEL_D, ChannelState.MODE_STOP, (byte) 0, (byte) 0);
+            assertEquals(4, writer.getEventCount());
+        }
+
+        TimelineReader reader = new TimelineReader(new ByteArrayInputStream(bytes.toByteArray()));
+        TimelineEvent event = new TimelineEvent();
+        assertTrue(reader.next(event));
+        assertEvent(event, 0, FIRST, SBrickCommand.CHANNEL_A, ChannelState.MODE_DRIVE, CW, 0xFF);
+        assertTrue(reader.next(event));
+        assertEvent(event, 0, SECOND, SBrickCommand.CHANNEL_D, ChannelState.MODE_DRIVE, CCW, 0x80);
+        assertEquals(1, event.getBrick());
+        assertTrue(reader.next(event));
+        assertEvent(event, 1_500, FIRST, SBrickCommand.CHANNEL_A, ChannelState.MODE_STOP, 0, 0);
+        assertTrue(reader.next(event));
+        assertEvent(event, 3_600_000_000_000L, SECOND, SBrickCommand.CHANNEL_D, ChannelState.MODE_STOP, 0, 0);
+        assertFalse(reader.next(event));
+        assertEquals(2, reader.getBrickCount());
+        assertEquals(SECOND, reader.getBrickAddress(1));
+    }
+
+    @Test
+    public void write_timeGoingBack_keptAtPreviousTime() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TimelineWriter writer = new TimelineWriter(bytes)) {
+            writer.write(2_000, FIRST, SBrickCommand.CHANNEL_A, ChannelState.MODE_STOP, (byte) 0, (byte) 0);
+            writer.write(1_000, FIRST, SBrickCommand.CHANNEL_B, ChannelState.MODE_STOP, (byte) 0, (byte) 0);
+        }
+        TimelineReader reader = new TimelineReader(new ByteArrayInputStream(bytes.toByteArray()));
+        TimelineEvent event = new TimelineEvent();
+        reader.next(event);
+        reader.next(event);
+        assertEquals(2_000, event.getTimeMicros());
+    }
+
+    @Test
+    public void write_tooManySBricks_fails() throws IOException {
+        TimelineWriter writer = new TimelineWriter(new ByteArrayOutputStream());
+        for (int i = 0; i < 256; i++) {
+            writer.write(i, FIRST + i, SBrickCommand.CHANNEL_A, ChannelState.MODE_STOP, (byte) 0, (byte) 0);
+        }
+        try {
+            writer.write(256, FIRST + 256, SBrickCommand.CHANNEL_A, ChannelState.MODE_STOP, (byte) 0, (byte) 0);
+            fail("257th SBrick written");
+        } catch (IOException expected) {
+        }
+        assertEquals(256, writer.getEventCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void read_notTimeline_fails() throws IOException {
+        new TimelineReader(new ByteArrayInputStream("not a timeline".getBytes("US-ASCII")));
+    }
+
+    @Test(expected = EOFException.class)
+    public void read_truncatedEvent_fails() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TimelineWriter writer = new TimelineWriter(bytes)) {
+            writer.write(0, FIRST, SBrickCommand.CHANNEL_A, ChannelState.MODE_DRIVE, CW, (byte) 0xFF);
+        }
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 1);
+        TimelineReader reader = new TimelineReader(new ByteArrayInputStream(truncated));
+        reader.next(new TimelineEvent());
+    }
+
+    @Test
+    public void play_eventsDueFromStart_playedOnTime() throws IOException, InterruptedException {
+        long brick = BluetoothAddress.toLong(ADDRESS);
+        File file = File.createTempFile("timeline", ".bin");
+        try (TimelineWriter writer = new TimelineWriter(new FileOutputStream(file))) {
+            writer.write(0, brick, SBrickCommand.CHANNEL_A, ChannelState.MODE_DRIVE, CW, (byte) 10);
+            writer.write(100_000, brick, SBrickCommand.CHANNEL_A, ChannelState.MODE_DRIVE, CW, (byte) 20);
+            // events of the same time reach SBrick together
+            writer.write(200_000, brick, SBrickCommand.CHANNEL_A, ChannelState.MODE_DRIVE, CW, (byte) 30);
+            writer.write(200_000, brick, SBrickCommand.CHANNEL_B, ChannelState.MODE_DRIVE, CCW, (byte) 40);
+            writer.write(300_000, brick, SBrickCommand.CHANNEL_B, ChannelState.MODE_STOP, (byte) 0, (byte) 0);
+        }
+
+        try {
+            simulated.connect();
+            TimelinePlayer player = new TimelinePlayer(file, Collections.singletonMap(ADDRESS, simulated.getSBrick()));
+            CountDownLatch finished = new CountDownLatch(1);
+            AtomicBoolean completed = new AtomicBoolean();
+            player.setListener((p, wholeTimeline) -> {
+                completed.set(wholeTimeline);
+                finished.countDown();
+            });
+            long startNanos = System.nanoTime();
+            assertTrue(player.start());
+            assertTrue(simulated.awaitPower(SBrickCommand.CHANNEL_A, 20));
+            long secondMillis = millisSince(startNanos);
+            assertTrue(simulated.awaitPower(SBrickCommand.CHANNEL_A, 30));
+            long thirdMillis = millisSince(startNanos);
+            assertTrue("playback not finished",
+                    finished.await(SimulatedSBrickRule.TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            long finishedMillis = millisSince(startNanos);
+
+            assertTrue(completed.get());
+            assertEquals(5, player.getEventCount());
+            // never early, and late events don't shift the rest of timeline
+            assertTrue("second event at " + secondMillis, secondMillis >= 95 && secondMillis < 180);
+            assertTrue("third event at " + thirdMillis, thirdMillis >= 195 && thirdMillis < 280);
+            assertTrue("finished at " + finishedMillis, finishedMillis >= 300 && finishedMillis < 500);
+            assertTrue(player.getMaxLatenessMicros() < 50_000);
+            assertFalse(player.isPlaying());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void assertEvent(TimelineEvent event, long timeMicros, long address, int channel,
+                                    byte mode, int direction, int power) {
+        assertEquals(timeMicros, event.getTimeMicros());
+        assertEquals(address, event.getBrickAddress());
+        assertEquals(channel, event.getChannel());
+        assertEquals(mode, event.getMode());
+        assertEquals(direction, event.getDirection());
+        assertEquals(power, event.getPower() & 0xFF);
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
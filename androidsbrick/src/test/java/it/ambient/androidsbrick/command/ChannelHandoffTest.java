@@ -0,0 +1,115 @@
+package it.ambient.androidsbrick.command;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Posts racing commands from several threads and checks that drained channel
+ * state always comes from one of them.
+ */
+public class ChannelHandoffTest {
+    private static final int A = SBrickCommand.CHANNEL_A;
+    private static final int PRODUCERS = 4;
+    private static final long RACE_MILLIS = 500;
+    private static final byte RAMP_POWER = (byte) 200;
+    private static final long RAMP_MILLIS = 1000;
+
+    @Test
+    public void drainTo_rampAfterStop_startsRamp() {
+        ChannelHandoff handoff = new ChannelHandoff();
+        handoff.post(new StopCommand().channelA());
+        handoff.post(new RampCommand().channelA(RotateCommand.DIR_CLOCKWISE, RAMP_POWER)
+                .over(RAMP_MILLIS, RampCommand.CURVE_S_CURVE));
+
+        ChannelState state = new ChannelState();
+        assertTrue(handoff.drainTo(state));
+        assertTrue(state.hasRamps());
+        assertEquals(1, handoff.getCoalescedCount());
+        assertFalse(handoff.hasPosted());
+    }
+
+    @Test
+    public void drainTo_stopAfterRamp_stopsRightAway() {
+        ChannelHandoff handoff = new ChannelHandoff();
+        handoff.post(new RampCommand().channelA(RotateCommand.DIR_CLOCKWISE, RAMP_POWER)
+                .over(RAMP_MILLIS, RampCommand.CURVE_LINEAR));
+        handoff.post(new StopCommand().channelA());
+
+        ChannelState state = new ChannelState();
+        handoff.drainTo(state);
+        assertFalse(state.hasRamps());
+        assertEquals(ChannelState.MODE_STOP, state.getMode(A));
+    }
+
+    @Test
+    public void drainTo_stopRacingRamp_neverMixed() throws InterruptedException {
+        ChannelHandoff handoff = new ChannelHandoff();
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicBoolean posting = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            boolean ramping = i % 2 == 0;
+            producers[i] = new Thread(() -> {
+                RampCommand ramp = new RampCommand();
+                ramp.channelA(RotateCommand.DIR_CLOCKWISE, RAMP_POWER).over(RAMP_MILLIS, RampCommand.CURVE_LINEAR);
+                StopCommand stop = new StopCommand().channelA();
+                awaitQuietly(start);
+                while (posting.get()) {
+                    if (ramping) {
+                        handoff.post(ramp);
+                    } else {
+                        handoff.post(stop);
+                    }
+                }
+            });
+            producers[i].start();
+        }
+        Thread consumer = new Thread(() -> {
+            try {
+                while (!done.get() || handoff.hasPosted()) {
+                    ChannelState state = new ChannelState();
+                    if (!handoff.drainTo(state)) continue;
+                    if (state.hasRamps()) {
+                        // ramp reaches power of ramp command, not of stop
+                        state.updateRamps(System.nanoTime() + 2 * RAMP_MILLIS * 1_000_000L);
+                        assertEquals(RAMP_POWER, state.getPower(A));
+                        assertEquals(RotateCommand.DIR_CLOCKWISE, state.getDirection(A));
+                    } else {
+                        // channel without ramp was stopped, ramp isn't applied as plain drive
+                        assertEquals(ChannelState.MODE_STOP, state.getMode(A));
+                    }
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        consumer.start();
+        start.countDown();
+        // racing writes are interleaved when producer or consumer is preempted, even on one core
+        Thread.sleep(RACE_MILLIS);
+        posting.set(false);
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        done.set(true);
+        consumer.join();
+        if (failure.get() != null) {
+            throw new AssertionError("mixed channel state drained", failure.get());
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package it.ambient.androidsbrick.command;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks command byte streams and allocation-free encoding path.
+ */
+public class CommandEncodingTest {
+    private static final int WARMUP_ITERATIONS = 200_000;
+    private static final int MEASURED_ITERATIONS = 100_000;
+    // reflective counter read may box its result, never close to one object per iteration
+    private static final long MEASUREMENT_SLACK_BYTES = 64;
+
+    @Test
+    public void rotateCommand_isEncodedInChannelOrder() {
+        RotateCommand command = new RotateCommand()
+                .channelC(RotateCommand.DIR_COUNTER_CLOCKWISE, (byte) 0x80)
+                .channelA(RotateCommand.DIR_CLOCKWISE, (byte) 0xFF);
+
+        assertArrayEquals(new byte[]{0x01, 0x00, 0x00, (byte) 0xFF, 0x02, 0x01, (byte) 0x80},
+                command.getPreparedStream());
+    }
+
+    @Test
+    public void rotateCommand_overwritesChannel() {
+        RotateCommand command = new RotateCommand()
+                .channelB(RotateCommand.DIR_CLOCKWISE, (byte) 0x10)
+                .channelB(RotateCommand.DIR_COUNTER_CLOCKWISE, (byte) 0x20);
+
+        assertArrayEquals(new byte[]{0x01, 0x01, 0x01, 0x20}, command.getPreparedStream());
+    }
+
+    @Test
+    public void stopCommand_allChannels() {
+        assertArrayEquals(new byte[]{0x00, 0x00, 0x01, 0x02, 0x03},
+                new StopCommand().allChannels().getPreparedStream());
+    }
+
+    @Test
+    public void writeTo_respectsOffsetAndReturnsLength() {
+        byte[] buffer = new byte[SBrickCommand.MAX_STREAM_LENGTH + 2];
+        RotateCommand command = new RotateCommand().allChannels(RotateCommand.DIR_CLOCKWISE, (byte) 0x7F);
+
+        int length = command.writeTo(buffer, 2);
+
+        assertEquals(SBrickCommand.MAX_STREAM_LENGTH, length);
+        assertEquals(0x01, buffer[2]);
+        assertEquals(0x03, buffer[2 + 10]);
+        assertEquals(0x7F, buffer[2 + 12]);
+    }
+
+    @Test
+    public void writeTo_byteBufferMatchesArray() {
+        StopCommand command = new StopCommand().channelB().channelD();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SBrickCommand.MAX_STREAM_LENGTH);
+
+        int length = command.writeTo(buffer);
+
+        assertEquals(3, length);
+        assertEquals(3, buffer.position());
+        byte[] written = new byte[length];
+        buffer.flip();
+        buffer.get(written);
+        assertArrayEquals(command.getPreparedStream(), written);
+    }
+
+    @Test
+    public void clear_allowsReuse() {
+        RotateCommand command = new RotateCommand().allChannels(RotateCommand.DIR_CLOCKWISE, (byte) 0xFF);
+        command.clear().channelD(RotateCommand.DIR_CLOCKWISE, (byte) 0x01);
+
+        assertArrayEquals(new byte[]{0x01, 0x03, 0x00, 0x01}, command.getPreparedStream());
+    }
+
+    @Test
+    public void writeTo_doesNotAllocate() throws Exception {
+        AllocationCounter counter = AllocationCounter.forCurrentThread();
+        Assume.assumeNotNull(counter);
+
+        RotateCommand rotateCommand = new RotateCommand();
+        StopCommand stopCommand = new StopCommand();
+        byte[] buffer = new byte[SBrickCommand.MAX_STREAM_LENGTH];
+        ByteBuffer byteBuffer = ByteBuffer.allocate(SBrickCommand.MAX_STREAM_LENGTH);
+
+        encode(rotateCommand, stopCommand, buffer, byteBuffer, WARMUP_ITERATIONS);
+
+        // cost of measurement itself, subtracted from result
+        long before = counter.allocatedBytes();
+        long overhead = counter.allocatedBytes() - before;
+
+        before = counter.allocatedBytes();
+        long checksum = encode(rotateCommand, stopCommand, buffer, byteBuffer, MEASURED_ITERATIONS);
+        long allocated = counter.allocatedBytes() - before - overhead;
+
+        assertTrue(checksum > 0);
+        assertTrue("bytes allocated by " + MEASURED_ITERATIONS + " encodings: " + allocated,
+                allocated <= MEASUREMENT_SLACK_BYTES);
+    }
+
+    private static long encode(RotateCommand rotateCommand, StopCommand stopCommand,
+                               byte[] buffer, ByteBuffer byteBuffer, int iterations) {
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            rotateCommand.clear()
+                    .channelA(RotateCommand.DIR_CLOCKWISE, (byte) i)
+                    .channelD(RotateCommand.DIR_COUNTER_CLOCKWISE, (byte) (i >> 8));
+            checksum += rotateCommand.writeTo(buffer, 0);
+            byteBuffer.clear();
+            checksum += rotateCommand.writeTo(byteBuffer);
+            stopCommand.clear().channel(i & 3);
+            checksum += stopCommand.writeTo(buffer, 0);
+        }
+        return checksum;
+    }
+
+    /**
+     * Reads com.sun.management.ThreadMXBean allocation counter. Accessed reflectively,
+     * because unit tests are compiled against android.jar, which has no java.lang.management.
+     */
+    private static class AllocationCounter {
+        private final Object threadBean;
+        private final Method getThreadAllocatedBytes;
+        private final long threadId;
+
+        private AllocationCounter(Object threadBean, Method getThreadAllocatedBytes, long threadId) {
+            this.threadBean = threadBean;
+            this.getThreadAllocatedBytes = getThreadAllocatedBytes;
+            this.threadId = threadId;
+        }
+
+        static AllocationCounter forCurrentThread() {
+            try {
+                Object threadBean = Class.forName("java.lang.management.ManagementFactory")
+                        .getMethod("getThreadMXBean").invoke(null);
+                Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+                if (!beanClass.isInstance(threadBean)
+                        || !(Boolean) beanClass.getMethod("isThreadAllocatedMemorySupported").invoke(threadBean)) {
+                    return null;
+                }
+                beanClass.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(threadBean, true);
+                return new AllocationCounter(threadBean,
+                        beanClass.getMethod("getThreadAllocatedBytes", long.class),
+                        Thread.currentThread().getId());
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        long allocatedBytes() throws ReflectiveOperationException {
+            return (Long) getThreadAllocatedBytes.invoke(threadBean, threadId);
+        }
+    }
+}
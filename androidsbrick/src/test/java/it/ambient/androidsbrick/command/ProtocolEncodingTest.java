@@ -0,0 +1,132 @@
+package it.ambient.androidsbrick.command;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks byte streams of protocol commands against SBrick protocol and splitting of batched writes.
+ */
+public class ProtocolEncodingTest {
+
+    @Test
+    public void setWatchdogTimeout_isSentInTenthsOfSecond() {
+        assertArrayEquals(new byte[]{0x0D, 0x05},
+                new SetWatchdogTimeoutCommand().timeoutMillis(500).getPreparedStream());
+        assertArrayEquals(new byte[]{0x0D, 0x0D},
+                new SetWatchdogTimeoutCommand().timeoutMillis(1250).getPreparedStream());
+        assertArrayEquals(new byte[]{0x0D, (byte) 0xFF},
+                new SetWatchdogTimeoutCommand().timeoutMillis(SetWatchdogTimeoutCommand.MAX_TIMEOUT_MILLIS).getPreparedStream());
+        assertArrayEquals(new byte[]{0x0D, 0x00},
+                new SetWatchdogTimeoutCommand().timeoutMillis(500).disable().getPreparedStream());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setWatchdogTimeout_rejectsTooLongTimeout() {
+        new SetWatchdogTimeoutCommand().timeoutMillis(SetWatchdogTimeoutCommand.MAX_TIMEOUT_MILLIS + 1);
+    }
+
+    @Test
+    public void queryWatchdogTimeout_decodesResponse() {
+        byte[] query = new QueryWatchdogTimeoutCommand().getPreparedStream();
+
+        assertArrayEquals(new byte[]{0x0E}, query);
+        assertTrue(SBrickProtocol.expectsResponse(query));
+        assertEquals(2000, QueryWatchdogTimeoutCommand.decodeTimeoutMillis(new byte[]{0x14}));
+        assertEquals(-1, QueryWatchdogTimeoutCommand.decodeTimeoutMillis(new byte[0]));
+    }
+
+    @Test
+    public void pwmCounter_isLittleEndian() {
+        assertArrayEquals(new byte[]{0x20, (byte) 0xE8, 0x03},
+                new SetPwmCounterCommand().value(1000).getPreparedStream());
+        assertArrayEquals(new byte[]{0x21}, new QueryPwmCounterCommand().getPreparedStream());
+        assertArrayEquals(new byte[]{0x22}, new SavePwmCounterCommand().getPreparedStream());
+        assertEquals(1000, QueryPwmCounterCommand.decodeValue(new byte[]{(byte) 0xE8, 0x03}));
+        assertFalse(SBrickProtocol.expectsResponse(new SavePwmCounterCommand().getPreparedStream()));
+    }
+
+    @Test
+    public void queryAdc_isEncodedInInputOrder() {
+        byte[] query = new QueryAdcCommand().temperature().voltage().getPreparedStream();
+
+        assertArrayEquals(new byte[]{0x0F, 0x08, 0x09}, query);
+        assertTrue(SBrickProtocol.expectsResponse(query));
+    }
+
+    @Test
+    public void batch_mergesChannelCommandsLaterWins() {
+        CommandBatch batch = new CommandBatch()
+                .add(new RotateCommand().channelA(RotateCommand.DIR_CLOCKWISE, (byte) 0x10)
+                        .channelB(RotateCommand.DIR_CLOCKWISE, (byte) 0x20))
+                .add(new StopCommand().channelA().channelC())
+                .add(new RotateCommand().channelC(RotateCommand.DIR_COUNTER_CLOCKWISE, (byte) 0xFF));
+
+        List<byte[]> writes = batch.encode();
+
+        assertEquals(2, writes.size());
+        assertArrayEquals(new byte[]{0x00, 0x00}, writes.get(0));
+        assertArrayEquals(new byte[]{0x01, 0x01, 0x00, 0x20, 0x02, 0x01, (byte) 0xFF}, writes.get(1));
+    }
+
+    @Test
+    public void batch_writesOtherCommandsFirstInOrder() {
+        CommandBatch batch = new CommandBatch()
+                .add(new StopCommand().allChannels())
+                .add(new SetPwmCounterCommand().value(0x0102))
+                .add(new SavePwmCounterCommand())
+                .add(new SetWatchdogTimeoutCommand().timeoutMillis(300));
+
+        List<byte[]> writes = batch.encode();
+
+        assertEquals(4, writes.size());
+        assertArrayEquals(new byte[]{0x20, 0x02, 0x01}, writes.get(0));
+        assertArrayEquals(new byte[]{0x22}, writes.get(1));
+        assertArrayEquals(new byte[]{0x0D, 0x03}, writes.get(2));
+        assertArrayEquals(new byte[]{0x00, 0x00, 0x01, 0x02, 0x03}, writes.get(3));
+    }
+
+    @Test
+    public void batch_splitsChannelRecordsAtWriteLength() {
+        CommandBatch batch = new CommandBatch()
+                .add(new RotateCommand().allChannels(RotateCommand.DIR_CLOCKWISE, (byte) 0x7F));
+
+        List<byte[]> writes = batch.encode(7);
+
+        assertEquals(2, writes.size());
+        assertArrayEquals(new byte[]{0x01, 0x00, 0x00, 0x7F, 0x01, 0x00, 0x7F}, writes.get(0));
+        assertArrayEquals(new byte[]{0x01, 0x02, 0x00, 0x7F, 0x03, 0x00, 0x7F}, writes.get(1));
+        assertEquals(1, batch.encode(CommandBatch.DEFAULT_MAX_WRITE_LENGTH).size());
+    }
+
+    @Test
+    public void batch_encodeOtherCommands_leavesChannelsOut() {
+        CommandBatch batch = new CommandBatch()
+                .add(new RotateCommand().allChannels(RotateCommand.DIR_CLOCKWISE, (byte) 0x7F))
+                .add(new SetWatchdogTimeoutCommand().timeoutMillis(300))
+                .add(new StopCommand().channelA());
+
+        // channel records would need two writes at this length, they aren't encoded
+        byte[][] streams = batch.encodeOtherCommands(4);
+
+        assertEquals(1, streams.length);
+        assertArrayEquals(new byte[]{0x0D, 0x03}, streams[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batch_encodeOtherCommands_commandLongerThanWrite_fails() {
+        new CommandBatch().add(new SetPwmCounterCommand().value(0x0102)).encodeOtherCommands(2);
+    }
+
+    @Test
+    public void batch_clearAllowsReuse() {
+        CommandBatch batch = new CommandBatch()
+                .add(new StopCommand().channelD())
+                .add(new QueryWatchdogTimeoutCommand());
+
+        assertTrue(batch.clear().isEmpty());
+        assertTrue(batch.encode().isEmpty());
+    }
+}
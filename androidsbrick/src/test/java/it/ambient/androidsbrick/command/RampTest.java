@@ -0,0 +1,128 @@
+package it.ambient.androidsbrick.command;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks ramp curves and channel power interpolated by ChannelState.
+ */
+public class RampTest {
+    private static final byte[] CURVES = {
+            RampCommand.CURVE_LINEAR, RampCommand.CURVE_S_CURVE, RampCommand.CURVE_EXPONENTIAL};
+    private static final long DURATION = 1_000_000_000L;
+    private static final long START = 5_000_000_000L;
+    private static final int A = SBrickCommand.CHANNEL_A;
+
+    @Test
+    public void ease_curvesStartAtZeroAndEndAtOne() {
+        for (byte curve : CURVES) {
+            assertEquals("curve " + curve, 0.0, RampCommand.ease(curve, 0.0), 1e-9);
+            assertEquals("curve " + curve, 1.0, RampCommand.ease(curve, 1.0), 1e-9);
+        }
+    }
+
+    @Test
+    public void ease_curvesAreMonotonic() {
+        for (byte curve : CURVES) {
+            double previous = 0;
+            for (int i = 1; i <= 100; i++) {
+                double eased = RampCommand.ease(curve, i / 100.0);
+                assertTrue("curve " + curve + " at " + i + "%", eased >= previous);
+                previous = eased;
+            }
+        }
+    }
+
+    @Test
+    public void ease_curveShapes() {
+        assertEquals(0.25, RampCommand.ease(RampCommand.CURVE_LINEAR, 0.25), 1e-9);
+        // s-curve is symmetric, slow at both ends
+        assertEquals(0.5, RampCommand.ease(RampCommand.CURVE_S_CURVE, 0.5), 1e-9);
+        assertTrue(RampCommand.ease(RampCommand.CURVE_S_CURVE, 0.1) < 0.1);
+        assertTrue(RampCommand.ease(RampCommand.CURVE_S_CURVE, 0.9) > 0.9);
+        // exponential starts slow and ends fast
+        assertTrue(RampCommand.ease(RampCommand.CURVE_EXPONENTIAL, 0.5) < 0.5);
+    }
+
+    @Test
+    public void linearRamp_fromStopped_interpolatesAndReachesTarget() {
+        ChannelState state = new ChannelState();
+        state.startRamp(A, RotateCommand.DIR_CLOCKWISE, (byte) 200, DURATION, RampCommand.CURVE_LINEAR, START);
+
+        assertTrue(state.updateRamps(START));
+        assertEquals(ChannelState.MODE_DRIVE, state.getMode(A));
+        assertEquals(0, state.getPower(A) & 0xFF);
+
+        assertTrue(state.updateRamps(START + DURATION / 2));
+        assertEquals(100, state.getPower(A) & 0xFF);
+        assertTrue(state.hasPending());
+
+        assertFalse(state.updateRamps(START + DURATION + 1));
+        assertEquals(200, state.getPower(A) & 0xFF);
+        assertEquals(RotateCommand.DIR_CLOCKWISE, state.getDirection(A));
+        assertFalse(state.hasRamps());
+    }
+
+    @Test
+    public void ramp_crossingZero_changesDirection() {
+        ChannelState state = new ChannelState();
+        state.set(A, ChannelState.MODE_DRIVE, RotateCommand.DIR_CLOCKWISE, (byte) 100);
+        state.startRamp(A, RotateCommand.DIR_COUNTER_CLOCKWISE, (byte) 100, DURATION, RampCommand.CURVE_LINEAR, START);
+
+        state.updateRamps(START + DURATION / 4);
+        assertEquals(RotateCommand.DIR_CLOCKWISE, state.getDirection(A));
+        assertEquals(50, state.getPower(A) & 0xFF);
+
+        // at zero power direction of target is kept
+        state.updateRamps(START + DURATION / 2);
+        assertEquals(0, state.getPower(A));
+        assertEquals(RotateCommand.DIR_COUNTER_CLOCKWISE, state.getDirection(A));
+
+        state.updateRamps(START + DURATION * 3 / 4);
+        assertEquals(RotateCommand.DIR_COUNTER_CLOCKWISE, state.getDirection(A));
+        assertEquals(50, state.getPower(A) & 0xFF);
+    }
+
+    @Test
+    public void ramp_unchangedPower_isNotPending() {
+        ChannelState state = new ChannelState();
+        state.startRamp(A, RotateCommand.DIR_CLOCKWISE, (byte) 10, DURATION, RampCommand.CURVE_LINEAR, START);
+        state.updateRamps(START + DURATION / 2);
+        state.writePending(new byte[SBrickCommand.MAX_STREAM_LENGTH], 0);
+
+        state.updateRamps(START + DURATION / 2 + 1000);
+        assertFalse(state.hasPending());
+    }
+
+    @Test
+    public void ramp_cutShortByRotate_keepsNewState() {
+        ChannelState state = new ChannelState();
+        state.startRamp(A, RotateCommand.DIR_CLOCKWISE, (byte) 200, DURATION, RampCommand.CURVE_S_CURVE, START);
+        state.updateRamps(START + DURATION / 2);
+
+        state.apply(new RotateCommand().channelA(RotateCommand.DIR_COUNTER_CLOCKWISE, (byte) 30));
+        assertFalse(state.hasRamps());
+        assertFalse(state.updateRamps(START + DURATION));
+        assertEquals(RotateCommand.DIR_COUNTER_CLOCKWISE, state.getDirection(A));
+        assertEquals(30, state.getPower(A) & 0xFF);
+    }
+
+    @Test
+    public void ramp_cutShortByStop_staysStopped() {
+        ChannelState state = new ChannelState();
+        state.startRamp(A, RotateCommand.DIR_CLOCKWISE, (byte) 200, DURATION, RampCommand.CURVE_EXPONENTIAL, START);
+        state.startRamp(SBrickCommand.CHANNEL_B, RotateCommand.DIR_CLOCKWISE, (byte) 200, DURATION,
+                RampCommand.CURVE_LINEAR, START);
+        state.updateRamps(START + DURATION / 2);
+
+        state.apply(new StopCommand().channelA());
+        // only stopped channel leaves its ramp
+        assertTrue(state.hasRamps());
+        state.updateRamps(START + DURATION);
+        assertEquals(ChannelState.MODE_STOP, state.getMode(A));
+        assertEquals(0, state.getPower(A));
+        assertEquals(200, state.getPower(SBrickCommand.CHANNEL_B) & 0xFF);
+        assertFalse(state.hasRamps());
+    }
+}
@@ -0,0 +1,95 @@
+package it.ambient.androidsbrick.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import it.ambient.androidsbrick.command.ChannelState;
+import it.ambient.androidsbrick.command.CommandBuffer;
+import it.ambient.androidsbrick.command.RotateCommand;
+import it.ambient.androidsbrick.command.SBrickCommand;
+
+/**
+ * Producer / consumer handoff between execute() and writer. One operation is
+ * one writer slot (consumer poll) preceded by commandsPerSlot producer calls,
+ * so commandsPerSlot is producer rate relative to write rate.
+ * Compares 3-deep drop-newest CommandBuffer with coalescing ChannelState.
+ * Counters report how many streams reached the writer, and how many commands
+ * were dropped or overwritten by newer ones.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class CommandBufferBenchmark {
+    private static final int COMMAND_BUFFER_SIZE = 3;
+
+    @Param({"1", "2", "4", "8"})
+    public int commandsPerSlot;
+
+    private CommandBuffer buffer;
+    private ChannelState channelState;
+    private RotateCommand command;
+    private final byte[] stream = new byte[SBrickCommand.MAX_STREAM_LENGTH];
+    private byte power;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class HandoffCounters {
+        public long sent;
+        public long dropped;
+        public long coalesced;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            sent = 0;
+            dropped = 0;
+            coalesced = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        buffer = new CommandBuffer(COMMAND_BUFFER_SIZE);
+        channelState = new ChannelState();
+        command = new RotateCommand();
+    }
+
+    @Benchmark
+    public byte[] executeAndDrain(HandoffCounters counters) {
+        for (int i = 0; i < commandsPerSlot; i++) {
+            command.channelA(RotateCommand.DIR_CLOCKWISE, power++);
+            if (!buffer.offer(command.getPreparedStream())) {
+                counters.dropped++;
+            }
+        }
+        byte[] stream = buffer.poll();
+        if (stream != null) {
+            counters.sent++;
+        }
+        return stream;
+    }
+
+    @Benchmark
+    public int executeAndDrainCoalesced(HandoffCounters counters) {
+        long coalescedBefore = channelState.getCoalescedCount();
+        for (int i = 0; i < commandsPerSlot; i++) {
+            command.channelA(RotateCommand.DIR_CLOCKWISE, power++);
+            channelState.apply(command);
+        }
+        counters.coalesced += channelState.getCoalescedCount() - coalescedBefore;
+        int length = channelState.writePending(stream, 0);
+        if (length > 0) {
+            counters.sent++;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,77 @@
+package it.ambient.androidsbrick.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import it.ambient.androidsbrick.command.RotateCommand;
+import it.ambient.androidsbrick.command.SBrickCommand;
+import it.ambient.androidsbrick.command.StopCommand;
+
+/**
+ * Cost of encoding rotate and stop commands for 1-4 channels,
+ * allocating getPreparedStream() versus writeTo() into reused buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class CommandEncodingBenchmark {
+
+    @Param({"1", "2", "3", "4"})
+    public int channels;
+
+    private RotateCommand rotateCommand;
+    private StopCommand stopCommand;
+    private final byte[] buffer = new byte[SBrickCommand.MAX_STREAM_LENGTH];
+    private byte power;
+
+    @Setup
+    public void setUp() {
+        rotateCommand = new RotateCommand();
+        stopCommand = new StopCommand();
+        for (int channel = 0; channel < channels; channel++) {
+            rotateCommand.channel(channel, RotateCommand.DIR_CLOCKWISE, (byte) 0xFF);
+            stopCommand.channel(channel);
+        }
+    }
+
+    @Benchmark
+    public byte[] rotatePreparedStream() {
+        return rotateCommand.getPreparedStream();
+    }
+
+    @Benchmark
+    public int rotateWriteTo() {
+        return rotateCommand.writeTo(buffer, 0);
+    }
+
+    /**
+     * Typical joystick loop: reused command filled with new power and encoded.
+     */
+    @Benchmark
+    public int rotateRefillAndWriteTo() {
+        power++;
+        rotateCommand.clear();
+        for (int channel = 0; channel < channels; channel++) {
+            rotateCommand.channel(channel, RotateCommand.DIR_CLOCKWISE, power);
+        }
+        return rotateCommand.writeTo(buffer, 0);
+    }
+
+    @Benchmark
+    public byte[] stopPreparedStream() {
+        return stopCommand.getPreparedStream();
+    }
+
+    @Benchmark
+    public int stopWriteTo() {
+        return stopCommand.writeTo(buffer, 0);
+    }
+}
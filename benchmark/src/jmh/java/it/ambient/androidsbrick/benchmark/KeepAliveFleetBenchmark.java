@@ -0,0 +1,187 @@
+package it.ambient.androidsbrick.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import it.ambient.androidsbrick.command.StopCommand;
+import it.ambient.androidsbrick.transport.KeepAliveScheduler;
+import it.ambient.androidsbrick.transport.SimulatedTransport;
+import it.ambient.androidsbrick.transport.TransportListener;
+
+/**
+ * One keep-alive period for simulated fleet of N SBricks. Compares one task
+ * per SBrick (every SBrick wakes up the scheduler thread on its own) with
+ * KeepAliveScheduler pass over whole fleet. Active SBricks wrote recently
+ * and don't need keep-alive.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class KeepAliveFleetBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int fleetSize;
+
+    @Param({"0", "50"})
+    public int activePercent;
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledExecutorService simulator;
+    private KeepAliveScheduler keepAliveScheduler;
+    private SimulatedTransport[] fleet;
+    private FleetLink[] links;
+    private byte[] lastStream;
+    private WriteCounters currentCounters;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WriteCounters {
+        public long accepted;
+        public long rejected;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            accepted = 0;
+            rejected = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        simulator = Executors.newSingleThreadScheduledExecutor();
+        lastStream = new StopCommand().allChannels().getPreparedStream();
+        keepAliveScheduler = new KeepAliveScheduler(scheduler, 50, TimeUnit.MILLISECONDS);
+        fleet = new SimulatedTransport[fleetSize];
+        links = new FleetLink[fleetSize];
+        int activeCount = fleetSize * activePercent / 100;
+        CountDownLatch ready = new CountDownLatch(fleetSize);
+        for (int i = 0; i < fleetSize; i++) {
+            SimulatedTransport transport = new SimulatedTransport(String.format("00:07:80:00:00:%02X", i), simulator)
+                    .setConnectLatency(0, TimeUnit.MILLISECONDS)
+                    .setWriteLatency(0, TimeUnit.MILLISECONDS);
+            fleet[i] = transport;
+            links[i] = new FleetLink(transport, i < activeCount);
+            transport.connect(new ReadyListener(transport, ready));
+        }
+        ready.await();
+        // registration runs first passes, before measurement
+        currentCounters = new WriteCounters();
+        for (FleetLink link : links) {
+            keepAliveScheduler.register(link);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (SimulatedTransport transport : fleet) {
+            transport.disconnect();
+        }
+        scheduler.shutdownNow();
+        simulator.shutdownNow();
+    }
+
+    @Benchmark
+    public void perBrickTimers(WriteCounters counters) throws InterruptedException {
+        currentCounters = counters;
+        CountDownLatch done = new CountDownLatch(fleetSize);
+        for (FleetLink link : links) {
+            scheduler.execute(() -> {
+                long now = System.nanoTime();
+                if (link.getKeepAliveDueNanos() <= now) {
+                    link.keepAlive(now);
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+    }
+
+    @Benchmark
+    public void sharedScheduler(WriteCounters counters) throws InterruptedException {
+        currentCounters = counters;
+        keepAliveScheduler.tickNow();
+        CountDownLatch done = new CountDownLatch(1);
+        // single thread executor, so pass is finished when this runs
+        scheduler.execute(done::countDown);
+        done.await();
+    }
+
+    private class FleetLink implements KeepAliveScheduler.Link {
+        private final SimulatedTransport transport;
+        private final long dueNanos;
+
+        FleetLink(SimulatedTransport transport, boolean active) {
+            this.transport = transport;
+            // active SBrick is never due, idle SBrick is always due
+            long hour = TimeUnit.HOURS.toNanos(1);
+            this.dueNanos = System.nanoTime() + (active ? hour : -hour);
+        }
+
+        @Override
+        public long getKeepAliveDueNanos() {
+            return dueNanos;
+        }
+
+        @Override
+        public long keepAlive(long nowNanos) {
+            if (transport.write(lastStream)) {
+                currentCounters.accepted++;
+            } else {
+                currentCounters.rejected++;
+            }
+            // no background passes during measurement, only benchmark ones
+            return nowNanos + TimeUnit.HOURS.toNanos(1);
+        }
+    }
+
+    private static class ReadyListener implements TransportListener {
+        private final SimulatedTransport transport;
+        private final CountDownLatch ready;
+
+        ReadyListener(SimulatedTransport transport, CountDownLatch ready) {
+            this.transport = transport;
+            this.ready = ready;
+        }
+
+        @Override
+        public void onConnected() {
+            transport.discoverServices();
+        }
+
+        @Override
+        public void onDisconnected(int status) {
+        }
+
+        @Override
+        public void onServicesDiscovered(boolean success) {
+            ready.countDown();
+        }
+
+        @Override
+        public void onWriteComplete(boolean success) {
+        }
+
+        @Override
+        public void onReadComplete(byte[] value, boolean success) {
+        }
+
+        @Override
+        public void onNotification(byte[] value) {
+        }
+    }
+}